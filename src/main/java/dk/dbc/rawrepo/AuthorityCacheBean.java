@@ -0,0 +1,195 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+import dk.dbc.rawrepo.dao.RawRepoBean;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the content of authority records (870979) used when records are expanded, both by the dump and by
+ * RecordBean.
+ * <p>
+ * The same authority records are used by a lot of records, so they are kept in a bounded least recently used cache.
+ * Cached records are validated against the modified timestamp in rawrepo every time they are used. That is a single
+ * query for all the records of a call and much cheaper than fetching the content.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class AuthorityCacheBean {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(AuthorityCacheBean.class);
+    private static final int AUTHORITY_AGENCY = 870979;
+
+    @Inject
+    @ConfigProperty(name = "AUTHORITY_CACHE_MAX_MB", defaultValue = "64")
+    private long AUTHORITY_CACHE_MAX_MB;
+
+    @EJB
+    private RawRepoBean rawRepoBean;
+
+    @Inject
+    private MetricRegistry metricRegistry;
+
+    // Access ordered, so iteration starts with the least recently used record
+    private final LinkedHashMap<String, CachedRecord> cache = new LinkedHashMap<>(1024, 0.75f, true);
+    private long maxBytes;
+    private long cachedBytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // Constructor used for testing
+    AuthorityCacheBean(RawRepoBean rawRepoBean, long maxBytes) {
+        this.rawRepoBean = rawRepoBean;
+        this.maxBytes = maxBytes;
+    }
+
+    // Default constructor - required as there is another constructor
+    public AuthorityCacheBean() {
+
+    }
+
+    @PostConstruct
+    public void init() {
+        maxBytes = AUTHORITY_CACHE_MAX_MB * 1024 * 1024;
+
+        metricRegistry.register("authority_cache_hits", (Gauge<Long>) hits::get);
+        metricRegistry.register("authority_cache_misses", (Gauge<Long>) misses::get);
+        metricRegistry.register("authority_cache_hit_ratio", (Gauge<Double>) this::getHitRatio);
+        metricRegistry.register("authority_cache_bytes", (Gauge<Long>) this::getCachedBytes);
+        metricRegistry.register("authority_cache_records", (Gauge<Integer>) this::size);
+    }
+
+    /**
+     * Returns the content of the given authority records. Records which are not cached, or have been modified since
+     * they were cached, are fetched with a single query.
+     *
+     * @param bibliographicRecordIds The authority records
+     * @return The content of each record. Records which don't exist are mapped to null.
+     * @throws RawRepoException On database errors
+     */
+    public Map<String, byte[]> getAuthorityRecords(Collection<String> bibliographicRecordIds) throws RawRepoException {
+        final Map<String, byte[]> result = new HashMap<>();
+
+        if (bibliographicRecordIds.isEmpty()) {
+            return result;
+        }
+
+        final Map<String, Instant> modified = rawRepoBean.getModified(AUTHORITY_AGENCY, bibliographicRecordIds);
+        final List<String> missing = new ArrayList<>();
+
+        synchronized (cache) {
+            for (String bibliographicRecordId : bibliographicRecordIds) {
+                final Instant currentModified = modified.get(bibliographicRecordId);
+                final CachedRecord cachedRecord = cache.get(bibliographicRecordId);
+
+                if (currentModified == null) {
+                    // The record doesn't exist (anymore)
+                    remove(bibliographicRecordId);
+                    result.put(bibliographicRecordId, null);
+                } else if (cachedRecord != null && cachedRecord.modified.equals(currentModified)) {
+                    hits.incrementAndGet();
+                    result.put(bibliographicRecordId, cachedRecord.content);
+                } else {
+                    misses.incrementAndGet();
+                    missing.add(bibliographicRecordId);
+                }
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            final Map<String, byte[]> fetched = rawRepoBean.fetchRecordContents(AUTHORITY_AGENCY, missing);
+
+            synchronized (cache) {
+                for (String bibliographicRecordId : missing) {
+                    final byte[] content = fetched.get(bibliographicRecordId);
+                    result.put(bibliographicRecordId, content);
+
+                    // If the record has been modified again since the modified query, it is cached with the old
+                    // timestamp and fetched again next time
+                    if (content != null) {
+                        put(bibliographicRecordId, new CachedRecord(content, modified.get(bibliographicRecordId)));
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public double getHitRatio() {
+        final long total = hits.get() + misses.get();
+
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    public long getCachedBytes() {
+        synchronized (cache) {
+            return cachedBytes;
+        }
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private void put(String bibliographicRecordId, CachedRecord cachedRecord) {
+        if (cachedRecord.content.length > maxBytes) {
+            LOGGER.info("Authority record {} is too large to be cached", bibliographicRecordId);
+            return;
+        }
+
+        remove(bibliographicRecordId);
+        cache.put(bibliographicRecordId, cachedRecord);
+        cachedBytes += cachedRecord.content.length;
+
+        final Iterator<CachedRecord> leastRecentlyUsed = cache.values().iterator();
+        while (cachedBytes > maxBytes && leastRecentlyUsed.hasNext()) {
+            cachedBytes -= leastRecentlyUsed.next().content.length;
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    private void remove(String bibliographicRecordId) {
+        final CachedRecord removed = cache.remove(bibliographicRecordId);
+
+        if (removed != null) {
+            cachedBytes -= removed.content.length;
+        }
+    }
+
+    private static class CachedRecord {
+        private final byte[] content;
+        private final Instant modified;
+
+        private CachedRecord(byte[] content, Instant modified) {
+            this.content = content;
+            this.modified = modified;
+        }
+    }
+
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+import javax.ejb.EJB;
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.InvocationContext;
+
+/**
+ * Admits requests to the interactive lane, so single record lookups get an answer right away when the service is
+ * overloaded instead of queueing up behind each other. Must only be used on methods which return a Response.
+ */
+public class InteractiveLaneInterceptor {
+
+    @EJB
+    private LaneBean laneBean;
+
+    @AroundInvoke
+    public Object admit(InvocationContext context) throws Exception {
+        try (LaneBean.Admission admission = laneBean.tryEnter(Lane.INTERACTIVE)) {
+            if (admission == null) {
+                return laneBean.saturated(Lane.INTERACTIVE);
+            }
+
+            return context.proceed();
+        }
+    }
+
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+/**
+ * The kinds of work the service does. Each lane has its own limits in LaneBean, so a lane which is busy can't take
+ * threads or database connections from the others.
+ */
+public enum Lane {
+    DUMP("dump"), BULK("bulk"), INTERACTIVE("interactive");
+
+    private final String value;
+
+    Lane(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.inject.Inject;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps dumps, bulk requests and interactive requests apart, so e.g. two large dumps can't leave the single record
+ * endpoints without threads or database connections.
+ * <p>
+ * Each lane admits a limited number of requests at a time, and a request which isn't admitted is answered with 503
+ * and Retry-After right away instead of waiting. The dump and bulk lanes run their work on their own bounded
+ * executors instead of the default executor of the container, which every other task of the container shares. As
+ * every thread of a lane uses at most a connection or two at a time, the limits of a lane also bound how much of the
+ * connection pool it can take.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class LaneBean {
+    private static final XLogger LOGGER = XLoggerFactory.getXLogger(LaneBean.class);
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    @Inject
+    @ConfigProperty(name = "DUMP_LANE_CONCURRENCY", defaultValue = "2")
+    private int DUMP_LANE_CONCURRENCY;
+
+    // The threads of the dump lane are derived from these, see getDumpLaneThreads
+    @Inject
+    @ConfigProperty(name = "DUMP_THREAD_COUNT", defaultValue = "8")
+    private int DUMP_THREAD_COUNT;
+
+    @Inject
+    @ConfigProperty(name = "DUMP_AGENCY_THREAD_COUNT", defaultValue = "3")
+    private int DUMP_AGENCY_THREAD_COUNT;
+
+    @Inject
+    @ConfigProperty(name = "BULK_LANE_CONCURRENCY", defaultValue = "4")
+    private int BULK_LANE_CONCURRENCY;
+
+    @Inject
+    @ConfigProperty(name = "BULK_LANE_THREADS", defaultValue = "32")
+    private int BULK_LANE_THREADS;
+
+    @Inject
+    @ConfigProperty(name = "BULK_LANE_QUEUE", defaultValue = "32")
+    private int BULK_LANE_QUEUE;
+
+    // Interactive requests run on the request threads of the container, so the lane only limits how many are admitted
+    @Inject
+    @ConfigProperty(name = "INTERACTIVE_LANE_CONCURRENCY", defaultValue = "64")
+    private int INTERACTIVE_LANE_CONCURRENCY;
+
+    @Inject
+    @ConfigProperty(name = "LANE_RETRY_AFTER_SECONDS", defaultValue = "30")
+    private int LANE_RETRY_AFTER_SECONDS;
+
+    // How long a streamed response may take to start writing before its admission is given back
+    @Inject
+    @ConfigProperty(name = "LANE_HANDOVER_TIMEOUT_SECONDS", defaultValue = "60")
+    private int LANE_HANDOVER_TIMEOUT_SECONDS;
+
+    @Resource(lookup = "java:comp/DefaultManagedThreadFactory")
+    private ManagedThreadFactory threadFactory;
+
+    @Inject
+    private MetricRegistry metricRegistry;
+
+    private final Map<Lane, LaneState> lanes = new EnumMap<>(Lane.class);
+    private ScheduledExecutorService handOverTimer;
+
+    // Constructor used for testing. All lanes get the same limits.
+    LaneBean(ThreadFactory threadFactory, int concurrency, int threads, int queueSize) {
+        for (Lane lane : Lane.values()) {
+            lanes.put(lane, new LaneState(lane, concurrency, lane == Lane.INTERACTIVE ? null : createExecutor(lane, threadFactory, threads, new ArrayBlockingQueue<>(queueSize))));
+        }
+        this.handOverTimer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        this.LANE_RETRY_AFTER_SECONDS = 1;
+        this.LANE_HANDOVER_TIMEOUT_SECONDS = 1;
+    }
+
+    // Default constructor - required as there is another constructor
+    public LaneBean() {
+
+    }
+
+    @PostConstruct
+    public void init() {
+        final int dumpLaneThreads = getDumpLaneThreads(DUMP_LANE_CONCURRENCY, DUMP_AGENCY_THREAD_COUNT, DUMP_THREAD_COUNT);
+        LOGGER.info("The dump lane has {} threads", dumpLaneThreads);
+
+        // The dump lane has a thread for every worker the admitted dumps may start, so its queue is never used, and
+        // it must not reject a worker, as that would fail the dump it belongs to
+        lanes.put(Lane.DUMP, new LaneState(Lane.DUMP, DUMP_LANE_CONCURRENCY, createExecutor(Lane.DUMP, threadFactory, dumpLaneThreads, new LinkedBlockingQueue<>())));
+        lanes.put(Lane.BULK, new LaneState(Lane.BULK, BULK_LANE_CONCURRENCY, createExecutor(Lane.BULK, threadFactory, BULK_LANE_THREADS, new ArrayBlockingQueue<>(BULK_LANE_QUEUE))));
+        lanes.put(Lane.INTERACTIVE, new LaneState(Lane.INTERACTIVE, INTERACTIVE_LANE_CONCURRENCY, null));
+        handOverTimer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+
+        for (LaneState state : lanes.values()) {
+            final String prefix = "lane_" + state.lane.getValue() + "_";
+
+            metricRegistry.register(prefix + "admitted", (Gauge<Integer>) state::getAdmitted);
+            metricRegistry.register(prefix + "rejected", (Gauge<Long>) state.rejected::get);
+            metricRegistry.register(prefix + "saturation", (Gauge<Double>) state::getSaturation);
+            if (state.executor != null) {
+                metricRegistry.register(prefix + "active_threads", (Gauge<Integer>) state.executor::getActiveCount);
+                metricRegistry.register(prefix + "queued_tasks", (Gauge<Integer>) () -> state.executor.getQueue().size());
+                metricRegistry.register(prefix + "rejected_tasks", (Gauge<Long>) state.rejectedTasks::get);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        for (LaneState state : lanes.values()) {
+            if (state.executor != null) {
+                state.executor.shutdownNow();
+            }
+        }
+        handOverTimer.shutdownNow();
+    }
+
+    /**
+     * Admits a request to the lane if the lane has room for it
+     *
+     * @param lane The lane of the request
+     * @return The admission, which must be closed when the request is done, or null if the lane is saturated
+     */
+    public Admission tryEnter(Lane lane) {
+        final LaneState state = lanes.get(lane);
+
+        if (!state.permits.tryAcquire()) {
+            state.rejected.incrementAndGet();
+            LOGGER.warn("The {} lane is saturated with {} requests", lane.getValue(), state.concurrency);
+
+            return null;
+        }
+
+        return new Admission(state.permits);
+    }
+
+    /**
+     * Hands an admission over to the StreamingOutput of a response, which must claim it when it starts writing. The
+     * container writes the entity after the request method has returned, or not at all if e.g. the client has gone
+     * away, so if the admission hasn't been claimed within LANE_HANDOVER_TIMEOUT_SECONDS it is closed.
+     *
+     * @param admission The admission of the request
+     */
+    public void handOver(Admission admission) {
+        handOverTimer.schedule(admission::closeUnclaimed, LANE_HANDOVER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param lane The lane
+     * @return The executor the work of the lane must be run on
+     */
+    public ExecutorService getExecutor(Lane lane) {
+        final ThreadPoolExecutor executor = lanes.get(lane).executor;
+
+        if (executor == null) {
+            throw new IllegalArgumentException("The " + lane.getValue() + " lane has no executor");
+        }
+
+        return executor;
+    }
+
+    /**
+     * @param lane The lane which couldn't admit the request
+     * @return The response for a request which wasn't admitted
+     */
+    public Response saturated(Lane lane) {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header("Retry-After", LANE_RETRY_AFTER_SECONDS)
+                .entity("Too many " + lane.getValue() + " requests are running. Please try again later.")
+                .build();
+    }
+
+    /**
+     * A dump runs a pipeline for the agency being written and for each of the up to DUMP_AGENCY_THREAD_COUNT agencies
+     * being spooled, and each pipeline starts at most DUMP_THREAD_COUNT workers, which hold on to their thread until
+     * the pipeline is done.
+     *
+     * @param concurrency    The number of dumps admitted to the lane at a time
+     * @param agencyThreads  The number of agencies a dump spools at a time
+     * @param workersPerDump The number of workers of a pipeline
+     * @return The number of threads needed to run every worker of the admitted dumps at the same time
+     */
+    static int getDumpLaneThreads(int concurrency, int agencyThreads, int workersPerDump) {
+        return Math.max(1, concurrency * (1 + Math.max(0, agencyThreads)) * workersPerDump);
+    }
+
+    private ThreadPoolExecutor createExecutor(Lane lane, ThreadFactory threadFactory, int threads, BlockingQueue<Runnable> queue) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        final ThreadFactory namedThreadFactory = runnable -> {
+            final Thread thread = threadFactory.newThread(runnable);
+            thread.setName(lane.getValue() + "-lane-" + threadNumber.incrementAndGet());
+
+            return thread;
+        };
+
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                queue, namedThreadFactory,
+                (runnable, rejectingExecutor) -> {
+                    lanes.get(lane).rejectedTasks.incrementAndGet();
+                    throw new RejectedExecutionException("The " + lane.getValue() + " lane has no room for more tasks");
+                });
+        // The threads are only kept while the lane is in use
+        executor.allowCoreThreadTimeOut(true);
+
+        return executor;
+    }
+
+    /**
+     * A request admitted to a lane. Closing it more than once only gives the permit back once.
+     */
+    public static class Admission implements AutoCloseable {
+        private final Semaphore permits;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private final AtomicBoolean claimed = new AtomicBoolean(false);
+
+        private Admission(Semaphore permits) {
+            this.permits = permits;
+        }
+
+        /**
+         * Takes over an admission which has been handed over, so it is no longer closed by the timeout. The one who
+         * claimed it must close it.
+         *
+         * @throws WebApplicationException If the admission has been closed already, as it wasn't claimed in time
+         */
+        public void claim() {
+            if (!claimed.compareAndSet(false, true) || closed.get()) {
+                throw new WebApplicationException("The admission to the lane was given back before the response was written",
+                        Response.Status.SERVICE_UNAVAILABLE);
+            }
+        }
+
+        private void closeUnclaimed() {
+            if (claimed.compareAndSet(false, true)) {
+                LOGGER.warn("Closing an admission which wasn't claimed in time");
+                close();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                permits.release();
+            }
+        }
+    }
+
+    private static class LaneState {
+        private final Lane lane;
+        private final int concurrency;
+        private final Semaphore permits;
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong rejectedTasks = new AtomicLong();
+
+        private LaneState(Lane lane, int concurrency, ThreadPoolExecutor executor) {
+            this.lane = lane;
+            this.concurrency = concurrency;
+            this.permits = new Semaphore(concurrency);
+            this.executor = executor;
+        }
+
+        private int getAdmitted() {
+            return concurrency - permits.availablePermits();
+        }
+
+        private double getSaturation() {
+            return concurrency == 0 ? 1 : (double) getAdmitted() / concurrency;
+        }
+    }
+
+}
@@ -35,7 +35,7 @@ import java.sql.Connection;
 import java.sql.SQLException;
 import java.time.Instant;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -61,6 +61,9 @@ public class RecordBean {
     @EJB
     RecordRelationsBean recordRelationsBean;
 
+    @EJB
+    AuthorityCacheBean authorityCacheBean;
+
     private final ObjectPool<MarcXMerger> customMarcXMergerPool = new CustomMarcXMergerPool();
     private final ObjectPool<MarcXMerger> defaultMarcXMergerPool = new DefaultMarcXMergerPool();
 
@@ -284,11 +287,13 @@ public class RecordBean {
             final RawRepoDAO dao = createDAO(conn);
 
             if (recordSimpleBean.recordIsActive(bibliographicRecordId, agencyId)) {
+                final Record record = dao.fetchMergedRecord(bibliographicRecordId, agencyId, merger, false);
+
                 if (doExpand) {
-                    return dao.fetchMergedRecordExpanded(bibliographicRecordId, agencyId, merger, false, keepAutField);
-                } else {
-                    return dao.fetchMergedRecord(bibliographicRecordId, agencyId, merger, false);
+                    expandRecord(record, keepAutField);
                 }
+
+                return record;
             } else {
                 final LinkedList<Record> records = new LinkedList<>();
 
@@ -340,52 +345,47 @@ public class RecordBean {
         }
     }
 
+    /**
+     * Expands the record with its authority records. The authority records are taken from the shared authority
+     * cache, so the popular ones aren't fetched over and over.
+     */
     void expandRecord(Record record, boolean keepAutField) throws
             RawRepoException, RecordNotFoundException, InternalServerException {
         final RecordId recordId = record.getId();
         final String bibliographicRecordId = recordId.getBibliographicRecordId();
         final int agencyId = recordId.getAgencyId();
 
-        try (Connection conn = dataSource.getConnection()) {
-            if (recordSimpleBean.recordIsActive(bibliographicRecordId, agencyId)) {
-                final RawRepoDAO dao = createDAO(conn);
-
-                dao.expandRecord(record, keepAutField);
-            } else {
-                RecordId expandableRecordId = null;
+        RecordId expandableRecordId = null;
 
-                // Only these agencies can have authority parents
-                final List<Integer> expandableAgencies = Arrays.asList(190002, 190004, 870970, 870971, 870974);
+        // Only these agencies can have authority parents
+        final List<Integer> expandableAgencies = Arrays.asList(190002, 190004, 870970, 870971, 870974);
 
-                if (expandableAgencies.contains(recordId.agencyId)) {
-                    expandableRecordId = recordId;
-                } else {
-                    final Set<RecordId> relationsSiblings = recordRelationsBean.getRelationsSiblingsFromMe(bibliographicRecordId, agencyId);
-                    for (int expandableAgencyId : expandableAgencies) {
-                        final RecordId potentialExpandableRecordId = new RecordId(bibliographicRecordId, expandableAgencyId);
-                        if (relationsSiblings.contains(potentialExpandableRecordId)) {
-                            expandableRecordId = potentialExpandableRecordId;
-                            break;
-                        }
-                    }
+        if (expandableAgencies.contains(recordId.agencyId)) {
+            expandableRecordId = recordId;
+        } else {
+            final Set<RecordId> relationsSiblings = recordRelationsBean.getRelationsSiblingsFromMe(bibliographicRecordId, agencyId);
+            for (int expandableAgencyId : expandableAgencies) {
+                final RecordId potentialExpandableRecordId = new RecordId(bibliographicRecordId, expandableAgencyId);
+                if (relationsSiblings.contains(potentialExpandableRecordId)) {
+                    expandableRecordId = potentialExpandableRecordId;
+                    break;
                 }
+            }
+        }
 
-                if (expandableRecordId != null) {
-                    final Set<RecordId> autParents = recordRelationsBean.getRelationsParents(expandableRecordId.bibliographicRecordId, expandableRecordId.agencyId);
-                    final Map<String, Record> autRecords = new HashMap<>();
-
-                    for (RecordId parentId : autParents) {
-                        if ("870979".equals(Integer.toString(parentId.getAgencyId()))) {
-                            autRecords.put(parentId.getBibliographicRecordId(), recordSimpleBean.fetchRecord(parentId.getBibliographicRecordId(), parentId.getAgencyId()));
-                        }
-                    }
+        if (expandableRecordId != null) {
+            final Set<RecordId> autParents = recordRelationsBean.getRelationsParents(expandableRecordId.bibliographicRecordId, expandableRecordId.agencyId);
+            final Set<String> autBibliographicRecordIds = new HashSet<>();
 
-                    ExpandCommonMarcRecord.expandRecord(record, autRecords, keepAutField);
+            for (RecordId parentId : autParents) {
+                if (870979 == parentId.getAgencyId()) {
+                    autBibliographicRecordIds.add(parentId.getBibliographicRecordId());
                 }
             }
-        } catch (SQLException ex) {
-            LOGGER.error(ex.getMessage(), ex);
-            throw new RawRepoException(ex.getMessage(), ex);
+
+            final Map<String, byte[]> autRecords = authorityCacheBean.getAuthorityRecords(autBibliographicRecordIds);
+
+            record.setContent(ExpandCommonMarcRecord.expandRecord(record.getContent(), autRecords, keepAutField));
         }
     }
 
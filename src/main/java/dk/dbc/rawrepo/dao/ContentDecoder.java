@@ -0,0 +1,32 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dao;
+
+import java.util.Base64;
+
+/**
+ * Decodes the content column of the records table.
+ * <p>
+ * The content is stored as base64 text. Decoding it here instead of with decode() in the query moves the work from
+ * the database to the service. The text column is read with getBytes, which gives the bytes the driver received, so
+ * the base64 text is never turned into a String.
+ */
+public class ContentDecoder {
+    // PostgreSQL's encode(..., 'base64') inserts a line break every 76 chars which the MIME decoder skips
+    private static final Base64.Decoder DECODER = Base64.getMimeDecoder();
+
+    private ContentDecoder() {
+    }
+
+    public static byte[] decode(byte[] content) {
+        if (content == null) {
+            return null;
+        }
+
+        return DECODER.decode(content);
+    }
+
+}
@@ -5,46 +5,101 @@
 
 package dk.dbc.rawrepo.dao;
 
+import dk.dbc.rawrepo.dump.AgencyParams;
+import dk.dbc.rawrepo.dump.SortedIdCursor;
 import dk.dbc.util.StopwatchInterceptor;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
 import javax.annotation.Resource;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 import javax.interceptor.Interceptors;
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.Map;
 
 @Interceptors(StopwatchInterceptor.class)
 @Stateless
 public class HoldingsItemsBean {
     private static final XLogger LOGGER = XLoggerFactory.getXLogger(HoldingsItemsBean.class);
 
+    private static final int CURSOR_FETCH_SIZE = 10000;
+
     @Resource(lookup = "jdbc/holdings")
     private DataSource dataSource;
 
-    public Map<String, String> getRecordIdsWithHolding(int agencyId) throws SQLException {
-        HashMap<String, String> res = new HashMap<>();
+    /**
+     * Opens a cursor over the bibliographicrecordids the agency has holdings on, ordered by code point so the ids can
+     * be merge-joined with the record ids from rawrepo. The caller must close the cursor.
+     *
+     * @param agencyId    The agency to find holdings for
+     * @param params      The shard to find holdings for, if the dump is sharded
+     * @param resumeAfter Only ids after this one are returned, or null for all ids
+     * @return Cursor over bibliographicrecordid, all with the type "holdings"
+     * @throws SQLException If the query fails
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public SortedIdCursor openRecordIdsWithHoldingCursor(int agencyId, AgencyParams params, String resumeAfter) throws SQLException {
+        String query = "SELECT DISTINCT bibliographicrecordid COLLATE \"C\" FROM holdingsitemscollection WHERE agencyid=?";
+
+        if (params.isSharded()) {
+            query += RawRepoBean.SHARD_CONDITION;
+        }
+
+        if (resumeAfter != null) {
+            query += " AND bibliographicrecordid COLLATE \"C\" > ?";
+        }
+
+        query += " ORDER BY 1";
+
+        final Connection connection = dataSource.getConnection();
+        try {
+            // PostgreSQL only uses a cursor for a fetch size inside a transaction
+            connection.setAutoCommit(false);
+            final PreparedStatement stmt = connection.prepareStatement(query);
+            stmt.setFetchSize(CURSOR_FETCH_SIZE);
+            int i = 0;
+            stmt.setInt(++i, agencyId);
+            if (params.isSharded()) {
+                stmt.setInt(++i, params.getShardCount());
+                stmt.setInt(++i, params.getShard());
+            }
+            if (resumeAfter != null) {
+                stmt.setString(++i, resumeAfter);
+            }
+
+            LOGGER.info("Opening holdings cursor for agencyId {}", agencyId);
+
+            return new SortedIdCursor(connection, stmt, "holdings");
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    public int countRecordIdsWithHolding(int agencyId, AgencyParams params) throws SQLException {
+        String query = "SELECT COUNT(DISTINCT(bibliographicrecordid)) FROM holdingsitemscollection WHERE agencyid=?";
+
+        if (params.isSharded()) {
+            query += RawRepoBean.SHARD_CONDITION;
+        }
 
         try (Connection connection = dataSource.getConnection();
-             PreparedStatement stmt = connection.prepareStatement("SELECT DISTINCT(bibliographicrecordid) FROM holdingsitemscollection WHERE agencyid=?")) {
+             PreparedStatement stmt = connection.prepareStatement(query)) {
             stmt.setInt(1, agencyId);
+            if (params.isSharded()) {
+                stmt.setInt(2, params.getShardCount());
+                stmt.setInt(3, params.getShard());
+            }
             try (ResultSet resultSet = stmt.executeQuery()) {
-                while (resultSet.next()) {
-                    String bibliographicRecordId = resultSet.getString(1);
-                    res.put(bibliographicRecordId, "holdings");
-                }
+                resultSet.next();
+                return resultSet.getInt(1);
             }
         }
-
-        LOGGER.info("Found {} records in holdingsitemscollection for agencyId {}", res.size(), agencyId);
-
-        return res;
     }
 
 }
@@ -7,15 +7,25 @@ package dk.dbc.rawrepo.dao;
 
 import dk.dbc.rawrepo.RawRepoException;
 import dk.dbc.rawrepo.RecordId;
+import dk.dbc.rawrepo.dump.AgencyParams;
+import dk.dbc.rawrepo.dump.DumpCancellation;
+import dk.dbc.rawrepo.dump.DumpSnapshot;
+import dk.dbc.rawrepo.dump.MimeTypeCount;
+import dk.dbc.rawrepo.dump.RecordCopyStream;
 import dk.dbc.rawrepo.dump.RecordItem;
 import dk.dbc.rawrepo.dump.RecordStatus;
+import dk.dbc.rawrepo.dump.SliceTimings;
+import dk.dbc.rawrepo.dump.SortedIdCursor;
 import dk.dbc.util.StopwatchInterceptor;
 import dk.dbc.util.Timed;
+import org.postgresql.PGConnection;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
 import javax.annotation.Resource;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
 import javax.interceptor.Interceptors;
 import javax.sql.DataSource;
 import java.sql.Connection;
@@ -23,13 +33,16 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 @Interceptors(StopwatchInterceptor.class)
 @Stateless
@@ -37,10 +50,25 @@ public class RawRepoBean {
     private static final XLogger LOGGER = XLoggerFactory.getXLogger(RawRepoBean.class);
 
     private static final String QUERY_BIBLIOGRAPHICRECORDID_BY_AGENCY_ALL = "SELECT bibliographicrecordid, mimetype FROM records WHERE agencyid=?";
+    private static final String QUERY_MIMETYPE_COUNT_BY_AGENCY = "SELECT mimetype, COUNT(*), SUM(pg_column_size(content)) FROM records WHERE agencyid=?";
     private static final String QUERY_AGENCIES = "SELECT DISTINCT(agencyid) FROM records";
     private static final String SET_SERVER_URL_CONFIGURATION = "INSERT INTO configurations (key, value) VALUES (?, ?) ON CONFLICT (key) DO NOTHING";
     private static final String SELECT_RELATIONS_PARENTS = "SELECT refer_bibliographicrecordid, refer_agencyid FROM relations WHERE bibliographicrecordid=? AND agencyid=? AND refer_bibliographicrecordid <> bibliographicrecordid";
-    private static final String SELECT_CONTENT_FROM_RECORDS = "SELECT convert_from(decode(content, 'base64'), 'UTF-8') FROM records WHERE bibliographicrecordid=? AND agencyid=?";
+    private static final String SELECT_CONTENT_FROM_RECORDS = "SELECT content FROM records WHERE bibliographicrecordid=? AND agencyid=?";
+    private static final String SELECT_RELATIONS_PARENTS_BULK = "SELECT bibliographicrecordid, agencyid, refer_bibliographicrecordid, refer_agencyid FROM relations WHERE (bibliographicrecordid, agencyid) IN (SELECT * FROM unnest(?::text[], ?::int[])) AND refer_bibliographicrecordid <> bibliographicrecordid";
+    private static final String SELECT_RELATIONS_SIBLINGS_FROM_ME_BULK = "SELECT bibliographicrecordid, refer_agencyid FROM relations WHERE agencyid=? AND bibliographicrecordid = ANY(?) AND refer_bibliographicrecordid = bibliographicrecordid";
+    private static final String SELECT_MODIFIED_FROM_RECORDS_BULK = "SELECT bibliographicrecordid, modified FROM records WHERE agencyid=? AND bibliographicrecordid = ANY(?)";
+    private static final String SELECT_CONTENT_FROM_RECORDS_BULK = "SELECT bibliographicrecordid, content FROM records WHERE agencyid=? AND bibliographicrecordid = ANY(?)";
+    private static final String SELECT_MIMETYPE_FROM_RECORDS_BULK = "SELECT bibliographicrecordid, mimetype FROM records WHERE agencyid=? AND bibliographicrecordid = ANY(?)";
+    private static final String SELECT_LOCAL_CONTENT_BULK = "SELECT local.bibliographicrecordid, null, local.content FROM records AS local WHERE local.agencyid=? AND local.bibliographicrecordid = ANY(?)";
+    private static final String SELECT_ENRICHMENT_CONTENT_BULK = "SELECT common.bibliographicrecordid, common.content, local.content FROM records AS common, records AS local WHERE common.agencyid=? AND local.agencyid=? AND common.bibliographicrecordid = local.bibliographicrecordid AND local.bibliographicrecordid = ANY(?)";
+
+    private static final int CURSOR_FETCH_SIZE = 10000;
+
+    // Shard of a bibliographicrecordid. md5 gives the same hash in every PostgreSQL version and in both rawrepo and the
+    // holdings database, unlike hashtext. The first 7 hex digits are 28 bits, so the hash is never negative.
+    static final String SHARD_HASH = "('x' || substr(md5(bibliographicrecordid), 1, 7))::bit(28)::int";
+    static final String SHARD_CONDITION = " AND " + SHARD_HASH + " % ? = ?";
 
     @Resource(lookup = "jdbc/rawrepo")
     private DataSource dataSource;
@@ -60,10 +88,10 @@ public class RawRepoBean {
                 query += " AND deleted = 'f'";
             }
 
-            try (Connection connection = dataSource.getConnection();
+            try (Connection connection = getConnection();
                  PreparedStatement stmt = connection.prepareStatement(query)) {
                 stmt.setInt(1, agencyId);
-                try (ResultSet resultSet = stmt.executeQuery()) {
+                try (ResultSet resultSet = executeQuery(stmt)) {
                     while (resultSet.next()) {
                         String bibliographicRecordId = resultSet.getString(1);
                         String mimeType = resultSet.getString(2);
@@ -79,54 +107,37 @@ public class RawRepoBean {
         }
     }
 
+    /**
+     * Finds the mimetype of many records of the same agency in a single query
+     *
+     * @param bibliographicRecordIds The records
+     * @param agencyId               The agency of the records
+     * @return The mimetype of each record. Records which don't exist are not in the map.
+     * @throws RawRepoException On database errors
+     */
     public Map<String, String> getMimeTypeForRecordId(List<String> bibliographicRecordIds, int agencyId) throws RawRepoException {
-        Map<String, String> res = new HashMap<>();
+        final Map<String, String> result = new HashMap<>();
 
-        final int sliceSize = 500;
-        int index = 0;
+        if (bibliographicRecordIds.isEmpty()) {
+            return result;
+        }
 
         LOGGER.info("Getting mimetype of {} records", bibliographicRecordIds.size());
 
-        while (index < bibliographicRecordIds.size()) {
-            LOGGER.info("Checking record slice: {} to {}", index, index + sliceSize);
-            Set<String> slice = bibliographicRecordIds.stream()
-                    .skip(index)
-                    .limit(sliceSize)
-                    .collect(Collectors.toSet());
-
-            List<String> placeHolders = new ArrayList<>();
-            for (int i = 0; i < slice.size(); i++) {
-                placeHolders.add("?");
-            }
-
-            String query = "SELECT bibliographicrecordid, mimetype" +
-                    "         FROM records " +
-                    "        WHERE bibliographicrecordid IN (" + String.join(",", placeHolders) + ")" +
-                    "          AND agencyid = ?";
-
-            int pos = 1;
-
-            try (Connection connection = dataSource.getConnection();
-                 PreparedStatement preparedStatement = connection.prepareStatement(query)) {
-
-                for (String bibliographicRecordId : slice) {
-                    preparedStatement.setString(pos++, bibliographicRecordId);
-                }
-
-                preparedStatement.setInt(pos++, agencyId);
-
-                ResultSet resultSet = preparedStatement.executeQuery();
+        try (Connection connection = getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_MIMETYPE_FROM_RECORDS_BULK)) {
+            stmt.setInt(1, agencyId);
+            stmt.setArray(2, connection.createArrayOf("text", bibliographicRecordIds.toArray()));
+            try (ResultSet resultSet = executeQuery(stmt)) {
                 while (resultSet.next()) {
-                    res.put(resultSet.getString(1), resultSet.getString(2));
+                    result.put(resultSet.getString(1), resultSet.getString(2));
                 }
-            } catch (SQLException ex) {
-                LOGGER.info("Caught exception: {}", ex);
-                throw new RawRepoException("Error during getBibliographicRecordIdsForEnrichmentAgency", ex);
             }
-            index += sliceSize;
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex);
+            throw new RawRepoException("Error during getMimeTypeForRecordId", ex);
         }
 
-        return res;
+        return result;
     }
 
     @Timed
@@ -160,7 +171,7 @@ public class RawRepoBean {
                 query += " AND modified >= ? ::timestamp AT TIME ZONE 'CET'";
             }
 
-            try (Connection connection = dataSource.getConnection();
+            try (Connection connection = getConnection();
                  PreparedStatement stmt = connection.prepareStatement(query)) {
                 int i = 0;
                 stmt.setInt(++i, agencyId);
@@ -172,7 +183,7 @@ public class RawRepoBean {
                     stmt.setTimestamp(++i, Timestamp.valueOf(modifiedBefore));
                 if (hasValue(modifiedAfter))
                     stmt.setTimestamp(++i, Timestamp.valueOf(modifiedAfter));
-                try (ResultSet resultSet = stmt.executeQuery()) {
+                try (ResultSet resultSet = executeQuery(stmt)) {
                     while (resultSet.next()) {
                         String bibliographicRecordId = resultSet.getString(1);
                         String mimeType = resultSet.getString(2);
@@ -188,141 +199,382 @@ public class RawRepoBean {
         }
     }
 
-    @Timed
-    public List<Integer> getAgencies() throws RawRepoException {
-        try {
-            ArrayList<Integer> ret = new ArrayList<>();
+    /**
+     * Returns the next slice of bibliographicrecordids for the agency using keyset pagination, i.e. the slice
+     * contains the first (at most) sliceSize ids, ordered by code point, which come after the given id.
+     * <p>
+     * Unlike getBibliographicRecordIdForAgency the full id list is never loaded into memory and every slice costs
+     * the same regardless of how far into the agency the dump has come. That relies on an index on records of
+     * (agencyid, bibliographicrecordid COLLATE "C"), so each slice is a range scan of the index which stops after
+     * sliceSize rows. The ids are compared and ordered with COLLATE "C" like the other cursors of the dump, so a
+     * resumeAfter checkpoint means the same in all of them, whatever the collation of the database is.
+     *
+     * @param agencyId          The agency to find records for
+     * @param params            Filter on deleted, created and modified
+     * @param excludedMimeTypes Records with these mimetypes are skipped
+     * @param after             The last bibliographicrecordid of the previous slice or null for the first slice
+     * @param sliceSize         Max amount of ids to return
+     * @return Ordered map of bibliographicrecordid and mimetype
+     * @throws RawRepoException If the query fails
+     */
+    public Map<String, String> getBibliographicRecordIdForAgencySlice(int agencyId, AgencyParams params, List<String> excludedMimeTypes, String after, int sliceSize) throws RawRepoException {
+        final Map<String, String> ret = new LinkedHashMap<>();
+
+        String query = QUERY_BIBLIOGRAPHICRECORDID_BY_AGENCY_ALL + getFilterClause(params, excludedMimeTypes);
+
+        if (after != null) {
+            query += " AND bibliographicrecordid COLLATE \"C\" > ?";
+        }
 
-            try (Connection connection = dataSource.getConnection();
-                 PreparedStatement stmt = connection.prepareStatement(QUERY_AGENCIES)) {
-                try (ResultSet resultSet = stmt.executeQuery()) {
-                    while (resultSet.next()) {
-                        int agencyId = resultSet.getInt(1);
-                        ret.add(agencyId);
-                    }
+        query += " ORDER BY bibliographicrecordid COLLATE \"C\" LIMIT ?";
+
+        try (Connection connection = getConnection();
+             PreparedStatement stmt = connection.prepareStatement(query)) {
+            int i = setFilterParameters(stmt, agencyId, params, excludedMimeTypes);
+            if (after != null) {
+                stmt.setString(++i, after);
+            }
+            stmt.setInt(++i, sliceSize);
+            try (ResultSet resultSet = executeQuery(stmt)) {
+                while (resultSet.next()) {
+                    ret.put(resultSet.getString(1), resultSet.getString(2));
                 }
             }
-
-            return ret;
         } catch (SQLException ex) {
-            throw new RawRepoException("Error getting agencies", ex);
+            throw new RawRepoException("Error getting bibliographicrecordids", ex);
         }
+
+        return ret;
     }
 
-    public void setConfigurations(String key, String value) throws RawRepoException {
+    /**
+     * Opens a cursor over the bibliographicrecordids of the agency along with their mimetype, ordered by code point
+     * so the ids can be merge-joined with ids from another database. The caller must close the cursor.
+     *
+     * @param agencyId    The agency to find records for
+     * @param params      Filter on deleted, created and modified
+     * @param resumeAfter Only ids after this one are returned, or null for all ids
+     * @return Cursor over bibliographicrecordid and mimetype
+     * @throws RawRepoException If the query fails
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public SortedIdCursor openBibliographicRecordIdCursor(int agencyId, AgencyParams params, String resumeAfter) throws RawRepoException {
+        String query = QUERY_BIBLIOGRAPHICRECORDID_BY_AGENCY_ALL + getFilterClause(params, Collections.emptyList());
+
+        if (resumeAfter != null) {
+            query += " AND bibliographicrecordid COLLATE \"C\" > ?";
+        }
+
+        query += " ORDER BY bibliographicrecordid COLLATE \"C\"";
+
+        Connection connection = null;
         try {
-            try (Connection connection = dataSource.getConnection();
-                 PreparedStatement stmt = connection.prepareStatement(SET_SERVER_URL_CONFIGURATION)) {
-                stmt.setString(1, key);
-                stmt.setString(2, value);
-                stmt.execute();
+            connection = getConnection();
+            // PostgreSQL only uses a cursor for a fetch size inside a transaction
+            connection.setAutoCommit(false);
+            final PreparedStatement stmt = connection.prepareStatement(query);
+            stmt.setFetchSize(CURSOR_FETCH_SIZE);
+            int i = setFilterParameters(stmt, agencyId, params, Collections.emptyList());
+            if (resumeAfter != null) {
+                stmt.setString(++i, resumeAfter);
             }
+
+            return new SortedIdCursor(connection, stmt, null);
         } catch (SQLException ex) {
-            LOGGER.info("Caught exception: {}", ex);
-            throw new RawRepoException("Error updating configurations", ex);
+            closeQuietly(connection);
+            throw new RawRepoException("Error getting bibliographicrecordids", ex);
         }
     }
 
-    public Set<String> getRawrepoRecordsIdsWithHoldings(Set<String> bibliographicRecordIds, int agencyId) throws RawRepoException {
-        Set<String> res = new HashSet<>();
+    /**
+     * Starts a COPY of the records of the agency ordered by code point. This is for dumps where the records are
+     * written exactly as they are stored, which makes reading them the main part of the work. The caller must close
+     * the stream.
+     *
+     * @param agencyId    The agency to copy records for
+     * @param params      Filter on deleted, created and modified
+     * @param resumeAfter Only records after this one are copied, or null for all records
+     * @param sliceSize   The number of records in each slice of the stream
+     * @return Stream of the records with their content
+     * @throws RawRepoException If the copy can't be started
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public RecordCopyStream openRecordCopy(int agencyId, AgencyParams params, String resumeAfter, int sliceSize) throws RawRepoException {
+        // COPY doesn't take parameters, so the values are written into the query as literals
+        final RecordStatus recordStatus = RecordStatus.fromString(params.getRecordStatus());
+        final StringBuilder query = new StringBuilder("COPY (SELECT bibliographicrecordid, mimetype, content FROM records WHERE agencyid=");
+        query.append(agencyId);
+
+        if (recordStatus == RecordStatus.DELETED) {
+            query.append(" AND deleted = 't'");
+        }
+
+        if (recordStatus == RecordStatus.ACTIVE) {
+            query.append(" AND deleted = 'f'");
+        }
+
+        if (hasValue(params.getCreatedTo())) {
+            query.append(" AND created < ").append(literal(Timestamp.valueOf(params.getCreatedTo()).toString())).append(" ::timestamp AT TIME ZONE 'CET'");
+        }
 
-        final int sliceSize = 500;
-        int index = 0;
+        if (hasValue(params.getCreatedFrom())) {
+            query.append(" AND created >= ").append(literal(Timestamp.valueOf(params.getCreatedFrom()).toString())).append(" ::timestamp AT TIME ZONE 'CET'");
+        }
 
-        LOGGER.info("Checking a total of {} holdingsitems in rawrepo", bibliographicRecordIds.size());
+        if (hasValue(params.getModifiedTo())) {
+            query.append(" AND modified < ").append(literal(Timestamp.valueOf(params.getModifiedTo()).toString())).append(" ::timestamp AT TIME ZONE 'CET'");
+        }
 
-        while (index < bibliographicRecordIds.size()) {
-            LOGGER.info("Checking holdings slice: {} to {}", index, index + sliceSize);
-            Set<String> slice = bibliographicRecordIds.stream()
-                    .skip(index)
-                    .limit(sliceSize)
-                    .collect(Collectors.toSet());
+        if (hasValue(params.getModifiedFrom())) {
+            query.append(" AND modified >= ").append(literal(Timestamp.valueOf(params.getModifiedFrom()).toString())).append(" ::timestamp AT TIME ZONE 'CET'");
+        }
 
-            List<String> placeHolders = new ArrayList<>();
-            for (int i = 0; i < slice.size(); i++) {
-                placeHolders.add("?");
-            }
+        if (params.isSharded()) {
+            query.append(" AND ").append(SHARD_HASH).append(" % ").append(params.getShardCount()).append(" = ").append(params.getShard());
+        }
 
-            String query = "SELECT bibliographicrecordid" +
-                    "         FROM records " +
-                    "        WHERE bibliographicrecordid IN (" + String.join(",", placeHolders) + ")" +
-                    "          AND agencyid in (870970, ?)";
+        if (resumeAfter != null) {
+            query.append(" AND bibliographicrecordid COLLATE \"C\" > ").append(literal(resumeAfter));
+        }
 
-            int pos = 1;
+        query.append(" ORDER BY bibliographicrecordid COLLATE \"C\") TO STDOUT");
 
-            try (Connection connection = dataSource.getConnection();
-                 PreparedStatement preparedStatement = connection.prepareStatement(query)) {
+        Connection connection = null;
+        DumpCancellation.Registration registration = null;
+        try {
+            connection = getConnection();
+            final PGConnection pgConnection = connection.unwrap(PGConnection.class);
+            // The copy runs until the stream is closed, and a cancel request is how a copy is stopped while it runs
+            registration = DumpCancellation.registerBound(pgConnection::cancelQuery);
 
-                for (String bibliographicRecordId : slice) {
-                    preparedStatement.setString(pos++, bibliographicRecordId);
-                }
+            return new RecordCopyStream(connection, pgConnection.getCopyAPI().copyOut(query.toString()), sliceSize, registration);
+        } catch (SQLException ex) {
+            if (registration != null) {
+                registration.close();
+            }
+            closeQuietly(connection);
+            throw new RawRepoException("Error starting copy of records", ex);
+        }
+    }
 
-                preparedStatement.setInt(pos++, agencyId);
+    /**
+     * Exports a snapshot of the database for a dump. The caller must close the snapshot.
+     *
+     * @return The snapshot
+     * @throws RawRepoException If the snapshot can't be exported
+     */
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public DumpSnapshot exportSnapshot() throws RawRepoException {
+        try {
+            return DumpSnapshot.export(dataSource);
+        } catch (SQLException ex) {
+            throw new RawRepoException("Error exporting snapshot", ex);
+        }
+    }
 
-                ResultSet resultSet = preparedStatement.executeQuery();
+    /**
+     * Counts the records of the agency per mimetype. Only the size of the stored content is read, so the content
+     * itself is never fetched from TOAST.
+     *
+     * @param agencyId The agency to count records for
+     * @param params   Filter on deleted, created and modified
+     * @return The count of each mimetype the agency has records with
+     * @throws RawRepoException If the query fails
+     */
+    public List<MimeTypeCount> countMimeTypesForAgency(int agencyId, AgencyParams params) throws RawRepoException {
+        final List<MimeTypeCount> ret = new ArrayList<>();
+        final String query = QUERY_MIMETYPE_COUNT_BY_AGENCY + getFilterClause(params, Collections.emptyList()) + " GROUP BY mimetype ORDER BY mimetype";
+
+        try (Connection connection = getConnection();
+             PreparedStatement stmt = connection.prepareStatement(query)) {
+            setFilterParameters(stmt, agencyId, params, Collections.emptyList());
+            try (ResultSet resultSet = executeQuery(stmt)) {
                 while (resultSet.next()) {
-                    res.add(resultSet.getString(1));
+                    ret.add(new MimeTypeCount(resultSet.getString(1), resultSet.getLong(2), resultSet.getLong(3)));
                 }
-            } catch (SQLException ex) {
-                LOGGER.info("Caught exception: {}", ex);
-                throw new RawRepoException("Error during getBibliographicRecordIdsForEnrichmentAgency", ex);
             }
-            index += sliceSize;
+        } catch (SQLException ex) {
+            throw new RawRepoException("Error counting mimetypes", ex);
         }
 
-        LOGGER.info("Found {} holdings item records in rawrepo", res.size());
+        return ret;
+    }
 
-        return res;
+    private String getFilterClause(AgencyParams params, List<String> excludedMimeTypes) {
+        final RecordStatus recordStatus = RecordStatus.fromString(params.getRecordStatus());
+        final StringBuilder query = new StringBuilder();
+
+        if (recordStatus == RecordStatus.DELETED) {
+            query.append(" AND deleted = 't'");
+        }
+
+        if (recordStatus == RecordStatus.ACTIVE) {
+            query.append(" AND deleted = 'f'");
+        }
+
+        if (hasValue(params.getCreatedTo())) {
+            query.append(" AND created < ? ::timestamp AT TIME ZONE 'CET'");
+        }
+
+        if (hasValue(params.getCreatedFrom())) {
+            query.append(" AND created >= ? ::timestamp AT TIME ZONE 'CET'");
+        }
+
+        if (hasValue(params.getModifiedTo())) {
+            query.append(" AND modified < ? ::timestamp AT TIME ZONE 'CET'");
+        }
+
+        if (hasValue(params.getModifiedFrom())) {
+            query.append(" AND modified >= ? ::timestamp AT TIME ZONE 'CET'");
+        }
+
+        for (int i = 0; i < excludedMimeTypes.size(); i++) {
+            query.append(" AND mimetype <> ?");
+        }
+
+        if (params.isSharded()) {
+            query.append(SHARD_CONDITION);
+        }
+
+        return query.toString();
     }
 
-    public List<RecordItem> getDecodedContent(List<String> bibliographicRecordIds, Integer commonAgencyId, Integer localAgencyId) throws RawRepoException {
-        List<RecordItem> res = new ArrayList<>();
-        List<String> placeHolders = new ArrayList<>();
-        for (int i = 0; i < bibliographicRecordIds.size(); i++) {
-            placeHolders.add("?");
+    private int setFilterParameters(PreparedStatement stmt, int agencyId, AgencyParams params, List<String> excludedMimeTypes) throws SQLException {
+        int i = 0;
+        stmt.setInt(++i, agencyId);
+        if (hasValue(params.getCreatedTo()))
+            stmt.setTimestamp(++i, Timestamp.valueOf(params.getCreatedTo()));
+        if (hasValue(params.getCreatedFrom()))
+            stmt.setTimestamp(++i, Timestamp.valueOf(params.getCreatedFrom()));
+        if (hasValue(params.getModifiedTo()))
+            stmt.setTimestamp(++i, Timestamp.valueOf(params.getModifiedTo()));
+        if (hasValue(params.getModifiedFrom()))
+            stmt.setTimestamp(++i, Timestamp.valueOf(params.getModifiedFrom()));
+        for (String mimeType : excludedMimeTypes) {
+            stmt.setString(++i, mimeType);
+        }
+        if (params.isSharded()) {
+            stmt.setInt(++i, params.getShardCount());
+            stmt.setInt(++i, params.getShard());
+        }
+
+        return i;
+    }
+
+    // A dump which reads from a snapshot has bound a connection to the thread, which must be used for all reads
+    private Connection getConnection() throws SQLException {
+        final Connection connection = DumpSnapshot.getBoundConnection();
+
+        if (connection != null) {
+            return connection;
+        }
+
+        final long started = System.nanoTime();
+        try {
+            return dataSource.getConnection();
+        } finally {
+            SliceTimings.addPoolWaitTime(System.nanoTime() - started);
         }
+    }
+
+    // The queries of a dump are cancelled if the dump is. Results are read by executeQuery unless a fetch size is set,
+    // so the query is done when it returns, and the time it took counts as database time for the dump tuning.
+    private static ResultSet executeQuery(PreparedStatement stmt) throws SQLException {
+        final long started = System.nanoTime();
+        try (DumpCancellation.Registration registration = DumpCancellation.registerStatement(stmt)) {
+            return stmt.executeQuery();
+        } finally {
+            SliceTimings.addDatabaseTime(System.nanoTime() - started);
+        }
+    }
+
+    private static String literal(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.warn("Failed to close connection", e);
+            }
+        }
+    }
+
+    @Timed
+    public List<Integer> getAgencies() throws RawRepoException {
+        try {
+            ArrayList<Integer> ret = new ArrayList<>();
+
+            try (Connection connection = getConnection();
+                 PreparedStatement stmt = connection.prepareStatement(QUERY_AGENCIES)) {
+                try (ResultSet resultSet = executeQuery(stmt)) {
+                    while (resultSet.next()) {
+                        int agencyId = resultSet.getInt(1);
+                        ret.add(agencyId);
+                    }
+                }
+            }
+
+            return ret;
+        } catch (SQLException ex) {
+            throw new RawRepoException("Error getting agencies", ex);
+        }
+    }
+
+    public void setConfigurations(String key, String value) throws RawRepoException {
+        try {
+            try (Connection connection = getConnection();
+                 PreparedStatement stmt = connection.prepareStatement(SET_SERVER_URL_CONFIGURATION)) {
+                stmt.setString(1, key);
+                stmt.setString(2, value);
+                stmt.execute();
+            }
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex);
+            throw new RawRepoException("Error updating configurations", ex);
+        }
+    }
 
-        String query;
+    /**
+     * Fetches the content of many local records, or of many enrichments together with their common records, in a
+     * single query
+     *
+     * @param bibliographicRecordIds The records
+     * @param commonAgencyId         The agency of the common records or null for local records
+     * @param localAgencyId          The agency of the local records or enrichments
+     * @return The decoded content of the records which exist
+     * @throws RawRepoException On database errors
+     */
+    public List<RecordItem> getDecodedContent(List<String> bibliographicRecordIds, Integer commonAgencyId, Integer localAgencyId) throws RawRepoException {
+        final List<RecordItem> res = new ArrayList<>();
 
-        // Local record
-        if (commonAgencyId == null) {
-            query = " SELECT local.bibliographicrecordid, " +
-                    "        null, " +
-                    "        convert_from(decode(local.content, 'base64'), 'UTF-8')" +
-                    "   FROM records as local" +
-                    "  WHERE local.agencyid=?";
-        } else { // Enrichment record
-            query = " SELECT common.bibliographicrecordid, " +
-                    "        convert_from(decode(common.content, 'base64'), 'UTF-8')," +
-                    "        convert_from(decode(local.content, 'base64'), 'UTF-8')" +
-                    "   FROM records as common, records as local" +
-                    "  WHERE common.agencyid=?" +
-                    "    AND local.agencyid=?" +
-                    "    AND common.bibliographicrecordid = local.bibliographicrecordid";
+        if (bibliographicRecordIds.isEmpty()) {
+            return res;
         }
 
-        query += "       AND local.bibliographicrecordid in (" + String.join(",", placeHolders) + ")";
+        // The array keeps the statement text the same for every slice, so the server can reuse the plan
+        final String query = commonAgencyId == null ? SELECT_LOCAL_CONTENT_BULK : SELECT_ENRICHMENT_CONTENT_BULK;
 
         int pos = 1;
 
-        try (Connection connection = dataSource.getConnection();
+        try (Connection connection = getConnection();
              PreparedStatement preparedStatement = connection.prepareStatement(query)) {
             if (commonAgencyId != null) {
                 preparedStatement.setInt(pos++, commonAgencyId);
             }
             preparedStatement.setInt(pos++, localAgencyId);
+            preparedStatement.setArray(pos, connection.createArrayOf("text", bibliographicRecordIds.toArray()));
 
-            for (String bibliographicRecordId : bibliographicRecordIds) {
-                preparedStatement.setString(pos++, bibliographicRecordId);
-            }
-
-            ResultSet resultSet = preparedStatement.executeQuery();
-            while (resultSet.next()) {
-                res.add(new RecordItem(resultSet.getString(1), resultSet.getBytes(2), resultSet.getBytes(3)));
+            try (ResultSet resultSet = executeQuery(preparedStatement)) {
+                while (resultSet.next()) {
+                    res.add(new RecordItem(resultSet.getString(1), ContentDecoder.decode(resultSet.getBytes(2)), ContentDecoder.decode(resultSet.getBytes(3))));
+                }
             }
         } catch (SQLException ex) {
             LOGGER.info("Caught exception: {}", ex);
-            throw new RawRepoException("Error during getBibliographicRecordIdsForEnrichmentAgency", ex);
+            throw new RawRepoException("Error during getDecodedContent", ex);
         }
 
         return res;
@@ -330,11 +582,11 @@ public class RawRepoBean {
 
     public Set<RecordId> getRelationsParents(RecordId recordId) throws RawRepoException {
         Set<RecordId> collection = new HashSet<>();
-        try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_RELATIONS_PARENTS)) {
+        try (Connection connection = getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_RELATIONS_PARENTS)) {
             int pos = 1;
             stmt.setString(pos++, recordId.getBibliographicRecordId());
             stmt.setInt(pos, recordId.getAgencyId());
-            try (ResultSet resultSet = stmt.executeQuery()) {
+            try (ResultSet resultSet = executeQuery(stmt)) {
                 while (resultSet.next()) {
                     collection.add(new RecordId(resultSet.getString(1), resultSet.getInt(2)));
                 }
@@ -346,15 +598,149 @@ public class RawRepoBean {
         return collection;
     }
 
+    /**
+     * Same as getRelationsParents but for many records in a single query
+     *
+     * @param recordIds The records to find parents for
+     * @return The parents of each record. Records without parents are not in the map.
+     * @throws RawRepoException On database errors
+     */
+    public Map<RecordId, Set<RecordId>> getRelationsParents(Collection<RecordId> recordIds) throws RawRepoException {
+        final Map<RecordId, Set<RecordId>> result = new HashMap<>();
+
+        if (recordIds.isEmpty()) {
+            return result;
+        }
+
+        final String[] bibliographicRecordIds = new String[recordIds.size()];
+        final Integer[] agencyIds = new Integer[recordIds.size()];
+        int i = 0;
+        for (RecordId recordId : recordIds) {
+            bibliographicRecordIds[i] = recordId.getBibliographicRecordId();
+            agencyIds[i] = recordId.getAgencyId();
+            i++;
+        }
+
+        try (Connection connection = getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_RELATIONS_PARENTS_BULK)) {
+            stmt.setArray(1, connection.createArrayOf("text", bibliographicRecordIds));
+            stmt.setArray(2, connection.createArrayOf("int4", agencyIds));
+            try (ResultSet resultSet = executeQuery(stmt)) {
+                while (resultSet.next()) {
+                    final RecordId recordId = new RecordId(resultSet.getString(1), resultSet.getInt(2));
+                    result.computeIfAbsent(recordId, k -> new HashSet<>()).add(new RecordId(resultSet.getString(3), resultSet.getInt(4)));
+                }
+            }
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex);
+            throw new RawRepoException("Error fetching getRelationsParents relations", ex);
+        }
+
+        return result;
+    }
+
+    /**
+     * Finds the agencies of the sibling relations from the given records, i.e. the records of other agencies with the
+     * same bibliographicrecordid the records point to
+     *
+     * @param agencyId               The agency of the records
+     * @param bibliographicRecordIds The records
+     * @return The sibling agencies of each record. Records without siblings are not in the map.
+     * @throws RawRepoException On database errors
+     */
+    public Map<String, Set<Integer>> getRelationsSiblingsFromMe(int agencyId, Collection<String> bibliographicRecordIds) throws RawRepoException {
+        final Map<String, Set<Integer>> result = new HashMap<>();
+
+        if (bibliographicRecordIds.isEmpty()) {
+            return result;
+        }
+
+        try (Connection connection = getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_RELATIONS_SIBLINGS_FROM_ME_BULK)) {
+            stmt.setInt(1, agencyId);
+            stmt.setArray(2, connection.createArrayOf("text", bibliographicRecordIds.toArray()));
+            try (ResultSet resultSet = executeQuery(stmt)) {
+                while (resultSet.next()) {
+                    result.computeIfAbsent(resultSet.getString(1), k -> new HashSet<>()).add(resultSet.getInt(2));
+                }
+            }
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex);
+            throw new RawRepoException("Error fetching getRelationsSiblingsFromMe relations", ex);
+        }
+
+        return result;
+    }
+
+    /**
+     * Same as fetchRecordContent but for many records of the same agency in a single query
+     *
+     * @param agencyId               The agency of the records
+     * @param bibliographicRecordIds The records
+     * @return The content of each record. Records which don't exist are not in the map.
+     * @throws RawRepoException On database errors
+     */
+    public Map<String, byte[]> fetchRecordContents(int agencyId, Collection<String> bibliographicRecordIds) throws RawRepoException {
+        final Map<String, byte[]> result = new HashMap<>();
+
+        if (bibliographicRecordIds.isEmpty()) {
+            return result;
+        }
+
+        try (Connection connection = getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_CONTENT_FROM_RECORDS_BULK)) {
+            stmt.setInt(1, agencyId);
+            stmt.setArray(2, connection.createArrayOf("text", bibliographicRecordIds.toArray()));
+            try (ResultSet resultSet = executeQuery(stmt)) {
+                while (resultSet.next()) {
+                    result.put(resultSet.getString(1), ContentDecoder.decode(resultSet.getBytes(2)));
+                }
+            }
+
+            return result;
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex.getMessage());
+            throw new RawRepoException("Error fetching records items", ex);
+        }
+    }
+
+    /**
+     * Finds the modified timestamp of many records of the same agency in a single query
+     *
+     * @param agencyId               The agency of the records
+     * @param bibliographicRecordIds The records
+     * @return The modified timestamp of each record. Records which don't exist are not in the map.
+     * @throws RawRepoException On database errors
+     */
+    public Map<String, Instant> getModified(int agencyId, Collection<String> bibliographicRecordIds) throws RawRepoException {
+        final Map<String, Instant> result = new HashMap<>();
+
+        if (bibliographicRecordIds.isEmpty()) {
+            return result;
+        }
+
+        try (Connection connection = getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_MODIFIED_FROM_RECORDS_BULK)) {
+            stmt.setInt(1, agencyId);
+            stmt.setArray(2, connection.createArrayOf("text", bibliographicRecordIds.toArray()));
+            try (ResultSet resultSet = executeQuery(stmt)) {
+                while (resultSet.next()) {
+                    result.put(resultSet.getString(1), resultSet.getTimestamp(2).toInstant());
+                }
+            }
+
+            return result;
+        } catch (SQLException ex) {
+            LOGGER.info("Caught exception: {}", ex.getMessage());
+            throw new RawRepoException("Error fetching modified", ex);
+        }
+    }
+
     public byte[] fetchRecordContent(RecordId recordId) throws RawRepoException {
         byte[] res = null;
-        try (Connection connection = dataSource.getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_CONTENT_FROM_RECORDS)) {
+        try (Connection connection = getConnection(); PreparedStatement stmt = connection.prepareStatement(SELECT_CONTENT_FROM_RECORDS)) {
             int pos = 1;
             stmt.setString(pos++, recordId.getBibliographicRecordId());
             stmt.setInt(pos, recordId.getAgencyId());
-            try (ResultSet resultSet = stmt.executeQuery()) {
+            try (ResultSet resultSet = executeQuery(stmt)) {
                 while (resultSet.next()) {
-                    res = resultSet.getBytes(1);
+                    res = ContentDecoder.decode(resultSet.getBytes(1));
                 }
             }
 
@@ -21,6 +21,10 @@ public class AgencyParams extends Params {
     String createdTo;
     String modifiedFrom;
     String modifiedTo;
+    String resumeAfter;
+    boolean snapshot;
+    Integer shard;
+    Integer shardCount;
 
     public List<Integer> getAgencies() {
         return agencies;
@@ -78,6 +82,99 @@ public class AgencyParams extends Params {
         this.modifiedTo = modifiedTo;
     }
 
+    public String getResumeAfter() {
+        return resumeAfter;
+    }
+
+    public void setResumeAfter(String resumeAfter) {
+        this.resumeAfter = resumeAfter;
+    }
+
+    /**
+     * @return True if all records should be read as they were when the dump started
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    public void setSnapshot(boolean snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public Integer getShard() {
+        return shard;
+    }
+
+    public void setShard(Integer shard) {
+        this.shard = shard;
+    }
+
+    public Integer getShardCount() {
+        return shardCount;
+    }
+
+    public void setShardCount(Integer shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    /**
+     * @return True if only the records of one shard should be dumped
+     */
+    public boolean isSharded() {
+        return shardCount != null && shardCount > 1;
+    }
+
+    @Override
+    boolean isFirstShard() {
+        return !isSharded() || shard == 0;
+    }
+
+    @Override
+    boolean isLastShard() {
+        return !isSharded() || shard == shardCount - 1;
+    }
+
+    /**
+     * @return The agency of the resumeAfter checkpoint or null if the dump is not resumed
+     */
+    Integer resumeAfterAgencyId() {
+        return resumeAfter == null ? null : Integer.parseInt(resumeAfter.substring(0, resumeAfter.indexOf(':')));
+    }
+
+    /**
+     * @return The bibliographicrecordid of the resumeAfter checkpoint or null if the dump is not resumed
+     */
+    String resumeAfterBibliographicRecordId() {
+        return resumeAfter == null ? null : resumeAfter.substring(resumeAfter.indexOf(':') + 1);
+    }
+
+    /**
+     * @param shard The shard of the copy
+     * @return A copy of the params for another shard of the same dump, so the params of a request are left as they
+     * are. The lists are shared with the copy.
+     */
+    AgencyParams forShard(int shard) {
+        final AgencyParams copy = new AgencyParams();
+        copy.outputEncoding = outputEncoding;
+        copy.outputFormat = outputFormat;
+        copy.mode = mode;
+        copy.compression = compression;
+        copy.onError = onError;
+        copy.agencies = agencies;
+        copy.recordStatus = recordStatus;
+        copy.recordType = recordType;
+        copy.createdFrom = createdFrom;
+        copy.createdTo = createdTo;
+        copy.modifiedFrom = modifiedFrom;
+        copy.modifiedTo = modifiedTo;
+        copy.resumeAfter = resumeAfter;
+        copy.snapshot = snapshot;
+        copy.shard = shard;
+        copy.shardCount = shardCount;
+
+        return copy;
+    }
+
     @Override
     public String toString() {
         return "Params{" +
@@ -88,8 +185,14 @@ public class AgencyParams extends Params {
                 ", createdTo='" + createdTo + '\'' +
                 ", modifiedFrom='" + modifiedFrom + '\'' +
                 ", modifiedTo='" + modifiedTo + '\'' +
+                ", resumeAfter='" + resumeAfter + '\'' +
+                ", snapshot=" + snapshot +
+                ", shard=" + shard +
+                ", shardCount=" + shardCount +
                 ", outputEncoding='" + outputEncoding + '\'' +
                 ", outputFormat='" + outputFormat + '\'' +
+                ", compression='" + compression + '\'' +
+                ", onError='" + onError + '\'' +
                 '}';
     }
 
@@ -199,6 +302,28 @@ public class AgencyParams extends Params {
             }
         }
 
+        if (this.resumeAfter != null) {
+            // The checkpoint is written as <agencyId>:<bibliographicRecordId>
+            if (!this.resumeAfter.matches("\\d{6}:.+")) {
+                result.add(new ParamsValidationItemDTO("resumeAfter", "The value '" + this.resumeAfter + "' doesn't have a valid format. The format must be agencyId:bibliographicRecordId"));
+            } else if (this.agencies != null && !this.agencies.contains(resumeAfterAgencyId())) {
+                result.add(new ParamsValidationItemDTO("resumeAfter", "The agency of '" + this.resumeAfter + "' is not one of the agencies being dumped"));
+            }
+        }
+
+        if (this.shard != null || this.shardCount != null) {
+            if (this.shard == null || this.shardCount == null) {
+                result.add(new ParamsValidationItemDTO("shard", "The fields shard and shardCount must be used together"));
+            } else if (this.shardCount < 1) {
+                result.add(new ParamsValidationItemDTO("shardCount", "The value " + this.shardCount + " is not valid. The value must be at least 1"));
+            } else if (this.shard < 0 || this.shard >= this.shardCount) {
+                result.add(new ParamsValidationItemDTO("shard", "The value " + this.shard + " is not valid. The value must be from 0 to shardCount - 1"));
+            } else if (this.shardCount > 1 && this.agencies != null && this.agencies.size() > 1) {
+                // Each agency is a section of its own, so the shards of several agencies can't be concatenated
+                result.add(new ParamsValidationItemDTO("shardCount", "A dump can only be split into shards when it has a single agency"));
+            }
+        }
+
         return result;
     }
 }
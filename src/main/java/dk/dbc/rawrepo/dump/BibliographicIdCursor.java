@@ -0,0 +1,120 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import dk.dbc.rawrepo.RawRepoException;
+import dk.dbc.rawrepo.dao.RawRepoBean;
+import dk.dbc.rawrepo.exception.RecordServiceRuntimeException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streams the bibliographic record ids of an agency directly from rawrepo one slice at a time using keyset
+ * pagination on bibliographicrecordid in code point order.
+ * <p>
+ * This is used instead of BibliographicIdMergeJoin when no holdings are involved, as the id list then doesn't have
+ * to be combined with anything.
+ * <p>
+ * If resumeAfter is set the cursor starts after that id. Counting the agency would be an extra scan of it, so the
+ * size is the number of ids handed out so far.
+ */
+public class BibliographicIdCursor implements BibliographicIdIterator {
+    private final RawRepoBean rawRepoBean;
+    private final int agencyId;
+    private final AgencyParams params;
+    private final List<String> excludedMimeTypes;
+    private int sliceSize;
+
+    private Map<String, String> nextSlice;
+    private String lastBibliographicRecordId;
+    private int size = 0;
+
+    public BibliographicIdCursor(RawRepoBean rawRepoBean, int agencyId, AgencyParams params, AgencyType agencyType, int sliceSize, String resumeAfter) {
+        this.rawRepoBean = rawRepoBean;
+        this.agencyId = agencyId;
+        this.params = params;
+        this.sliceSize = sliceSize;
+        this.lastBibliographicRecordId = resumeAfter;
+        this.excludedMimeTypes = getExcludedMimeTypes(params, agencyType);
+    }
+
+    /**
+     * Finds the mimetypes which are left out of a dump of an agency when no holdings are involved
+     *
+     * @param params     The params of the dump
+     * @param agencyType The type of the agency
+     * @return The mimetypes to leave out
+     */
+    static List<String> getExcludedMimeTypes(AgencyParams params, AgencyType agencyType) {
+        final List<String> excludedMimeTypes = new ArrayList<>();
+
+        // Local records and enrichments of FBS agencies are only dumped if asked for, or if the agency has holdings on
+        // them, which is up to BibliographicIdMergeJoin
+        if (agencyType == AgencyType.FBS) {
+            if (!params.getRecordType().contains(RecordType.LOCAL.toString())) {
+                excludedMimeTypes.add("text/marcxchange");
+            }
+
+            if (!params.getRecordType().contains(RecordType.ENRICHMENT.toString())) {
+                excludedMimeTypes.add("text/enrichment+marcxchange");
+            }
+        }
+
+        return excludedMimeTypes;
+    }
+
+    @Override
+    public int size() {
+        synchronized (this) {
+            return size;
+        }
+    }
+
+    @Override
+    public void setSliceSize(int sliceSize) {
+        synchronized (this) {
+            this.sliceSize = sliceSize;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        synchronized (this) {
+            return !peek().isEmpty();
+        }
+    }
+
+    @Override
+    public Map<String, String> next() {
+        synchronized (this) {
+            final Map<String, String> slice = peek();
+            nextSlice = null;
+            size += slice.size();
+
+            return slice;
+        }
+    }
+
+    private Map<String, String> peek() {
+        if (nextSlice == null) {
+            try {
+                nextSlice = rawRepoBean.getBibliographicRecordIdForAgencySlice(agencyId, params, excludedMimeTypes, lastBibliographicRecordId, sliceSize);
+            } catch (RawRepoException e) {
+                throw new RecordServiceRuntimeException(e);
+            }
+
+            // The slice is ordered by code point by the database, so the last key is where the next slice begins
+            for (String bibliographicRecordId : nextSlice.keySet()) {
+                lastBibliographicRecordId = bibliographicRecordId;
+            }
+        }
+
+        return nextSlice;
+    }
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import java.util.Map;
+
+/**
+ * Hands out the bibliographic record ids of a dump in slices. Each slice is a map of bibliographicrecordid to
+ * mimetype (or "holdings") and is handed to a single merger thread.
+ * <p>
+ * Iterators which read from an open database cursor release it when closed.
+ */
+public interface BibliographicIdIterator extends AutoCloseable {
+
+    int size();
+
+    /**
+     * Changes the number of ids in the slices to come. A slice which has already been fetched keeps its size.
+     *
+     * @param sliceSize The number of ids in each slice
+     */
+    void setSliceSize(int sliceSize);
+
+    boolean hasNext();
+
+    Map<String, String> next();
+
+    @Override
+    default void close() {
+    }
+
+}
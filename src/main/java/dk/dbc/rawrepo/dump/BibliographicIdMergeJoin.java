@@ -0,0 +1,157 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import dk.dbc.rawrepo.exception.RecordServiceRuntimeException;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Combines the record ids of an FBS agency from rawrepo with the ids it has holdings on from the holdings database,
+ * without loading either of them into memory.
+ * <p>
+ * Both databases return their ids ordered by code point, so the two streams are merge-joined one id at a time:
+ * <ul>
+ * <li>An id with both a record and holdings is dumped as the record</li>
+ * <li>An id with only a record is dumped unless its mimetype is excluded</li>
+ * <li>An id with only holdings is dumped as "holdings"</li>
+ * </ul>
+ * <p>
+ * The total isn't known until both streams are exhausted, so size is the number of ids handed out so far.
+ */
+public class BibliographicIdMergeJoin implements BibliographicIdIterator {
+    private final SortedIdCursor records;
+    private final SortedIdCursor holdings;
+    private final List<String> excludedMimeTypes;
+    private int sliceSize;
+
+    private boolean started = false;
+    private boolean recordsLeft;
+    private boolean holdingsLeft;
+    private Map<String, String> nextSlice;
+    private int size = 0;
+
+    public BibliographicIdMergeJoin(SortedIdCursor records, SortedIdCursor holdings, List<String> excludedMimeTypes, int sliceSize) {
+        this.records = records;
+        this.holdings = holdings;
+        this.excludedMimeTypes = excludedMimeTypes;
+        this.sliceSize = sliceSize;
+    }
+
+    @Override
+    public int size() {
+        synchronized (this) {
+            return size;
+        }
+    }
+
+    @Override
+    public void setSliceSize(int sliceSize) {
+        synchronized (this) {
+            this.sliceSize = sliceSize;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        synchronized (this) {
+            return !peek().isEmpty();
+        }
+    }
+
+    @Override
+    public Map<String, String> next() {
+        synchronized (this) {
+            final Map<String, String> slice = peek();
+            nextSlice = null;
+            size += slice.size();
+
+            return slice;
+        }
+    }
+
+    @Override
+    public void close() {
+        records.close();
+        holdings.close();
+    }
+
+    private Map<String, String> peek() {
+        if (nextSlice == null) {
+            try {
+                nextSlice = readSlice();
+            } catch (SQLException e) {
+                throw new RecordServiceRuntimeException(e);
+            }
+        }
+
+        return nextSlice;
+    }
+
+    private Map<String, String> readSlice() throws SQLException {
+        final Map<String, String> slice = new LinkedHashMap<>();
+
+        if (!started) {
+            recordsLeft = records.next();
+            holdingsLeft = holdings.next();
+            started = true;
+        }
+
+        while (slice.size() < sliceSize && (recordsLeft || holdingsLeft)) {
+            final int comparison;
+            if (!recordsLeft) {
+                comparison = 1;
+            } else if (!holdingsLeft) {
+                comparison = -1;
+            } else {
+                comparison = compare(records.getId(), holdings.getId());
+            }
+
+            if (comparison < 0) {
+                if (!excludedMimeTypes.contains(records.getType())) {
+                    slice.put(records.getId(), records.getType());
+                }
+                recordsLeft = records.next();
+            } else if (comparison > 0) {
+                slice.put(holdings.getId(), holdings.getType());
+                holdingsLeft = holdings.next();
+            } else {
+                slice.put(records.getId(), records.getType());
+                recordsLeft = records.next();
+                holdingsLeft = holdings.next();
+            }
+        }
+
+        return slice;
+    }
+
+    /**
+     * Compares by code point, which is the order of COLLATE "C" in a UTF-8 database. String.compareTo compares UTF-16
+     * chars, which orders characters outside the BMP differently.
+     */
+    static int compare(String a, String b) {
+        int i = 0;
+        int j = 0;
+
+        while (i < a.length() && j < b.length()) {
+            final int codePointA = a.codePointAt(i);
+            final int codePointB = b.codePointAt(j);
+
+            if (codePointA != codePointB) {
+                return Integer.compare(codePointA, codePointB);
+            }
+
+            i += Character.charCount(codePointA);
+            j += Character.charCount(codePointB);
+        }
+
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+/**
+ * A single byte range from a HTTP Range header (RFC 7233) resolved against the current length of a file.
+ */
+class ByteRange {
+    private static final String BYTES_UNIT = "bytes=";
+
+    private final long start;
+    private final long end;
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    /**
+     * @return The last byte of the range (inclusive)
+     */
+    long getEnd() {
+        return end;
+    }
+
+    long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * Parses a Range header.
+     * <p>
+     * Headers which can't be parsed and requests for more than one range are ignored, in which case the whole file
+     * should be returned. This is allowed by the RFC and clients which resume downloads only ask for a single range.
+     *
+     * @param header The value of the Range header, may be null
+     * @param length The current length of the file
+     * @return The range or null if the whole file should be returned
+     * @throws IllegalArgumentException If the range is outside the file, i.e. the response should be 416
+     */
+    static ByteRange parse(String header, long length) {
+        if (header == null || !header.startsWith(BYTES_UNIT) || header.contains(",")) {
+            return null;
+        }
+
+        final String spec = header.substring(BYTES_UNIT.length()).trim();
+        final int dash = spec.indexOf('-');
+
+        if (dash < 0) {
+            return null;
+        }
+
+        final long first;
+        final long last;
+
+        try {
+            first = dash == 0 ? -1 : Long.parseLong(spec.substring(0, dash).trim());
+            last = dash == spec.length() - 1 ? -1 : Long.parseLong(spec.substring(dash + 1).trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        if (first < 0 && last < 0) {
+            return null;
+        }
+
+        if (first < 0) {
+            // Suffix range, i.e. the last n bytes
+            if (last == 0 || length == 0) {
+                throw new IllegalArgumentException("Range " + header + " is not satisfiable");
+            }
+
+            return new ByteRange(Math.max(0, length - last), length - 1);
+        }
+
+        if (last >= 0 && last < first) {
+            return null;
+        }
+
+        if (first >= length) {
+            throw new IllegalArgumentException("Range " + header + " is not satisfiable");
+        }
+
+        return new ByteRange(first, last < 0 ? length - 1 : Math.min(last, length - 1));
+    }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public enum Compression {
+    NONE("NONE"), GZIP("GZIP");
+
+    private final String value;
+
+    Compression(String value) {
+        this.value = value;
+    }
+
+    public static Compression fromString(String s) {
+        return Compression.valueOf(s.trim().toUpperCase());
+    }
+
+    public static String validValues() {
+        List<String> values = new ArrayList<>();
+
+        for (Compression s : Compression.values()) {
+            values.add(s.value);
+        }
+
+        return String.join("|", values);
+    }
+}
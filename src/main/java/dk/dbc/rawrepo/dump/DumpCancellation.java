@@ -0,0 +1,185 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stops a dump which is no longer wanted, because the client has gone away or the dump job has been deleted.
+ * <p>
+ * Interrupting the threads of the dump is not enough, as a thread which waits for the database doesn't notice the
+ * interrupt before the query is done. So the queries of a dump are registered while they run, and cancelling the dump
+ * also cancels them. The database then ends them right away and the connections go back to the pool.
+ * <p>
+ * The producer and the workers of a dump bind the cancellation to their thread while they work on it, so the beans
+ * which run the queries can register them without the cancellation being passed through every call, the same way as
+ * a DumpSnapshot binds its connection.
+ */
+public class DumpCancellation {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DumpCancellation.class);
+
+    private static final ThreadLocal<DumpCancellation> BOUND_CANCELLATIONS = new ThreadLocal<>();
+
+    // Used when no cancellation is bound, so callers don't have to check
+    private static final Registration NOT_REGISTERED = () -> {
+    };
+
+    private final Set<Cancellable> running = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled = false;
+
+    /**
+     * Something which is running on behalf of the dump and can be stopped from another thread
+     */
+    @FunctionalInterface
+    public interface Cancellable {
+        void cancel() throws SQLException;
+    }
+
+    /**
+     * Ends the registration of a query when it is done
+     */
+    @FunctionalInterface
+    public interface Registration extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * A cancellation bound to the thread which bound it
+     */
+    @FunctionalInterface
+    public interface Binding extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    /**
+     * Cancels the dump and the queries it is running. Can be called any number of times from any thread.
+     */
+    public void cancel() {
+        if (cancelled) {
+            return;
+        }
+
+        cancelled = true;
+        LOGGER.info("Cancelling dump with {} running queries", running.size());
+
+        for (Cancellable cancellable : running) {
+            cancelQuietly(cancellable);
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @throws CancellationException If the dump has been cancelled
+     */
+    public void check() {
+        if (cancelled) {
+            throw new CancellationException("The dump has been cancelled");
+        }
+    }
+
+    /**
+     * Registers something which is about to run. If the dump has already been cancelled it is cancelled right away.
+     *
+     * @param cancellable What to do to stop it
+     * @return The registration, which must be closed when it is done
+     */
+    public Registration register(Cancellable cancellable) {
+        running.add(cancellable);
+
+        // The dump may have been cancelled while it was added, in which case cancel didn't see it
+        if (cancelled) {
+            cancelQuietly(cancellable);
+        }
+
+        return () -> running.remove(cancellable);
+    }
+
+    /**
+     * Binds the cancellation to the calling thread until the binding is closed
+     *
+     * @return The binding
+     */
+    public Binding bind() {
+        final DumpCancellation previous = BOUND_CANCELLATIONS.get();
+        BOUND_CANCELLATIONS.set(this);
+
+        return () -> {
+            if (previous == null) {
+                BOUND_CANCELLATIONS.remove();
+            } else {
+                BOUND_CANCELLATIONS.set(previous);
+            }
+        };
+    }
+
+    /**
+     * @param callable The work to do
+     * @param <T>      The result type of the work
+     * @return The same work, but done with the cancellation bound to the thread
+     */
+    public <T> Callable<T> bound(Callable<T> callable) {
+        return () -> {
+            try (Binding binding = bind()) {
+                return callable.call();
+            }
+        };
+    }
+
+    /**
+     * Registers a statement with the cancellation bound to the calling thread, if any
+     *
+     * @param statement The statement which is about to be executed
+     * @return The registration, which must be closed when the statement is done
+     */
+    public static Registration registerStatement(Statement statement) {
+        return registerBound(statement::cancel);
+    }
+
+    /**
+     * Registers something with the cancellation bound to the calling thread, if any
+     *
+     * @param cancellable What to do to stop it
+     * @return The registration, which must be closed when it is done
+     */
+    public static Registration registerBound(Cancellable cancellable) {
+        final DumpCancellation cancellation = BOUND_CANCELLATIONS.get();
+
+        return cancellation == null ? NOT_REGISTERED : cancellation.register(cancellable);
+    }
+
+    /**
+     * @throws CancellationException If a cancellation is bound to the calling thread and the dump has been cancelled
+     */
+    public static void checkBound() {
+        final DumpCancellation cancellation = BOUND_CANCELLATIONS.get();
+
+        if (cancellation != null) {
+            cancellation.check();
+        }
+    }
+
+    private static void cancelQuietly(Cancellable cancellable) {
+        try {
+            cancellable.cancel();
+        } catch (SQLException e) {
+            LOGGER.warn("Failed to cancel query", e);
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The records of a dump which could not be merged or encoded, handled according to the onError policy of the dump.
+ * <p>
+ * With ABORT, which is the default, the first failure stops the dump as it always did. With SKIP the record is left
+ * out and the dump goes on, and SKIP_AND_REPORT also keeps the id and the reason so they can be written after the
+ * records. Only errors with the record itself are handled here, database and output errors still stop the dump.
+ * <p>
+ * Failures are added by the merger threads, so all methods are thread safe.
+ */
+public class DumpFailures {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DumpFailures.class);
+
+    // A dump where most records fail must not run out of memory keeping them all. The cap is per agency, so an agency
+    // with many failures doesn't leave the ones after it without a report.
+    static final int MAX_REPORTED_FAILURES_PER_AGENCY = 1000;
+
+    private final ErrorPolicy policy;
+    private final List<Failure> failures = new ArrayList<>();
+    private final Map<Integer, Integer> reportedCounts = new HashMap<>();
+    private final Map<Integer, Long> unreportedCounts = new TreeMap<>();
+    private long count = 0;
+
+    public DumpFailures(ErrorPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Handles a record which could not be dumped
+     *
+     * @param agencyId              The agency of the record
+     * @param bibliographicRecordId The id of the record
+     * @param e                     The reason the record could not be dumped
+     * @param <E>                   The type of the exception
+     * @throws E The same exception if the policy is ABORT
+     */
+    public <E extends Exception> void failed(int agencyId, String bibliographicRecordId, E e) throws E {
+        if (!skip(agencyId, bibliographicRecordId, e)) {
+            throw e;
+        }
+    }
+
+    /**
+     * Handles a record which could not be dumped, for callers which rethrow the exception themselves
+     *
+     * @param agencyId              The agency of the record
+     * @param bibliographicRecordId The id of the record
+     * @param e                     The reason the record could not be dumped
+     * @return False if the policy is ABORT, in which case the caller must throw the exception
+     */
+    public boolean skip(int agencyId, String bibliographicRecordId, Exception e) {
+        final String reason = reasonOf(e);
+
+        if (policy == ErrorPolicy.ABORT) {
+            LOGGER.error("Failed to dump '{}:{}' because of {}", bibliographicRecordId, agencyId, reason);
+            return false;
+        }
+
+        LOGGER.warn("Skipping '{}:{}' because of {}", bibliographicRecordId, agencyId, reason);
+
+        synchronized (this) {
+            count++;
+            if (policy == ErrorPolicy.SKIP_AND_REPORT) {
+                final int reported = reportedCounts.getOrDefault(agencyId, 0);
+
+                if (reported < MAX_REPORTED_FAILURES_PER_AGENCY) {
+                    failures.add(new Failure(agencyId, bibliographicRecordId, reason));
+                    reportedCounts.put(agencyId, reported + 1);
+                } else {
+                    unreportedCounts.merge(agencyId, 1L, Long::sum);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The number of records skipped so far, including those which are not reported
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The reported failures of all agencies
+     */
+    public synchronized List<Failure> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    /**
+     * @param agencyId The agency
+     * @return The reported failures of the agency
+     */
+    public synchronized List<Failure> getFailures(int agencyId) {
+        final List<Failure> result = new ArrayList<>();
+
+        for (Failure failure : failures) {
+            if (failure.getAgencyId() == agencyId) {
+                result.add(failure);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @param agencyId The agency
+     * @return The number of failures of the agency which were left out of the report because of the cap
+     */
+    public synchronized long getUnreportedCount(int agencyId) {
+        return unreportedCounts.getOrDefault(agencyId, 0L);
+    }
+
+    /**
+     * @return The number of failures left out of the report for each agency which hit the cap
+     */
+    public synchronized Map<Integer, Long> getUnreportedCounts() {
+        return new TreeMap<>(unreportedCounts);
+    }
+
+    // The reason is written on a single line after the id, so line breaks in the message have to go
+    private static String reasonOf(Exception e) {
+        final String message = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+
+        return message.replaceAll("\\s+", " ").trim();
+    }
+
+    public static class Failure {
+        private final int agencyId;
+        private final String bibliographicRecordId;
+        private final String reason;
+
+        Failure(int agencyId, String bibliographicRecordId, String reason) {
+            this.agencyId = agencyId;
+            this.bibliographicRecordId = bibliographicRecordId;
+            this.reason = reason;
+        }
+
+        public int getAgencyId() {
+            return agencyId;
+        }
+
+        public String getBibliographicRecordId() {
+            return bibliographicRecordId;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * @return The failure in the same agencyId:bibliographicRecordId form as resumeAfter, followed by the reason
+         */
+        @Override
+        public String toString() {
+            return agencyId + ":" + bibliographicRecordId + " " + reason;
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A dump which runs in the background and writes to a spool file instead of to a HTTP connection.
+ * <p>
+ * Only the public getters are part of the JSON returned by the job endpoints, the spool file and the thread running
+ * the job are internal.
+ */
+public class DumpJob {
+
+    public enum Status {
+        RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    private final String id;
+    private final AgencyParams params;
+    private final Path file;
+    private final Path failuresFile;
+    private final Instant created;
+    private final DumpCancellation cancellation = new DumpCancellation();
+
+    private volatile Status status = Status.RUNNING;
+    private volatile Instant finished;
+    private volatile String error;
+    private volatile String checkpoint;
+    private volatile long failedRecords;
+    private volatile Thread thread;
+
+    DumpJob(String id, AgencyParams params, Path file, Path failuresFile) {
+        this.id = id;
+        this.params = params;
+        this.file = file;
+        this.failuresFile = failuresFile;
+        this.created = Instant.now();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public AgencyParams getParams() {
+        return params;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getCreated() {
+        return created.toString();
+    }
+
+    public String getFinished() {
+        return finished == null ? null : finished.toString();
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return The latest checkpoint of the job, which can be used as resumeAfter if the job fails
+     */
+    public String getCheckpoint() {
+        return checkpoint;
+    }
+
+    void setCheckpoint(String checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * @return The number of records which were skipped because of the onError policy. Only known when the job is over.
+     */
+    public long getFailedRecords() {
+        return failedRecords;
+    }
+
+    /**
+     * @return The number of bytes written to the spool file so far
+     */
+    public long getSize() {
+        try {
+            return Files.exists(file) ? Files.size(file) : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Writes part of the spool file to the output stream. FileChannel.transferTo lets the JDK move the bytes without
+     * copying them through a buffer of our own.
+     *
+     * @param range The part of the file to write
+     * @param out   The output stream
+     * @throws IOException If the file can't be read or the output stream can't be written
+     */
+    void transferTo(ByteRange range, OutputStream out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final WritableByteChannel target = Channels.newChannel(out);
+            long position = range.getStart();
+            long remaining = range.getLength();
+
+            while (remaining > 0) {
+                final long transferred = channel.transferTo(position, remaining, target);
+
+                if (transferred <= 0) {
+                    break;
+                }
+
+                position += transferred;
+                remaining -= transferred;
+            }
+        }
+    }
+
+    /**
+     * Writes the reported failures to the failures file, one agencyId:bibliographicRecordId and reason per line,
+     * followed by the number of failures which were left out for each agency which hit the cap. The file is written
+     * even if there are no failures, so an empty file means that nothing was skipped.
+     *
+     * @param failures The failures of the job
+     * @throws IOException If the file can't be written
+     */
+    void writeFailures(DumpFailures failures) throws IOException {
+        this.failedRecords = failures.getCount();
+
+        // The files of a cancelled job may already have been deleted
+        if (status == Status.CANCELLED) {
+            return;
+        }
+
+        final List<String> lines = new ArrayList<>();
+        for (DumpFailures.Failure failure : failures.getFailures()) {
+            lines.add(failure.toString());
+        }
+        for (Map.Entry<Integer, Long> unreported : failures.getUnreportedCounts().entrySet()) {
+            lines.add(unreported.getKey() + ": " + unreported.getValue() + " more failures not reported");
+        }
+
+        Files.write(failuresFile, lines, StandardCharsets.UTF_8);
+    }
+
+    Path file() {
+        return file;
+    }
+
+    Path failuresFile() {
+        return failuresFile;
+    }
+
+    DumpCancellation cancellation() {
+        return cancellation;
+    }
+
+    Instant createdAt() {
+        return created;
+    }
+
+    Instant finishedAt() {
+        return finished;
+    }
+
+    void start(Thread thread) {
+        this.thread = thread;
+        thread.start();
+    }
+
+    void done() {
+        finish(Status.DONE, null);
+    }
+
+    void failed(String error) {
+        finish(Status.FAILED, error);
+    }
+
+    /**
+     * Stops the job if it is still running. The queries of the job are cancelled, and the dump pipeline stops its
+     * workers when the job thread is interrupted.
+     */
+    void cancel() {
+        if (finish(Status.CANCELLED, null)) {
+            cancellation.cancel();
+
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private synchronized boolean finish(Status status, String error) {
+        // The first state change wins, so a job which is cancelled doesn't end up as failed because of the interrupt
+        if (this.status != Status.RUNNING) {
+            return false;
+        }
+
+        this.error = error;
+        this.finished = Instant.now();
+        this.status = status;
+
+        return true;
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import dk.dbc.rawrepo.exception.RecordServiceRuntimeException;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of dump jobs and their spool files.
+ * <p>
+ * The jobs only exist in memory, so when the service is restarted the jobs are gone and the spool files they leave
+ * behind are deleted on startup. Finished jobs are removed after DUMP_JOB_RETENTION_HOURS.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class DumpJobBean {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DumpJobBean.class);
+    private static final String SPOOL_FILE_SUFFIX = ".dump";
+    // Ends with the spool file suffix, so failure files left from before a restart are deleted as well
+    private static final String FAILURES_FILE_SUFFIX = ".failures" + SPOOL_FILE_SUFFIX;
+
+    @Inject
+    @ConfigProperty(name = "DUMP_SPOOL_DIR", defaultValue = "/tmp/rawrepo-dump")
+    private String SPOOL_DIR;
+
+    @Inject
+    @ConfigProperty(name = "DUMP_JOB_RETENTION_HOURS", defaultValue = "24")
+    private int RETENTION_HOURS;
+
+    private final Map<String, DumpJob> jobs = new ConcurrentHashMap<>();
+
+    // Constructor used for testing
+    DumpJobBean(String spoolDir) {
+        this.SPOOL_DIR = spoolDir;
+    }
+
+    // Default constructor - required as there is another constructor
+    public DumpJobBean() {
+
+    }
+
+    @PostConstruct
+    public void postConstruct() {
+        try {
+            final Path spoolDir = Paths.get(SPOOL_DIR);
+            Files.createDirectories(spoolDir);
+
+            try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(spoolDir, "*" + SPOOL_FILE_SUFFIX)) {
+                for (Path leftover : leftovers) {
+                    LOGGER.info("Deleting spool file {} from before restart", leftover);
+                    Files.deleteIfExists(leftover);
+                }
+            }
+        } catch (IOException e) {
+            throw new RecordServiceRuntimeException(e);
+        }
+    }
+
+    public DumpJob create(AgencyParams params) {
+        final String id = UUID.randomUUID().toString();
+        final DumpJob job = new DumpJob(id, params, Paths.get(SPOOL_DIR, id + SPOOL_FILE_SUFFIX), Paths.get(SPOOL_DIR, id + FAILURES_FILE_SUFFIX));
+
+        jobs.put(id, job);
+
+        return job;
+    }
+
+    public DumpJob get(String id) {
+        return jobs.get(id);
+    }
+
+    public List<DumpJob> list() {
+        final List<DumpJob> result = new ArrayList<>(jobs.values());
+        result.sort(Comparator.comparing(DumpJob::createdAt));
+
+        return result;
+    }
+
+    /**
+     * Cancels the job if it is running and deletes it along with its spool and failures files
+     *
+     * @param id The id of the job
+     * @return false if there is no such job
+     */
+    public boolean delete(String id) {
+        final DumpJob job = jobs.remove(id);
+
+        if (job == null) {
+            return false;
+        }
+
+        job.cancel();
+
+        try {
+            Files.deleteIfExists(job.file());
+            Files.deleteIfExists(job.failuresFile());
+        } catch (IOException e) {
+            LOGGER.error("Could not delete spool files of job {}", job.getId(), e);
+        }
+
+        return true;
+    }
+
+    /**
+     * Creates an empty spool file for an agency which is dumped while the agencies before it are written. The file
+     * is deleted on startup like the job files, but otherwise the caller must delete it.
+     *
+     * @return The path of the new file
+     * @throws IOException If the file can't be created
+     */
+    public Path createSectionFile() throws IOException {
+        return Files.createTempFile(Paths.get(SPOOL_DIR), "section-", SPOOL_FILE_SUFFIX);
+    }
+
+    @Schedule(hour = "*", minute = "*/15", persistent = false)
+    public void removeExpiredJobs() {
+        final Instant expired = Instant.now().minus(Duration.ofHours(RETENTION_HOURS));
+
+        for (DumpJob job : list()) {
+            if (job.finishedAt() != null && job.finishedAt().isBefore(expired)) {
+                LOGGER.info("Removing expired dump job {}", job.getId());
+                delete(job.getId());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.WebApplicationException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Runs a dump as a continuous pipeline: the calling thread produces slices of bibliographic record ids into a
+ * bounded queue and a fixed number of workers take slices from the queue, fetch and merge the records and encode
+ * them into the RecordByteWriter. The calling thread is also the writer stage: while it waits for room in the slice
+ * queue or for the workers to finish it drains the encoded chunks to the output stream.
+ * <p>
+ * A worker starts on the next slice as soon as it is done with the previous one, so a single slow slice only
+ * occupies one worker instead of stalling a whole batch. When the workers can't keep up the queue fills and the
+ * producer waits, and when the output stream can't keep up the chunk queue fills and the workers wait.
+ * <p>
+ * Slices finish out of order, but the RecordByteWriter writes them in the order they were produced and holds back
+ * the slices which finish early. Every time more slices have been written, and before anything of the next slice is
+ * written, the last bibliographicrecordid of the last of them is passed to the checkpoint listener. Nothing after
+ * that id has been written at that point, so a dump which is resumed after it won't miss or repeat any records. The
+ * producer stays at most MAX_SLICES_AHEAD_PER_WORKER slices per worker ahead of the written slices, and a worker
+ * doesn't start a later slice while the writer holds back MAX_HELD_BACK_BYTES or more, which bounds how much a slow
+ * slice can make the writer hold back both in slices and in bytes.
+ * <p>
+ * The first failure to write the output cancels the DumpCancellation of the dump, so the producer stops, the workers
+ * are interrupted and the queries the dump is running are cancelled. The same happens if the dump is cancelled from
+ * outside, which the calling thread notices the next time it drains.
+ * <p>
+ * The workers are started as the first slices are queued, and only as many as there are free permits in the worker
+ * budget, so a pipeline which is waiting for the budget doesn't take threads from the lane.
+ * <p>
+ * The number of workers is taken from the DumpTuning when the pipeline is created, and the slice size before each
+ * slice is produced. The time of every slice is reported back to the tuning, which adjusts the slice size while the
+ * pipeline runs, and the time of the whole pipeline is reported when it is done, so the next pipeline of the same
+ * kind can be run with a better number of workers.
+ * The records, bytes and the time of each stage are reported to the DumpProgress of the dump as the slices are done.
+ */
+class DumpPipeline {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DumpPipeline.class);
+
+    // Marks the end of the slices. Compared by identity so it can't be mistaken for an empty slice.
+    private static final Slice END_OF_SLICES = new Slice(-1, new HashMap<>(), null);
+
+    private static final long POLL_INTERVAL_MS = 10;
+    private static final int MAX_SLICES_AHEAD_PER_WORKER = 2;
+    // Slices with large records, like expanded records with many holdings, can be much larger than the average, so
+    // the slice limit alone doesn't bound the memory of the held back chunks
+    private static final long MAX_HELD_BACK_BYTES = 64L * 1024 * 1024;
+
+    private final ExecutorService executor;
+    private final DumpTuning tuning;
+    private final int workerCount;
+    private final Semaphore workerBudget;
+    private final RecordByteWriter recordByteWriter;
+    private final DumpCancellation cancellation;
+    private final DumpProgress progress;
+
+    // Last bibliographicrecordid of each produced slice which hasn't been checkpointed yet
+    private final Map<Long, String> lastBibliographicRecordIds = new ConcurrentHashMap<>();
+    private final LongAdder completedRecords = new LongAdder();
+    private final AtomicLong reportedBytes = new AtomicLong();
+    // Only used by the calling thread
+    private long checkpointedSlice = -1;
+    private long reportedWriteNanos = 0;
+
+    @FunctionalInterface
+    interface CheckpointListener {
+        void checkpoint(String bibliographicRecordId) throws IOException;
+    }
+
+    /**
+     * @param executor         The executor the workers run in
+     * @param tuning           The tuning which decides the number of workers and which the timings are reported to
+     * @param workerBudget     A worker must have a permit from the budget while it handles a slice. The budget can be
+     *                         shared by pipelines running at the same time, so a pipeline which has no slices ready
+     *                         leaves its share to the others.
+     * @param recordByteWriter The writer the records are encoded into
+     * @param cancellation     The cancellation of the dump, which is bound to the workers while they run
+     * @param progress         The progress of the dump
+     */
+    DumpPipeline(ExecutorService executor, DumpTuning tuning, Semaphore workerBudget, RecordByteWriter recordByteWriter, DumpCancellation cancellation, DumpProgress progress) {
+        this.executor = executor;
+        this.tuning = tuning;
+        this.workerCount = tuning.getWorkerCount();
+        this.workerBudget = workerBudget;
+        this.recordByteWriter = recordByteWriter;
+        this.cancellation = cancellation;
+        this.progress = progress;
+    }
+
+    void run(BibliographicIdIterator bibliographicIdIterator, Function<Map<String, String>, Callable<Boolean>> mergerThreadFactory) throws InterruptedException, IOException {
+        run(bibliographicIdIterator, mergerThreadFactory, bibliographicRecordId -> {
+        });
+    }
+
+    void run(BibliographicIdIterator bibliographicIdIterator, Function<Map<String, String>, Callable<Boolean>> mergerThreadFactory, CheckpointListener checkpointListener) throws InterruptedException, IOException {
+        // Room for one waiting slice per worker, so a worker never has to wait for the producer to fetch ids
+        final BlockingQueue<Slice> slices = new ArrayBlockingQueue<>(workerCount);
+        final List<Future<Boolean>> workers = new ArrayList<>();
+        final long started = System.currentTimeMillis();
+        long sequence = 0;
+
+        recordByteWriter.setSliceListener(writtenSlices -> checkpoint(writtenSlices - 1, checkpointListener));
+
+        try {
+            Map<String, String> bibliographicRecordIds;
+            while ((bibliographicRecordIds = nextIds(bibliographicIdIterator)) != null) {
+                final Slice slice = new Slice(sequence++, bibliographicRecordIds);
+                lastBibliographicRecordIds.put(slice.sequence, slice.lastBibliographicRecordId);
+
+                // The slices which finish before an older slice are held back by the writer, so they are limited
+                while (slice.sequence >= recordByteWriter.getWrittenSlices() + (long) MAX_SLICES_AHEAD_PER_WORKER * workerCount
+                        && !hasFailedWorker(workers)) {
+                    startWorkers(slices, workers, mergerThreadFactory);
+                    drain(POLL_INTERVAL_MS);
+                }
+
+                while (!slices.offer(slice)) {
+                    // If the workers have stopped because of an error there is no reason to keep producing
+                    if (hasFailedWorker(workers)) {
+                        slices.clear();
+                        break;
+                    }
+                    startWorkers(slices, workers, mergerThreadFactory);
+                    drain(POLL_INTERVAL_MS);
+                }
+
+                if (hasFailedWorker(workers)) {
+                    break;
+                }
+                startWorkers(slices, workers, mergerThreadFactory);
+                drain(0);
+            }
+
+            // The slices left in the queue might still be waiting for workers
+            while (!slices.isEmpty() && !hasFailedWorker(workers)) {
+                startWorkers(slices, workers, mergerThreadFactory);
+                drain(POLL_INTERVAL_MS);
+            }
+
+            // One end marker per live worker. The queue is emptied if a worker has failed, as the remaining slices
+            // would just be thrown away anyway and the failed worker won't take its end marker.
+            for (Future<Boolean> worker : workers) {
+                while (!worker.isDone() && !slices.offer(END_OF_SLICES)) {
+                    if (hasFailedWorker(workers)) {
+                        slices.clear();
+                    }
+                    drain(POLL_INTERVAL_MS);
+                }
+            }
+
+            for (Future<Boolean> worker : workers) {
+                while (!worker.isDone()) {
+                    drain(POLL_INTERVAL_MS);
+                }
+            }
+            drain(0);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            // Most likely the client has gone away or the service is shutting down. The workers might be
+            // waiting for room in the chunk queue which will never come, so they have to be stopped along with the
+            // queries of the dump.
+            cancellation.cancel();
+            cancel(workers);
+            throw e;
+        }
+
+        for (Future<Boolean> worker : workers) {
+            try {
+                worker.get(); // We don't care about the result, we just want to see if there was an exception during execution
+            } catch (ExecutionException e) {
+                LOGGER.error("Caught exception in a thread", e.getCause());
+                throw new WebApplicationException(e.getMessage(), e);
+            }
+        }
+
+        tuning.recordPipeline(completedRecords.sum(), recordByteWriter.getEncodedBytes(), System.currentTimeMillis() - started);
+    }
+
+    // Workers are only started when there are slices waiting and free permits in the worker budget, so a pipeline
+    // which has to wait for the budget, like one spooling an agency while the others are using it, doesn't hold
+    // threads of the lane while it waits. The lane has a thread for every worker, but it rejects workers once it is
+    // shut down, so this is called inside the try of run, where the ones already started are cancelled instead of
+    // waiting for slices forever.
+    private void startWorkers(BlockingQueue<Slice> slices, List<Future<Boolean>> workers, Function<Map<String, String>, Callable<Boolean>> mergerThreadFactory) {
+        final int room = Math.min(workerCount - workers.size(), workerBudget.availablePermits());
+
+        for (int i = 0; i < room && !slices.isEmpty(); i++) {
+            workers.add(executor.submit(cancellation.bound(() -> work(slices, mergerThreadFactory))));
+        }
+    }
+
+    private Boolean work(BlockingQueue<Slice> slices, Function<Map<String, String>, Callable<Boolean>> mergerThreadFactory) throws Exception {
+        try {
+            Slice slice = slices.take();
+
+            while (slice != END_OF_SLICES) {
+                cancellation.check();
+                // Before taking a permit, as the worker with the slice the writer is waiting for might need it
+                recordByteWriter.awaitRoomForSlice(slice.sequence, MAX_HELD_BACK_BYTES);
+                final long waitStarted = System.nanoTime();
+                workerBudget.acquire();
+                final long workStarted = System.nanoTime();
+                final SliceTimings timings = new SliceTimings();
+                try (SliceTimings.Binding binding = timings.bind()) {
+                    recordByteWriter.startSlice(slice.sequence);
+                    mergerThreadFactory.apply(slice.bibliographicRecordIds).call();
+                    recordByteWriter.flush();
+                } finally {
+                    workerBudget.release();
+                }
+                final long workNanos = System.nanoTime() - workStarted;
+                tuning.recordSlice(slice.bibliographicRecordIds.size(), workStarted - waitStarted, workNanos,
+                        timings.getDatabaseNanos(), timings.getPoolWaitNanos());
+                progress.sliceDone(slice.bibliographicRecordIds, timings, workNanos);
+                reportBytes();
+                completedRecords.add(slice.bibliographicRecordIds.size());
+                slice = slices.take();
+            }
+
+            return true;
+        } finally {
+            recordByteWriter.release();
+        }
+    }
+
+    // The checkpoints are written by the RecordByteWriter while it drains, through the slice listener
+    private void drain(long timeoutMs) throws IOException, InterruptedException {
+        cancellation.check();
+
+        if (timeoutMs > 0) {
+            recordByteWriter.drain(timeoutMs, TimeUnit.MILLISECONDS);
+        } else {
+            recordByteWriter.drain();
+        }
+
+        final long writeNanos = recordByteWriter.getWriteNanos();
+        progress.addStageTime(DumpStage.WRITE, writeNanos - reportedWriteNanos);
+        reportedWriteNanos = writeNanos;
+    }
+
+    private void checkpoint(long writtenSlice, CheckpointListener checkpointListener) throws IOException {
+        if (writtenSlice > checkpointedSlice) {
+            final String bibliographicRecordId = lastBibliographicRecordIds.get(writtenSlice);
+
+            for (long i = checkpointedSlice + 1; i <= writtenSlice; i++) {
+                lastBibliographicRecordIds.remove(i);
+            }
+            checkpointedSlice = writtenSlice;
+
+            if (bibliographicRecordId != null) {
+                checkpointListener.checkpoint(bibliographicRecordId);
+            }
+        }
+    }
+
+    // Returns null when there are no more ids
+    private Map<String, String> nextIds(BibliographicIdIterator bibliographicIdIterator) {
+        final long started = System.nanoTime();
+
+        try {
+            bibliographicIdIterator.setSliceSize(tuning.getSliceSize());
+            return bibliographicIdIterator.hasNext() ? bibliographicIdIterator.next() : null;
+        } finally {
+            progress.addStageTime(DumpStage.ID_LISTING, System.nanoTime() - started);
+        }
+    }
+
+    // The workers see the byte count of the writer in any order, so only the part no other worker has reported is added
+    private void reportBytes() {
+        final long bytes = recordByteWriter.getEncodedBytes();
+        final long reported = reportedBytes.getAndAccumulate(bytes, Math::max);
+
+        if (bytes > reported) {
+            progress.addBytes(bytes - reported);
+        }
+    }
+
+    private boolean hasFailedWorker(List<Future<Boolean>> workers) {
+        for (Future<Boolean> worker : workers) {
+            if (worker.isDone()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void cancel(List<Future<Boolean>> workers) {
+        for (Future<Boolean> worker : workers) {
+            worker.cancel(true);
+        }
+    }
+
+    private static class Slice {
+        private final long sequence;
+        private final Map<String, String> bibliographicRecordIds;
+        private final String lastBibliographicRecordId;
+
+        private Slice(long sequence, Map<String, String> bibliographicRecordIds) {
+            this(sequence, bibliographicRecordIds, lastKey(bibliographicRecordIds));
+        }
+
+        private Slice(long sequence, Map<String, String> bibliographicRecordIds, String lastBibliographicRecordId) {
+            this.sequence = sequence;
+            this.bibliographicRecordIds = bibliographicRecordIds;
+            this.lastBibliographicRecordId = lastBibliographicRecordId;
+        }
+
+        // The slices are ordered maps, so the last key is the last id in the order the ids are produced
+        private static String lastKey(Map<String, String> bibliographicRecordIds) {
+            String last = null;
+
+            for (String bibliographicRecordId : bibliographicRecordIds.keySet()) {
+                last = bibliographicRecordId;
+            }
+
+            return last;
+        }
+    }
+
+}
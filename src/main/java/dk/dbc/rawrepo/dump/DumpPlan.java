@@ -0,0 +1,102 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import java.util.List;
+
+/**
+ * What a dump of an agency will contain, found with count queries instead of by loading the ids.
+ * <p>
+ * When holdings are included the number of records is an upper bound, as the holdings are counted in the holdings
+ * database and some of them will be on records which are also counted as local records or enrichments, or on
+ * records which are not in rawrepo at all. In that case exact is false.
+ * <p>
+ * The estimates are based on the throughput of earlier dumps with the same output format and mode, and are null if
+ * there haven't been any since the service started.
+ */
+public class DumpPlan {
+    private final int agencyId;
+    private final AgencyType agencyType;
+    private final List<MimeTypeCount> mimeTypes;
+    private Integer holdings;
+    private long records;
+    private boolean exact = true;
+    private Long estimatedBytes;
+    private Long estimatedSeconds;
+
+    public DumpPlan(int agencyId, AgencyType agencyType, List<MimeTypeCount> mimeTypes) {
+        this.agencyId = agencyId;
+        this.agencyType = agencyType;
+        this.mimeTypes = mimeTypes;
+    }
+
+    public int getAgencyId() {
+        return agencyId;
+    }
+
+    public AgencyType getAgencyType() {
+        return agencyType;
+    }
+
+    public List<MimeTypeCount> getMimeTypes() {
+        return mimeTypes;
+    }
+
+    public Integer getHoldings() {
+        return holdings;
+    }
+
+    public void setHoldings(Integer holdings) {
+        this.holdings = holdings;
+    }
+
+    public long getRecords() {
+        return records;
+    }
+
+    public void setRecords(long records) {
+        this.records = records;
+    }
+
+    public boolean isExact() {
+        return exact;
+    }
+
+    public void setExact(boolean exact) {
+        this.exact = exact;
+    }
+
+    public Long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    public void setEstimatedBytes(Long estimatedBytes) {
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    public Long getEstimatedSeconds() {
+        return estimatedSeconds;
+    }
+
+    public void setEstimatedSeconds(Long estimatedSeconds) {
+        this.estimatedSeconds = estimatedSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "DumpPlan{" +
+                "agencyId=" + agencyId +
+                ", agencyType=" + agencyType +
+                ", mimeTypes=" + mimeTypes.size() +
+                ", holdings=" + holdings +
+                ", records=" + records +
+                ", exact=" + exact +
+                ", estimatedBytes=" + estimatedBytes +
+                ", estimatedSeconds=" + estimatedSeconds +
+                '}';
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How far a dump has come. The pipelines of the dump report to it as they go, and the public getters are what the
+ * progress endpoints return.
+ * <p>
+ * Records are counted per type of their slice, which is the mimetype of the record or "holdings", when the slice
+ * they are in has been handed over to the output. Bytes are before compression. The time of each stage is summed
+ * over all the threads of the dump, so with many workers the stages add up to more than the time the dump has run.
+ * <p>
+ * The expected number of records of an agency is taken from the last dump of it with the same filters, when it is
+ * started, so the records aren't counted just for the estimate. Agencies which haven't been started yet, or haven't
+ * been dumped before, are guessed from the average of the agencies which have an expected number. A resumed agency
+ * is expected to have all its records, so its estimate is too high.
+ */
+public class DumpProgress {
+
+    public enum Status {
+        RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    private final String id;
+    private final String kind;
+    private final List<Integer> agencies;
+    private final String mode;
+    private final String outputFormat;
+    private final Instant started;
+
+    private volatile Status status = Status.RUNNING;
+    private volatile Instant finished;
+    private volatile String checkpoint;
+
+    private final Set<Integer> runningAgencies = new ConcurrentSkipListSet<>();
+    private final AtomicLong plannedAgencies = new AtomicLong();
+    private final AtomicLong expectedRecords = new AtomicLong();
+    private final LongAdder records = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Map<String, LongAdder> categories = new ConcurrentHashMap<>();
+    private final Map<DumpStage, LongAdder> stageNanos = new EnumMap<>(DumpStage.class);
+
+    DumpProgress(String id, String kind, List<Integer> agencies, Params params) {
+        this.id = id;
+        this.kind = kind;
+        this.agencies = agencies;
+        this.mode = params.getMode();
+        this.outputFormat = params.getOutputFormat();
+        this.started = Instant.now();
+
+        // All stages are added up front, so the map is only read after this
+        for (DumpStage stage : DumpStage.values()) {
+            stageNanos.put(stage, new LongAdder());
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return "dump" for a dump streamed to the client, "job" for a dump job and "records" for a dump of single
+     * records
+     */
+    public String getKind() {
+        return kind;
+    }
+
+    public List<Integer> getAgencies() {
+        return agencies;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getStarted() {
+        return started.toString();
+    }
+
+    public String getFinished() {
+        return finished == null ? null : finished.toString();
+    }
+
+    /**
+     * @return The latest checkpoint of the dump, which can be used as resumeAfter if the dump breaks off, or null if
+     * no records have been written yet
+     */
+    public String getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @return The agencies which are being dumped right now. More than one when agencies are being spooled.
+     */
+    public List<Integer> getRunningAgencies() {
+        return new ArrayList<>(runningAgencies);
+    }
+
+    public long getRecords() {
+        return records.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * @return The number of records per mimetype, or "holdings"
+     */
+    public Map<String, Long> getCategories() {
+        final Map<String, Long> result = new TreeMap<>();
+
+        for (Map.Entry<String, LongAdder> category : categories.entrySet()) {
+            result.put(category.getKey(), category.getValue().sum());
+        }
+
+        return result;
+    }
+
+    /**
+     * @return The time spent in each stage in milliseconds, summed over the threads of the dump
+     */
+    public Map<DumpStage, Long> getStageMillis() {
+        final Map<DumpStage, Long> result = new EnumMap<>(DumpStage.class);
+
+        for (Map.Entry<DumpStage, LongAdder> stage : stageNanos.entrySet()) {
+            result.put(stage.getKey(), stage.getValue().sum() / 1000000);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return The time spent in each stage per thousand records in milliseconds, or null before any records are done
+     */
+    public Map<DumpStage, Double> getStageMillisPerThousandRecords() {
+        final long done = records.sum();
+
+        if (done == 0) {
+            return null;
+        }
+
+        final Map<DumpStage, Double> result = new EnumMap<>(DumpStage.class);
+
+        for (Map.Entry<DumpStage, LongAdder> stage : stageNanos.entrySet()) {
+            result.put(stage.getKey(), stage.getValue().sum() / 1000.0 / done);
+        }
+
+        return result;
+    }
+
+    public double getRecordsPerSecond() {
+        final long millis = (finished == null ? Instant.now() : finished).toEpochMilli() - started.toEpochMilli();
+
+        return records.sum() * 1000.0 / Math.max(1, millis);
+    }
+
+    /**
+     * @return The number of records the dump is expected to have, or null if no agency has been counted yet
+     */
+    public Long getExpectedRecords() {
+        final long planned = plannedAgencies.get();
+
+        if (planned == 0) {
+            return null;
+        }
+
+        // The agencies which haven't been counted yet are guessed from the ones which have
+        final long unplanned = Math.max(0, agencies.size() - planned);
+
+        return expectedRecords.get() + unplanned * expectedRecords.get() / planned;
+    }
+
+    /**
+     * @return The estimated number of seconds until the dump is done, or null if it can't be estimated yet
+     */
+    public Long getEstimatedSecondsLeft() {
+        final Long expected = getExpectedRecords();
+        final double recordsPerSecond = getRecordsPerSecond();
+
+        if (status != Status.RUNNING || expected == null || recordsPerSecond <= 0) {
+            return null;
+        }
+
+        return (long) Math.ceil(Math.max(0, expected - records.sum()) / recordsPerSecond);
+    }
+
+    void agencyStarted(int agencyId, Long expected) {
+        runningAgencies.add(agencyId);
+
+        if (expected != null) {
+            expectedRecords.addAndGet(expected);
+            plannedAgencies.incrementAndGet();
+        }
+    }
+
+    void agencyDone(int agencyId) {
+        runningAgencies.remove(agencyId);
+    }
+
+    void setCheckpoint(String checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    void addStageTime(DumpStage stage, long nanos) {
+        stageNanos.get(stage).add(nanos);
+    }
+
+    void addBytes(long count) {
+        bytes.add(count);
+    }
+
+    /**
+     * Adds a slice which has been handed over to the output
+     *
+     * @param slice     The ids of the slice and their types
+     * @param timings   Where the time of the slice went
+     * @param workNanos The time the slice took, not counting the wait for a permit from the worker budget
+     */
+    void sliceDone(Map<String, String> slice, SliceTimings timings, long workNanos) {
+        for (String type : slice.values()) {
+            categories.computeIfAbsent(type == null ? "unknown" : type, k -> new LongAdder()).increment();
+        }
+        records.add(slice.size());
+
+        final long contentFetchNanos = timings.getDatabaseNanos() + timings.getPoolWaitNanos();
+        addStageTime(DumpStage.CONTENT_FETCH, contentFetchNanos);
+        addStageTime(DumpStage.EXPAND, timings.getExpandNanos());
+        addStageTime(DumpStage.ENCODE, timings.getEncodeNanos());
+        addStageTime(DumpStage.MERGE, Math.max(0, workNanos - contentFetchNanos - timings.getExpandNanos() - timings.getEncodeNanos()));
+    }
+
+    synchronized void finish(Status status) {
+        if (this.status == Status.RUNNING) {
+            this.status = status;
+            this.finished = Instant.now();
+            // A dump which failed didn't get to end its agencies
+            runningAgencies.clear();
+        }
+    }
+
+    long getStageNanos(DumpStage stage) {
+        return stageNanos.get(stage).sum();
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import dk.dbc.marc.binding.MarcRecord;
+import dk.dbc.marc.reader.MarcReaderException;
+import dk.dbc.rawrepo.service.RecordObjectMapper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A record on its way from a merger thread to the output. The content is the MarcXchange record in UTF-8 and the
+ * MarcRecord is only parsed the first time it is asked for, so an output format which can use the bytes as they are
+ * never parses the record and the others parse it once.
+ * <p>
+ * A record is only handled by a single merger thread, so it is not thread safe.
+ */
+public class DumpRecord {
+    private static final byte[] XML_DECLARATION_START = {'<', '?', 'x', 'm', 'l'};
+    private static final byte[] RECORD_START = {'<', 'r', 'e', 'c', 'o', 'r', 'd'};
+    private static final byte[] XMLNS = {'x', 'm', 'l', 'n', 's'};
+    private static final byte[] MARCXCHANGE_NAMESPACE = "info:lc/xmlns/marcxchange-v1".getBytes(StandardCharsets.UTF_8);
+
+    private final byte[] content;
+    private MarcRecord marcRecord;
+
+    public DumpRecord(byte[] content) {
+        this.content = content;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    public MarcRecord getMarcRecord() throws MarcReaderException {
+        if (marcRecord == null) {
+            marcRecord = RecordObjectMapper.contentToMarcRecord(content);
+        }
+
+        return marcRecord;
+    }
+
+    /**
+     * Returns the content without the XML declaration, if it has one, and the whitespace after it. This is what goes
+     * into a collection as the collection has its own declaration.
+     * <p>
+     * That only works if the root is a record element without a prefix in the MarcXchange namespace, or with no
+     * namespace of its own so it gets the one of the collection. Any other root, e.g. a collection of its own or a
+     * record with a prefix, must go through MarcXchangeV1Writer instead, so null is returned for it.
+     *
+     * @return The content from the record element and on, or null if the root isn't a plain record element
+     */
+    public byte[] getRecordElement() {
+        int start = skipWhitespace(0);
+
+        if (startsWith(start, XML_DECLARATION_START)) {
+            start = skipXmlDeclaration(start);
+        }
+
+        if (start < 0 || !isPlainRecordElement(start)) {
+            return null;
+        }
+
+        return start == 0 ? content : Arrays.copyOfRange(content, start, content.length);
+    }
+
+    private int skipXmlDeclaration(int from) {
+        // The declaration can't contain '?>' anywhere but at the end
+        for (int i = from + XML_DECLARATION_START.length; i < content.length - 1; i++) {
+            if (content[i] == '?' && content[i + 1] == '>') {
+                return skipWhitespace(i + 2);
+            }
+        }
+
+        return -1;
+    }
+
+    private boolean isPlainRecordElement(int start) {
+        int i = start + RECORD_START.length;
+
+        if (!startsWith(start, RECORD_START) || i >= content.length || !(isWhitespace(content[i]) || content[i] == '>' || content[i] == '/')) {
+            return false;
+        }
+
+        // Looks for a default namespace among the attributes of the start tag. Anything but the plain form falls back
+        for (; i < content.length && content[i] != '>'; i++) {
+            if (isWhitespace(content[i - 1]) && startsWith(i, XMLNS) && i + XMLNS.length < content.length && content[i + XMLNS.length] != ':') {
+                final int value = i + XMLNS.length + 2;
+                final int end = value + MARCXCHANGE_NAMESPACE.length;
+
+                return content[value - 2] == '=' && startsWith(value, MARCXCHANGE_NAMESPACE) &&
+                        end < content.length && (content[value - 1] == '"' || content[value - 1] == '\'') && content[end] == content[value - 1];
+            }
+        }
+
+        return i < content.length;
+    }
+
+    private int skipWhitespace(int from) {
+        int i = from;
+
+        // Also skips a UTF-8 byte order mark
+        if (i == 0 && content.length >= 3 && content[0] == (byte) 0xEF && content[1] == (byte) 0xBB && content[2] == (byte) 0xBF) {
+            i = 3;
+        }
+
+        while (i < content.length && isWhitespace(content[i])) {
+            i++;
+        }
+
+        return i;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+    }
+
+    private boolean startsWith(int offset, byte[] prefix) {
+        if (content.length - offset < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (content[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+}
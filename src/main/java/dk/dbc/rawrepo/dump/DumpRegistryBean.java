@@ -0,0 +1,159 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.eclipse.microprofile.metrics.Gauge;
+import org.eclipse.microprofile.metrics.MetricRegistry;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Keeps the progress of the running dumps and of the latest finished ones, so it can be seen what a dump is doing
+ * while it runs.
+ * <p>
+ * The totals exported as metrics are for all dumps since the service started. The progress of a dump is added to them
+ * when it finishes, and until then they include the running dumps, so the totals never go down.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class DumpRegistryBean {
+    private static final int MAX_RECENT_DUMPS = 50;
+
+    @Inject
+    private MetricRegistry metricRegistry;
+
+    private final Map<String, DumpProgress> running = new LinkedHashMap<>();
+    private final Deque<DumpProgress> recent = new ArrayDeque<>();
+
+    // Totals of the finished dumps
+    private long finishedRecords;
+    private long finishedBytes;
+    private final Map<DumpStage, Long> finishedStageNanos = new EnumMap<>(DumpStage.class);
+
+    @PostConstruct
+    public void init() {
+        metricRegistry.register("dumps_running", (Gauge<Integer>) this::getRunningCount);
+        metricRegistry.register("dump_records_total", (Gauge<Long>) () -> total(() -> finishedRecords, DumpProgress::getRecords));
+        metricRegistry.register("dump_bytes_total", (Gauge<Long>) () -> total(() -> finishedBytes, DumpProgress::getBytes));
+        metricRegistry.register("dump_records_per_second", (Gauge<Double>) this::getRecordsPerSecond);
+        for (DumpStage stage : DumpStage.values()) {
+            metricRegistry.register("dump_stage_" + stage.name().toLowerCase(Locale.ROOT) + "_millis_total",
+                    (Gauge<Long>) () -> total(() -> finishedStageNanos.getOrDefault(stage, 0L), progress -> progress.getStageNanos(stage)) / 1000000);
+        }
+    }
+
+    /**
+     * Registers a dump which is starting
+     *
+     * @param id       The id of the dump
+     * @param kind     The kind of dump, see DumpProgress.getKind
+     * @param agencies The agencies of the dump
+     * @param params   The params of the dump
+     * @return The progress the dump must report to and finish when it is over
+     */
+    public synchronized DumpProgress start(String id, String kind, List<Integer> agencies, Params params) {
+        final DumpProgress progress = new DumpProgress(id, kind, agencies, params);
+        running.put(id, progress);
+
+        return progress;
+    }
+
+    /**
+     * Moves a dump from the running to the recent dumps
+     *
+     * @param progress The progress of the dump
+     * @param status   How the dump ended
+     */
+    public synchronized void finish(DumpProgress progress, DumpProgress.Status status) {
+        progress.finish(status);
+
+        if (running.remove(progress.getId()) != null) {
+            finishedRecords += progress.getRecords();
+            finishedBytes += progress.getBytes();
+            for (DumpStage stage : DumpStage.values()) {
+                finishedStageNanos.merge(stage, progress.getStageNanos(stage), Long::sum);
+            }
+
+            recent.addFirst(progress);
+            while (recent.size() > MAX_RECENT_DUMPS) {
+                recent.removeLast();
+            }
+        }
+    }
+
+    /**
+     * @return The running dumps followed by the recent ones, newest first
+     */
+    public synchronized List<DumpProgress> list() {
+        final List<DumpProgress> result = new ArrayList<>(running.values());
+
+        // The running dumps are kept in the order they were started
+        Collections.reverse(result);
+        result.addAll(recent);
+
+        return result;
+    }
+
+    /**
+     * @param id The id of the dump
+     * @return The progress of the dump or null if it is neither running nor one of the recent dumps
+     */
+    public synchronized DumpProgress get(String id) {
+        final DumpProgress progress = running.get(id);
+
+        if (progress != null) {
+            return progress;
+        }
+
+        for (DumpProgress recentProgress : recent) {
+            if (recentProgress.getId().equals(id)) {
+                return recentProgress;
+            }
+        }
+
+        return null;
+    }
+
+    private synchronized int getRunningCount() {
+        return running.size();
+    }
+
+    private synchronized double getRecordsPerSecond() {
+        double recordsPerSecond = 0;
+
+        for (DumpProgress progress : running.values()) {
+            recordsPerSecond += progress.getRecordsPerSecond();
+        }
+
+        return recordsPerSecond;
+    }
+
+    private synchronized long total(LongSupplier finished, ToLongFunction<DumpProgress> value) {
+        long total = finished.getAsLong();
+
+        for (DumpProgress progress : running.values()) {
+            total += value.applyAsLong(progress);
+        }
+
+        return total;
+    }
+
+}
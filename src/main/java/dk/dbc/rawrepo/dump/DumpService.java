@@ -7,6 +7,9 @@ package dk.dbc.rawrepo.dump;
 
 import dk.dbc.jsonb.JSONBContext;
 import dk.dbc.jsonb.JSONBException;
+import dk.dbc.rawrepo.AuthorityCacheBean;
+import dk.dbc.rawrepo.Lane;
+import dk.dbc.rawrepo.LaneBean;
 import dk.dbc.rawrepo.RawRepoException;
 import dk.dbc.rawrepo.RecordRelationsBean;
 import dk.dbc.rawrepo.dao.HoldingsItemsBean;
@@ -23,12 +26,17 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Resource;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
-import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.enterprise.concurrent.ManagedThreadFactory;
 import javax.inject.Inject;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
@@ -37,32 +45,40 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringReader;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
 
 @Stateless
 @Path("api")
 public class DumpService {
     private static final Logger LOGGER = LoggerFactory.getLogger(DumpService.class);
+    private static final String APPLICATION_GZIP = "application/gzip";
+    // The id of a streamed dump in v1/dump/progress
+    private static final String DUMP_ID_HEADER = "X-Dump-Id";
     private final JSONBContext jsonbContext = new JSONBContext();
 
+    // The number of agencies which are dumped to spool files while an earlier agency is written to the output.
+    // 0 means the agencies are dumped one at a time.
     @Inject
-    @ConfigProperty(name = "DUMP_THREAD_COUNT", defaultValue = "8")
-    private int MAX_THREAD_COUNT;
+    @ConfigProperty(name = "DUMP_AGENCY_THREAD_COUNT", defaultValue = "3")
+    private int AGENCY_THREAD_COUNT;
 
-    @Inject
-    @ConfigProperty(name = "DUMP_SLICE_SIZE", defaultValue = "1000")
-    private int SLICE_SIZE;
-
-    @Resource(lookup = "java:comp/DefaultManagedExecutorService")
-    private ManagedExecutorService executor;
+    // Jobs run on their own thread instead of in the executor, as they would otherwise take up a thread the
+    // workers of the job need
+    @Resource(lookup = "java:comp/DefaultManagedThreadFactory")
+    private ManagedThreadFactory threadFactory;
 
     @Inject
     private VipCoreLibraryRulesConnector vipCoreLibraryRulesConnector;
@@ -76,6 +92,24 @@ public class DumpService {
     @EJB
     private HoldingsItemsBean holdingsItemsBean;
 
+    @EJB
+    private DumpJobBean dumpJobBean;
+
+    @EJB
+    private AuthorityCacheBean authorityCacheBean;
+
+    @EJB
+    private DumpStatisticsBean dumpStatisticsBean;
+
+    @EJB
+    private DumpTuningBean dumpTuningBean;
+
+    @EJB
+    private DumpRegistryBean dumpRegistryBean;
+
+    @EJB
+    private LaneBean laneBean;
+
     @POST
     @Path("v1/dump/dryrun")
     @Consumes({MediaType.APPLICATION_JSON})
@@ -98,14 +132,18 @@ public class DumpService {
             StreamingOutput output = out -> {
                 try {
                     for (Integer agencyId : params.getAgencies()) {
-                        final AgencyType agencyType = AgencyType.getAgencyType(vipCoreLibraryRulesConnector, agencyId);
-                        final Map<String, String> record = getRecords(agencyId, params);
-                        final Map<String, String> holdings = getHoldings(agencyId, agencyType, params, true);
+                        if (params.isSharded()) {
+                            // Counts for all the shards, so it can be seen how evenly the dump is split
+                            for (int i = 0; i < params.getShardCount(); i++) {
+                                final DumpPlan dumpPlan = planAgency(agencyId, params.forShard(i));
 
-                        final BibliographicIdResultSet bibliographicIdResultSet = new
-                                BibliographicIdResultSet(params, agencyType, SLICE_SIZE, record, holdings);
+                                out.write(String.format("%s shard %s/%s: %s%n", agencyId, i, params.getShardCount(), dumpPlan.getRecords()).getBytes());
+                            }
+                        } else {
+                            final DumpPlan dumpPlan = planAgency(agencyId, params);
 
-                        out.write(String.format("%s: %s%n", agencyId, bibliographicIdResultSet.size()).getBytes());
+                            out.write(String.format("%s: %s%n", agencyId, dumpPlan.getRecords()).getBytes());
+                        }
                     }
                 } catch (VipCoreException | RawRepoException | SQLException | IOException e) {
                     LOGGER.error("Caught exception during write", e);
@@ -124,10 +162,42 @@ public class DumpService {
         }
     }
 
+    /**
+     * Returns what a dump with the given params would contain per agency along with estimates of its size and
+     * duration. Everything is found with count queries, so this is cheap enough to run before scheduling a big dump.
+     */
+    @POST
+    @Path("v1/dump/plan")
+    @Consumes({MediaType.APPLICATION_JSON})
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response dumpLibraryRecordsPlan(AgencyParams params) {
+        try {
+            final List<ParamsValidationItemDTO> paramsValidationItemList = params.validate(vipCoreLibraryRulesConnector);
+            if (!paramsValidationItemList.isEmpty()) {
+                final ParamsValidationDTO paramsValidation = new ParamsValidationDTO();
+                paramsValidation.setErrors(paramsValidationItemList);
+                LOGGER.info("Validation errors: {}", paramsValidation);
+                return Response.status(400).entity(jsonbContext.marshall(paramsValidation)).build();
+            }
+
+            final List<DumpPlan> dumpPlans = new ArrayList<>();
+            for (Integer agencyId : params.getAgencies()) {
+                dumpPlans.add(planAgency(agencyId, params));
+            }
+
+            return Response.ok(jsonbContext.marshall(dumpPlans)).build();
+        } catch (JSONBException | VipCoreException | RawRepoException | SQLException ex) {
+            LOGGER.error("Caught unexpected exception", ex);
+            return Response.status(500).entity("Internal server error. Please see the server log.").build();
+        } finally {
+            LOGGER.info("v1/dump/plan");
+        }
+    }
+
     @POST
     @Path("v1/dump")
     @Consumes({MediaType.APPLICATION_JSON})
-    @Produces({MediaType.TEXT_PLAIN})
+    @Produces({MediaType.TEXT_PLAIN, APPLICATION_GZIP})
     public Response dumpLibraryRecords(AgencyParams params) {
         // The service is meant to be called from curl, so the error message should be easy to read.
         // Therefor the message is simple text instead of JSON or HTML
@@ -146,83 +216,349 @@ public class DumpService {
 
         LOGGER.info("Got request: {}", params);
 
-        try {
-            StreamingOutput output = out -> {
-                try {
-                    for (Integer agencyId : params.getAgencies()) {
-                        final RecordByteWriter recordByteWriter = new RecordByteWriter(out, params);
-                        recordByteWriter.writeHeader();
-                        final AgencyType agencyType = AgencyType.getAgencyType(vipCoreLibraryRulesConnector, agencyId);
-                        final Map<String, String> record = getRecords(agencyId, params);
-                        final Map<String, String> holdings = getHoldings(agencyId, agencyType, params, false);
-
-                        LOGGER.info("Opening connection and RecordResultSet...");
-                        final BibliographicIdResultSet bibliographicIdResultSet = new
-                                BibliographicIdResultSet(params, agencyType, SLICE_SIZE, record, holdings);
-
-                        LOGGER.info("Found {} records", bibliographicIdResultSet.size());
-                        List<Callable<Boolean>> threadList = new ArrayList<>();
-
-                        int loopCount = 0;
-
-                        do {
-                            loopCount++;
-
-                            if (agencyType == AgencyType.DBC) {
-                                threadList.add(new MergerThreadDBC(rawRepoBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId, params.getMode()));
-                            } else if (agencyType == AgencyType.FBS) {
-                                threadList.add(new MergerThreadFBS(rawRepoBean, recordRelationsBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId, params.getMode()));
-                            } else {
-                                threadList.add(new MergerThreadLocal(rawRepoBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId));
-                            }
+        final LaneBean.Admission admission = laneBean.tryEnter(Lane.DUMP);
+        if (admission == null) {
+            return laneBean.saturated(Lane.DUMP);
+        }
 
-                            // Execute the threads when either the outstanding thread count has reached max or it is the last loop
-                            if (loopCount % MAX_THREAD_COUNT == 0 || !bibliographicIdResultSet.hasNext()) {
-                                final List<Future<Boolean>> futures = executor.invokeAll(threadList);
-                                for (Future<Boolean> f : futures) {
-                                    try {
-                                        f.get(); // We don't care about the result, we just want to see if there was an exception during execution
-                                    } catch (ExecutionException e) {
-                                        LOGGER.error("Caught exception in a thread", e.getCause());
-                                        throw new WebApplicationException(e.getMessage(), e);
-                                    }
-                                }
-                                threadList = new ArrayList<>(); // Reset list to clean up old done threads
-                            }
-                        } while (bibliographicIdResultSet.hasNext());
+        // Returned to the client, so it can find the latest checkpoint with v1/dump/progress/{id} if the dump breaks off
+        final String dumpId = UUID.randomUUID().toString();
+        boolean handedOver = false;
 
-                        recordByteWriter.writeFooter();
-                    }
+        try {
+            StreamingOutput output = out -> {
+                admission.claim();
+                final DumpCancellation cancellation = new DumpCancellation();
+                final DumpProgress progress = dumpRegistryBean.start(dumpId, "dump", new ArrayList<>(params.getAgencies()), params);
+                try (LaneBean.Admission streaming = admission) {
+                    dumpAgencies(params, out, checkpoint -> LOGGER.debug("Checkpoint {}", checkpoint), new DumpFailures(ErrorPolicy.fromString(params.getOnError())), cancellation, progress);
+                    dumpRegistryBean.finish(progress, DumpProgress.Status.DONE);
                 } catch (VipCoreException | InterruptedException | RawRepoException | SQLException | IOException ex) {
                     LOGGER.error("Caught exception during write", ex);
                     throw new WebApplicationException("Caught exception during write", ex);
+                } finally {
+                    // Does nothing if the dump is done
+                    dumpRegistryBean.finish(progress, cancellation.isCancelled() ? DumpProgress.Status.CANCELLED : DumpProgress.Status.FAILED);
                 }
             };
 
             LOGGER.info("Dump complete");
 
-            return Response.ok(output).build();
+            final Response response = dumpResponse(output, params, dumpId);
+            laneBean.handOver(admission);
+            handedOver = true;
+
+            return response;
         } catch (WebApplicationException ex) {
             LOGGER.error("Caught unexpected exception", ex);
             return Response.status(500).entity("Internal server error. Please see the server log.").build();
         } finally {
+            // Until the admission has been handed over to the output it is given back here, whatever went wrong
+            if (!handedOver) {
+                admission.close();
+            }
             LOGGER.info("v1/dump");
         }
     }
 
+    @POST
+    @Path("v1/dump/job")
+    @Consumes({MediaType.APPLICATION_JSON})
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response createDumpJob(AgencyParams params) {
+        try {
+            final List<ParamsValidationItemDTO> paramsValidationItemList = params.validate(vipCoreLibraryRulesConnector);
+            if (!paramsValidationItemList.isEmpty()) {
+                final ParamsValidationDTO paramsValidation = new ParamsValidationDTO();
+                paramsValidation.setErrors(paramsValidationItemList);
+                LOGGER.info("Validation errors: {}", paramsValidation);
+                return Response.status(400).entity(jsonbContext.marshall(paramsValidation)).build();
+            }
+
+            // The job holds the admission until it is done, so jobs and streamed dumps share the limit of the lane
+            final LaneBean.Admission admission = laneBean.tryEnter(Lane.DUMP);
+            if (admission == null) {
+                return laneBean.saturated(Lane.DUMP);
+            }
+
+            final DumpJob job;
+            try {
+                job = dumpJobBean.create(params);
+                job.start(threadFactory.newThread(() -> runDumpJob(job, admission)));
+            } catch (RuntimeException e) {
+                // The job never got to own the admission
+                admission.close();
+                throw e;
+            }
+
+            return Response.status(202).entity(jsonbContext.marshall(job)).build();
+        } catch (JSONBException ex) {
+            LOGGER.error("Caught unexpected exception", ex);
+            return Response.status(500).entity("Internal server error. Please see the server log.").build();
+        } finally {
+            LOGGER.info("v1/dump/job");
+        }
+    }
+
+    @GET
+    @Path("v1/dump/job")
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response getDumpJobs() {
+        try {
+            return Response.ok(jsonbContext.marshall(dumpJobBean.list())).build();
+        } catch (JSONBException ex) {
+            LOGGER.error("Caught unexpected exception", ex);
+            return Response.status(500).entity("Internal server error. Please see the server log.").build();
+        } finally {
+            LOGGER.info("v1/dump/job");
+        }
+    }
+
+    @GET
+    @Path("v1/dump/job/{id}")
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response getDumpJob(@PathParam("id") String id) {
+        try {
+            final DumpJob job = dumpJobBean.get(id);
+
+            if (job == null) {
+                return Response.status(404).build();
+            }
+
+            return Response.ok(jsonbContext.marshall(job)).build();
+        } catch (JSONBException ex) {
+            LOGGER.error("Caught unexpected exception", ex);
+            return Response.status(500).entity("Internal server error. Please see the server log.").build();
+        } finally {
+            LOGGER.info("v1/dump/job/{id}");
+        }
+    }
+
+    /**
+     * Returns the content of the spool file of a job. The file can be downloaded while the job is still running, in
+     * which case the response only contains what has been written so far and the total length in Content-Range is
+     * unknown (*). A client can continue a download with a Range header.
+     */
+    @GET
+    @Path("v1/dump/job/{id}/content")
+    @Produces({MediaType.TEXT_PLAIN, APPLICATION_GZIP})
+    public Response getDumpJobContent(@PathParam("id") String id, @HeaderParam("Range") String rangeHeader) {
+        try {
+            final DumpJob job = dumpJobBean.get(id);
+
+            if (job == null) {
+                return Response.status(404).build();
+            }
+
+            // The status must be read before the length, as the length is only final if the job was done first
+            final DumpJob.Status status = job.getStatus();
+            if (status == DumpJob.Status.FAILED || status == DumpJob.Status.CANCELLED) {
+                return Response.status(409).entity("Dump job is " + status).build();
+            }
+
+            final long length = job.getSize();
+            final String totalLength = status == DumpJob.Status.DONE ? Long.toString(length) : "*";
+
+            ByteRange range;
+            try {
+                range = ByteRange.parse(rangeHeader, length);
+            } catch (IllegalArgumentException e) {
+                return Response.status(416).header("Content-Range", "bytes */" + length).build();
+            }
+
+            final boolean partial = range != null;
+            if (!partial) {
+                range = new ByteRange(0, length - 1);
+            }
+
+            final ByteRange selectedRange = range;
+            final StreamingOutput output = out -> job.transferTo(selectedRange, out);
+            final Response.ResponseBuilder responseBuilder = partial ? Response.status(206) : Response.ok();
+
+            responseBuilder.entity(output)
+                    .header("Accept-Ranges", "bytes")
+                    .header("Content-Length", selectedRange.getLength());
+
+            if (partial) {
+                responseBuilder.header("Content-Range", "bytes " + selectedRange.getStart() + "-" + selectedRange.getEnd() + "/" + totalLength);
+            }
+
+            if (Compression.fromString(job.getParams().getCompression()) == Compression.GZIP) {
+                responseBuilder.type(APPLICATION_GZIP);
+            } else {
+                responseBuilder.type(MediaType.TEXT_PLAIN);
+            }
+
+            return responseBuilder.build();
+        } finally {
+            LOGGER.info("v1/dump/job/{id}/content");
+        }
+    }
+
+    /**
+     * Returns the records the job skipped because of the onError policy, one per line. The failures are written when
+     * the job is over, so until then there is nothing to return.
+     */
+    @GET
+    @Path("v1/dump/job/{id}/failures")
+    @Produces({MediaType.TEXT_PLAIN})
+    public Response getDumpJobFailures(@PathParam("id") String id) {
+        try {
+            final DumpJob job = dumpJobBean.get(id);
+
+            if (job == null) {
+                return Response.status(404).build();
+            }
+
+            if (job.getStatus() == DumpJob.Status.RUNNING || !Files.exists(job.failuresFile())) {
+                return Response.status(409).entity("Dump job is " + job.getStatus()).build();
+            }
+
+            final StreamingOutput output = out -> Files.copy(job.failuresFile(), out);
+
+            return Response.ok(output).build();
+        } finally {
+            LOGGER.info("v1/dump/job/{id}/failures");
+        }
+    }
+
+    @DELETE
+    @Path("v1/dump/job/{id}")
+    public Response deleteDumpJob(@PathParam("id") String id) {
+        try {
+            if (!dumpJobBean.delete(id)) {
+                return Response.status(404).build();
+            }
+
+            return Response.noContent().build();
+        } finally {
+            LOGGER.info("v1/dump/job/{id}");
+        }
+    }
+
+    @GET
+    @Path("v1/dump/tuning")
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response getDumpTunings() {
+        try {
+            return Response.ok(jsonbContext.marshall(dumpTuningBean.list())).build();
+        } catch (JSONBException ex) {
+            LOGGER.error("Caught unexpected exception", ex);
+            return Response.status(500).entity("Internal server error. Please see the server log.").build();
+        } finally {
+            LOGGER.info("v1/dump/tuning");
+        }
+    }
+
+    /**
+     * Pins the slice size and the number of workers of dumps of the given kind of agency in the given mode. A value
+     * which is left out is adjusted again. The new values are used from the next agency which is dumped.
+     */
+    @PUT
+    @Path("v1/dump/tuning/{agencytype}/{mode}")
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response pinDumpTuning(@PathParam("agencytype") String agencyType,
+                                  @PathParam("mode") String mode,
+                                  @QueryParam("slice-size") Integer sliceSize,
+                                  @QueryParam("worker-count") Integer workerCount) {
+        try {
+            return updateDumpTuning(agencyType, mode, sliceSize, workerCount);
+        } finally {
+            LOGGER.info("v1/dump/tuning/{agencytype}/{mode}");
+        }
+    }
+
+    @DELETE
+    @Path("v1/dump/tuning/{agencytype}/{mode}")
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response unpinDumpTuning(@PathParam("agencytype") String agencyType,
+                                    @PathParam("mode") String mode) {
+        try {
+            return updateDumpTuning(agencyType, mode, null, null);
+        } finally {
+            LOGGER.info("v1/dump/tuning/{agencytype}/{mode}");
+        }
+    }
+
+    /**
+     * Returns the progress of the running dumps and of the latest finished ones. The id of a dump job is the id of
+     * the job.
+     */
+    @GET
+    @Path("v1/dump/progress")
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response getDumpProgress() {
+        try {
+            return Response.ok(jsonbContext.marshall(dumpRegistryBean.list())).build();
+        } catch (JSONBException ex) {
+            LOGGER.error("Caught unexpected exception", ex);
+            return Response.status(500).entity("Internal server error. Please see the server log.").build();
+        } finally {
+            LOGGER.info("v1/dump/progress");
+        }
+    }
+
+    @GET
+    @Path("v1/dump/progress/{id}")
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response getDumpProgress(@PathParam("id") String id) {
+        try {
+            final DumpProgress progress = dumpRegistryBean.get(id);
+
+            if (progress == null) {
+                return Response.status(404).build();
+            }
+
+            return Response.ok(jsonbContext.marshall(progress)).build();
+        } catch (JSONBException ex) {
+            LOGGER.error("Caught unexpected exception", ex);
+            return Response.status(500).entity("Internal server error. Please see the server log.").build();
+        } finally {
+            LOGGER.info("v1/dump/progress/{id}");
+        }
+    }
+
+    private Response updateDumpTuning(String agencyTypeValue, String modeValue, Integer sliceSize, Integer workerCount) {
+        final AgencyType agencyType;
+        final Mode mode;
+        try {
+            agencyType = AgencyType.valueOf(agencyTypeValue.trim().toUpperCase());
+            mode = Mode.fromString(modeValue);
+        } catch (IllegalArgumentException ex) {
+            return Response.status(400).entity("Agency type must be one of " + Arrays.toString(AgencyType.values()) + " and mode one of " + Mode.validValues()).build();
+        }
+
+        try {
+            final DumpTuning tuning = dumpTuningBean.get(agencyType, mode);
+            tuning.pin(sliceSize, workerCount);
+            LOGGER.info("Dump tuning of {} {} pinned to slice size {} and {} workers", agencyType, mode, sliceSize, workerCount);
+
+            return Response.ok(jsonbContext.marshall(tuning.getStatus(agencyType, mode))).build();
+        } catch (IllegalArgumentException ex) {
+            return Response.status(400).entity(ex.getMessage()).build();
+        } catch (JSONBException ex) {
+            LOGGER.error("Caught unexpected exception", ex);
+            return Response.status(500).entity("Internal server error. Please see the server log.").build();
+        }
+    }
+
     @POST
     @Path("v1/dump/record")
     @Consumes({MediaType.TEXT_PLAIN})
-    @Produces({MediaType.TEXT_PLAIN})
+    @Produces({MediaType.TEXT_PLAIN, APPLICATION_GZIP})
     public Response dumpSingleRecords(String input,
                                       @DefaultValue("UTF-8") @QueryParam("output-encoding") String outputEncoding,
                                       @DefaultValue("LINE") @QueryParam("output-format") String outputFormat,
-                                      @DefaultValue("MERGED") @QueryParam("mode") String mode) {
+                                      @DefaultValue("MERGED") @QueryParam("mode") String mode,
+                                      @DefaultValue("NONE") @QueryParam("compression") String compression,
+                                      @DefaultValue("ABORT") @QueryParam("on-error") String onError) {
         LOGGER.info(input);
         final RecordParams params = new RecordParams();
         params.setOutputEncoding(outputEncoding);
         params.setOutputFormat(outputFormat);
         params.setMode(mode);
+        params.setCompression(compression);
+        params.setOnError(onError);
         // The service is meant to be called from curl, so the error message should be easy to read.
         // Therefor the message is simple text instead of JSON or HTML
         try {
@@ -252,105 +588,318 @@ public class DumpService {
 
         LOGGER.info("Got request: {}", params);
 
-        try {
-            StreamingOutput output = out -> {
-                try {
-                    for (Integer agencyId : params.getAgencies()) {
-                        final RecordByteWriter recordByteWriter = new RecordByteWriter(out, params);
-                        recordByteWriter.writeHeader();
-                        final AgencyType agencyType = AgencyType.getAgencyType(vipCoreLibraryRulesConnector, agencyId);
-                        final Map<String, String> record = getRecords(agencyId, params);
-
-                        LOGGER.info("Opening connection and RecordResultSet...");
-                        final BibliographicIdResultSet bibliographicIdResultSet = new
-                                BibliographicIdResultSet(SLICE_SIZE, record);
-
-                        LOGGER.info("Found {} records", bibliographicIdResultSet.size());
-                        List<Callable<Boolean>> threadList = new ArrayList<>();
-
-                        int loopCount = 0;
-
-                        do {
-                            loopCount++;
+        final LaneBean.Admission admission = laneBean.tryEnter(Lane.DUMP);
+        if (admission == null) {
+            return laneBean.saturated(Lane.DUMP);
+        }
 
-                            if (agencyType == AgencyType.DBC) {
-                                threadList.add(new MergerThreadDBC(rawRepoBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId, params.getMode()));
-                            } else if (agencyType == AgencyType.FBS) {
-                                threadList.add(new MergerThreadFBS(rawRepoBean, recordRelationsBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId, params.getMode()));
-                            } else {
-                                threadList.add(new MergerThreadLocal(rawRepoBean, bibliographicIdResultSet.next(), recordByteWriter, agencyId));
-                            }
+        final String dumpId = UUID.randomUUID().toString();
+        boolean handedOver = false;
 
-                            // Execute the threads when either the outstanding thread count has reached max or it is the last loop
-                            if (loopCount % MAX_THREAD_COUNT == 0 || !bibliographicIdResultSet.hasNext()) {
-                                final List<Future<Boolean>> futures = executor.invokeAll(threadList);
-                                for (Future<Boolean> f : futures) {
-                                    try {
-                                        f.get(); // We don't care about the result, we just want to see if there was an exception during execution
-                                    } catch (ExecutionException e) {
-                                        LOGGER.error("Caught exception in thread", e);
-                                        throw new WebApplicationException(e.getMessage(), e);
-                                    }
-                                }
-                                threadList = new ArrayList<>(); // Reset list to clean up old done threads
-                            }
-                        } while (bibliographicIdResultSet.hasNext());
-
-                        recordByteWriter.writeFooter();
-                    }
-                } catch (VipCoreException | InterruptedException | RawRepoException | IOException ex) {
+        try {
+            StreamingOutput output = out -> {
+                admission.claim();
+                final DumpCancellation cancellation = new DumpCancellation();
+                final DumpProgress progress = dumpRegistryBean.start(dumpId, "records", new ArrayList<>(params.getAgencies()), params);
+                try (LaneBean.Admission streaming = admission) {
+                    final DumpFailures failures = new DumpFailures(ErrorPolicy.fromString(params.getOnError()));
+                    dumpSections(new ArrayList<>(params.getAgencies()), out, checkpoint -> {
+                            }, cancellation,
+                            (agencyId, sectionOut, workerBudget, checkpointListener) -> dumpRecords(params, agencyId, sectionOut, workerBudget, failures, cancellation, progress));
+                    dumpRegistryBean.finish(progress, DumpProgress.Status.DONE);
+                } catch (VipCoreException | InterruptedException | RawRepoException | SQLException | IOException ex) {
                     LOGGER.error("Caught exception during write", ex);
                     throw new WebApplicationException("Caught exception during write", ex);
+                } finally {
+                    // Does nothing if the dump is done
+                    dumpRegistryBean.finish(progress, cancellation.isCancelled() ? DumpProgress.Status.CANCELLED : DumpProgress.Status.FAILED);
                 }
             };
 
             LOGGER.info("Dump complete");
 
-            return Response.ok(output).build();
+            final Response response = dumpResponse(output, params, dumpId);
+            laneBean.handOver(admission);
+            handedOver = true;
+
+            return response;
         } catch (WebApplicationException ex) {
             LOGGER.error("Caught unexpected exception", ex);
             return Response.status(500).entity("Internal server error. Please see the server log.").build();
         } finally {
+            if (!handedOver) {
+                admission.close();
+            }
             LOGGER.info("v1/dump/record");
         }
     }
 
-    private Map<String, String> getRecords(int agencyId, AgencyParams params) throws RawRepoException {
-        Map<String, String> rawrepoRecordMap;
+    private void dumpAgencies(AgencyParams params, OutputStream out, Consumer<String> checkpoints, DumpFailures failures, DumpCancellation cancellation, DumpProgress progress) throws VipCoreException, InterruptedException, RawRepoException, SQLException, IOException {
+        final List<Integer> agencyIds = new ArrayList<>(params.getAgencies());
+        final Integer resumeAfterAgencyId = params.resumeAfterAgencyId();
 
-        if (params.getCreatedTo() == null && params.getCreatedFrom() == null && params.getModifiedTo() == null && params.getModifiedFrom() == null) {
-            rawrepoRecordMap = rawRepoBean.getBibliographicRecordIdForAgency(agencyId, RecordStatus.fromString(params.getRecordStatus()));
-        } else {
-            rawrepoRecordMap = rawRepoBean.getBibliographicRecordIdForAgencyInterval(agencyId, RecordStatus.fromString(params.getRecordStatus()), params.getCreatedTo(), params.getCreatedFrom(), params.getModifiedTo(), params.getModifiedFrom());
+        // When resuming, the agencies before the one in resumeAfter have already been dumped
+        if (resumeAfterAgencyId != null) {
+            final List<Integer> skipped = agencyIds.subList(0, agencyIds.indexOf(resumeAfterAgencyId));
+            LOGGER.info("Skipping agencies {} as the dump is resumed after {}", skipped, params.getResumeAfter());
+            skipped.clear();
         }
 
-        return rawrepoRecordMap;
+        // All agencies are read from the same snapshot, so the sections are consistent with each other as well
+        try (DumpSnapshot snapshot = params.isSnapshot() ? rawRepoBean.exportSnapshot() : null) {
+            dumpSections(agencyIds, out, checkpoint -> {
+                        progress.setCheckpoint(checkpoint);
+                        checkpoints.accept(checkpoint);
+                    }, cancellation,
+                    (agencyId, sectionOut, workerBudget, checkpointListener) -> {
+                        final String resumeAfter = agencyId.equals(resumeAfterAgencyId) ? params.resumeAfterBibliographicRecordId() : null;
+
+                        dumpAgency(params, agencyId, resumeAfter, sectionOut, workerBudget, checkpointListener, snapshot, failures, cancellation, progress);
+                    });
+        }
+
+        if (failures.getCount() > 0) {
+            LOGGER.warn("Skipped {} records which could not be dumped", failures.getCount());
+        }
     }
 
-    private Map<String, String> getRecords(int agencyId, RecordParams params) throws RawRepoException {
-        Map<String, String> rawrepoRecordMap;
+    /**
+     * Dumps the agencies in order, each as its own section of the output. The first agency is written directly to the
+     * output while up to DUMP_AGENCY_THREAD_COUNT of the following agencies are dumped to spool files, which are
+     * copied to the output when it is their turn. The next agency is only spooled once a spool file has been copied.
+     * <p>
+     * All agencies share a budget of DUMP_THREAD_COUNT workers, so at most that many slices are merged at once no
+     * matter how many agencies are being dumped, and an agency which is busy fetching ids leaves its workers to the
+     * others. An agency doesn't start its workers before there is room for them in the budget.
+     * <p>
+     * If any section fails, e.g. because the client has gone away, the whole dump is cancelled, so the sections being
+     * spooled stop their queries as well.
+     */
+    private void dumpSections(List<Integer> agencyIds, OutputStream out, DumpPipeline.CheckpointListener checkpointListener, DumpCancellation cancellation, AgencySectionDump agencySectionDump) throws VipCoreException, InterruptedException, RawRepoException, SQLException, IOException {
+        final Semaphore workerBudget = new Semaphore(dumpTuningBean.getWorkerBudget());
 
-        rawrepoRecordMap = rawRepoBean.getMimeTypeForRecordId(params.getBibliographicRecordIdByAgencyId(agencyId), agencyId);
+        try {
+            if (AGENCY_THREAD_COUNT <= 0 || agencyIds.size() <= 1) {
+                for (Integer agencyId : agencyIds) {
+                    agencySectionDump.dump(agencyId, out, workerBudget, checkpointListener);
+                }
 
-        return rawrepoRecordMap;
+                return;
+            }
+
+            try (SectionSpooler sectionSpooler = new SectionSpooler(threadFactory, AGENCY_THREAD_COUNT, dumpJobBean)) {
+                for (Integer agencyId : agencyIds.subList(1, agencyIds.size())) {
+                    sectionSpooler.spool(agencyId, (spooledAgencyId, sectionOut, sectionCheckpointListener) ->
+                            agencySectionDump.dump(spooledAgencyId, sectionOut, workerBudget, sectionCheckpointListener));
+                }
+
+                agencySectionDump.dump(agencyIds.get(0), out, workerBudget, checkpointListener);
+
+                sectionSpooler.appendTo(out, checkpointListener);
+            }
+        } catch (Exception e) {
+            cancellation.cancel();
+            throw e;
+        }
     }
 
-    private Map<String, String> getHoldings(int agencyId, AgencyType agencyType, AgencyParams params, boolean exactMatch) throws SQLException, RawRepoException {
-        Map<String, String> holdings = null;
+    @FunctionalInterface
+    private interface AgencySectionDump {
+        void dump(Integer agencyId, OutputStream out, Semaphore workerBudget, DumpPipeline.CheckpointListener checkpointListener) throws VipCoreException, InterruptedException, RawRepoException, SQLException, IOException;
+    }
 
-        if (AgencyType.FBS == agencyType && params.getRecordType().contains(RecordType.HOLDINGS.toString())) {
-            holdings = holdingsItemsBean.getRecordIdsWithHolding(agencyId);
+    private void dumpAgency(AgencyParams params, int agencyId, String resumeAfter, OutputStream out, Semaphore workerBudget, DumpPipeline.CheckpointListener checkpointListener, DumpSnapshot snapshot, DumpFailures failures, DumpCancellation cancellation, DumpProgress progress) throws VipCoreException, InterruptedException, RawRepoException, SQLException, IOException {
+        final long started = System.currentTimeMillis();
+        final RecordByteWriter recordByteWriter = new RecordByteWriter(out, params);
+        recordByteWriter.writeHeader();
+        final AgencyType agencyType = AgencyType.getAgencyType(vipCoreLibraryRulesConnector, agencyId);
+        final DumpTuning tuning = dumpTuningBean.get(agencyType, Mode.fromString(params.getMode()));
+        final int sliceSize = tuning.getSliceSize();
+        // Taken from the last dump of the agency, as counting the records would be an extra scan of the agency
+        progress.agencyStarted(agencyId, dumpStatisticsBean.getAgencyRecords(agencyId, params));
+
+        LOGGER.info("Opening connection and RecordResultSet...");
+        final boolean copy = isCopiedAsStored(agencyType, params);
+        // Bound while the ids are read, so the queries of the iterator are cancelled along with the dump
+        try (DumpCancellation.Binding cancellationBinding = cancellation.bind();
+             DumpSnapshot.Binding binding = snapshot == null ? null : snapshot.bind();
+             BibliographicIdIterator bibliographicIdResultSet = copy
+                     ? rawRepoBean.openRecordCopy(agencyId, params, resumeAfter, sliceSize)
+                     : getBibliographicIds(agencyId, agencyType, params, resumeAfter, sliceSize)) {
+            final DumpPipeline dumpPipeline = new DumpPipeline(laneBean.getExecutor(Lane.DUMP), tuning, workerBudget, recordByteWriter, cancellation, progress);
+            dumpPipeline.run(bibliographicIdResultSet, slice -> {
+                        final Callable<Boolean> mergerThread = copy
+                                ? new MergerThreadCopy((RecordCopySlice) slice, recordByteWriter, agencyId, failures)
+                                : createMergerThread(agencyType, slice, recordByteWriter, agencyId, params, failures);
+
+                        // Each slice imports the snapshot on its own connection, so the slices are still fetched in parallel
+                        return snapshot == null ? mergerThread : snapshot.bound(mergerThread);
+                    },
+                    bibliographicRecordId -> {
+                        final String checkpoint = agencyId + ":" + bibliographicRecordId;
+                        recordByteWriter.writeCheckpoint(checkpoint);
+                        checkpointListener.checkpoint(checkpoint);
+                    });
+
+            // Logged afterwards, as the iterators only know how many ids they have handed out
+            LOGGER.info("Dumped {} records", recordByteWriter.getRecordCount());
+        }
+
+        recordByteWriter.writeFailures(failures, agencyId);
+        recordByteWriter.writeFooter();
+        dumpStatisticsBean.record(params, recordByteWriter.getRecordCount(), recordByteWriter.getEncodedBytes(), System.currentTimeMillis() - started);
+        if (resumeAfter == null) {
+            dumpStatisticsBean.recordAgency(agencyId, params, recordByteWriter.getRecordCount());
+        }
+        progress.agencyDone(agencyId);
+    }
+
+    private void dumpRecords(RecordParams params, int agencyId, OutputStream out, Semaphore workerBudget, DumpFailures failures, DumpCancellation cancellation, DumpProgress progress) throws VipCoreException, InterruptedException, RawRepoException, IOException {
+        final long started = System.currentTimeMillis();
+        final RecordByteWriter recordByteWriter = new RecordByteWriter(out, params);
+        recordByteWriter.writeHeader();
+        final AgencyType agencyType = AgencyType.getAgencyType(vipCoreLibraryRulesConnector, agencyId);
+        final Map<String, String> record = getRecords(agencyId, params);
+        final DumpTuning tuning = dumpTuningBean.get(agencyType, Mode.fromString(params.getMode()));
+        progress.agencyStarted(agencyId, (long) record.size());
+
+        LOGGER.info("Opening connection and RecordResultSet...");
+        final BibliographicIdResultSet bibliographicIdResultSet = new
+                BibliographicIdResultSet(tuning.getSliceSize(), record);
+
+        LOGGER.info("Found {} records", bibliographicIdResultSet.size());
 
-            if (exactMatch) {
-                // There can be holdings on things not present in rawrepo. So to get a more exact list we need to check
-                // which ids actually exists
-                Set<String> rawrepoRecordsIdsWithHoldings = rawRepoBean.getRawrepoRecordsIdsWithHoldings(holdings.keySet(), agencyId);
+        final DumpPipeline dumpPipeline = new DumpPipeline(laneBean.getExecutor(Lane.DUMP), tuning, workerBudget, recordByteWriter, cancellation, progress);
+        dumpPipeline.run(bibliographicIdResultSet, slice -> createMergerThread(agencyType, slice, recordByteWriter, agencyId, params, failures));
+
+        recordByteWriter.writeFailures(failures, agencyId);
+        recordByteWriter.writeFooter();
+        dumpStatisticsBean.record(params, recordByteWriter.getRecordCount(), recordByteWriter.getEncodedBytes(), System.currentTimeMillis() - started);
+        progress.agencyDone(agencyId);
+    }
+
+    private void runDumpJob(DumpJob job, LaneBean.Admission admission) {
+        LOGGER.info("Starting dump job {}: {}", job.getId(), job.getParams());
+
+        final DumpFailures failures = new DumpFailures(ErrorPolicy.fromString(job.getParams().getOnError()));
+        final DumpProgress progress = dumpRegistryBean.start(job.getId(), "job", new ArrayList<>(job.getParams().getAgencies()), job.getParams());
+
+        try (LaneBean.Admission running = admission;
+             OutputStream out = Files.newOutputStream(job.file())) {
+            dumpAgencies(job.getParams(), out, job::setCheckpoint, failures, job.cancellation(), progress);
+            job.done();
+            dumpRegistryBean.finish(progress, DumpProgress.Status.DONE);
+            LOGGER.info("Dump job {} complete", job.getId());
+        } catch (InterruptedException | ClosedByInterruptException | CancellationException e) {
+            // The job has been cancelled
+            job.cancel();
+            dumpRegistryBean.finish(progress, DumpProgress.Status.CANCELLED);
+            LOGGER.info("Dump job {} cancelled", job.getId());
+        } catch (Exception e) {
+            LOGGER.error("Caught exception during dump job {}", job.getId(), e);
+            job.failed(e.getMessage());
+            dumpRegistryBean.finish(progress, DumpProgress.Status.FAILED);
+        }
 
-                holdings.keySet().retainAll(rawrepoRecordsIdsWithHoldings);
+        // Also when the job failed, so the failures up until then are known when the job is resumed
+        try {
+            job.writeFailures(failures);
+        } catch (IOException e) {
+            LOGGER.error("Could not write failures of dump job {}", job.getId(), e);
+        }
+    }
+
+    private Response dumpResponse(StreamingOutput output, Params params, String dumpId) {
+        final Response.ResponseBuilder responseBuilder = Response.ok(output).header(DUMP_ID_HEADER, dumpId);
+
+        if (Compression.fromString(params.getCompression()) == Compression.GZIP) {
+            responseBuilder.type(APPLICATION_GZIP);
+        }
+
+        return responseBuilder.build();
+    }
+
+    /**
+     * Local agencies and DBC in RAW mode are dumped as the records are stored, so there is nothing to merge and the
+     * records can be streamed with COPY including their content instead of being fetched slice by slice.
+     */
+    private boolean isCopiedAsStored(AgencyType agencyType, AgencyParams params) {
+        return agencyType == AgencyType.LOCAL || agencyType == AgencyType.DBC && Mode.fromString(params.getMode()) == Mode.RAW;
+    }
+
+    private Callable<Boolean> createMergerThread(AgencyType agencyType, Map<String, String> slice, RecordByteWriter recordByteWriter, int agencyId, Params params, DumpFailures failures) {
+        if (agencyType == AgencyType.DBC) {
+            return new MergerThreadDBC(rawRepoBean, authorityCacheBean, slice, recordByteWriter, agencyId, params.getMode(), failures);
+        } else if (agencyType == AgencyType.FBS) {
+            return new MergerThreadFBS(rawRepoBean, recordRelationsBean, authorityCacheBean, slice, recordByteWriter, agencyId, params.getMode(), failures);
+        } else {
+            return new MergerThreadLocal(rawRepoBean, slice, recordByteWriter, agencyId, failures);
+        }
+    }
+
+    private DumpPlan planAgency(int agencyId, AgencyParams params) throws VipCoreException, RawRepoException, SQLException {
+        final AgencyType agencyType = AgencyType.getAgencyType(vipCoreLibraryRulesConnector, agencyId);
+        final List<String> excludedMimeTypes = BibliographicIdCursor.getExcludedMimeTypes(params, agencyType);
+        final DumpPlan dumpPlan = new DumpPlan(agencyId, agencyType, rawRepoBean.countMimeTypesForAgency(agencyId, params));
+        long records = 0;
+
+        for (MimeTypeCount mimeTypeCount : dumpPlan.getMimeTypes()) {
+            if (!excludedMimeTypes.contains(mimeTypeCount.getMimeType())) {
+                records += mimeTypeCount.getCount();
             }
         }
 
-        return holdings;
+        if (AgencyType.FBS == agencyType && params.getRecordType().contains(RecordType.HOLDINGS.toString())) {
+            final int holdings = holdingsItemsBean.countRecordIdsWithHolding(agencyId, params);
+
+            dumpPlan.setHoldings(holdings);
+            dumpPlan.setExact(false);
+            records += holdings;
+        }
+
+        dumpPlan.setRecords(records);
+
+        final Double bytesPerRecord = dumpStatisticsBean.getBytesPerRecord(params);
+        if (bytesPerRecord != null) {
+            dumpPlan.setEstimatedBytes(Math.round(records * bytesPerRecord));
+        }
+
+        final Double recordsPerSecond = dumpStatisticsBean.getRecordsPerSecond(params);
+        if (recordsPerSecond != null && recordsPerSecond > 0) {
+            dumpPlan.setEstimatedSeconds((long) Math.ceil(records / recordsPerSecond));
+        }
+
+        LOGGER.info("Planned {}", dumpPlan);
+
+        return dumpPlan;
+    }
+
+    private BibliographicIdIterator getBibliographicIds(int agencyId, AgencyType agencyType, AgencyParams params, String resumeAfter, int sliceSize) throws SQLException, RawRepoException {
+        // Without holdings the ids don't have to be combined with anything, so they can be read directly from rawrepo
+        // one slice at a time
+        if (!(AgencyType.FBS == agencyType && params.getRecordType().contains(RecordType.HOLDINGS.toString()))) {
+            return new BibliographicIdCursor(rawRepoBean, agencyId, params, agencyType, sliceSize, resumeAfter);
+        }
+
+        // With holdings both databases stream their ids in the same order and the two streams are merge-joined
+        final List<String> excludedMimeTypes = BibliographicIdCursor.getExcludedMimeTypes(params, agencyType);
+        final SortedIdCursor records = rawRepoBean.openBibliographicRecordIdCursor(agencyId, params, resumeAfter);
+        try {
+            final SortedIdCursor holdings = holdingsItemsBean.openRecordIdsWithHoldingCursor(agencyId, params, resumeAfter);
+
+            return new BibliographicIdMergeJoin(records, holdings, excludedMimeTypes, sliceSize);
+        } catch (SQLException e) {
+            records.close();
+            throw e;
+        }
+    }
+
+    private Map<String, String> getRecords(int agencyId, RecordParams params) throws RawRepoException {
+        Map<String, String> rawrepoRecordMap;
+
+        rawrepoRecordMap = rawRepoBean.getMimeTypeForRecordId(params.getBibliographicRecordIdByAgencyId(agencyId), agencyId);
+
+        return rawrepoRecordMap;
     }
 
 }
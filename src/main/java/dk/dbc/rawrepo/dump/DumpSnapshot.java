@@ -0,0 +1,195 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Callable;
+
+/**
+ * A point in time of the rawrepo database which all reads of a dump can share, so records which are changed while
+ * the dump runs are seen the same way by the id listing and by the content fetch.
+ * <p>
+ * The snapshot is exported by a REPEATABLE READ transaction on a coordinator connection, which must stay open for as
+ * long as the snapshot is in use. Every thread working on the dump binds its own connection, which imports the
+ * snapshot, so the dump still reads through many connections in parallel. While a connection is bound RawRepoBean
+ * uses it instead of taking one from the pool.
+ */
+public class DumpSnapshot implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DumpSnapshot.class);
+
+    private static final ThreadLocal<Connection> BOUND_CONNECTIONS = new ThreadLocal<>();
+
+    private final DataSource dataSource;
+    private final Connection coordinator;
+    private final String snapshotId;
+
+    private DumpSnapshot(DataSource dataSource, Connection coordinator, String snapshotId) {
+        this.dataSource = dataSource;
+        this.coordinator = coordinator;
+        this.snapshotId = snapshotId;
+    }
+
+    /**
+     * Starts the coordinator transaction and exports its snapshot
+     *
+     * @param dataSource The rawrepo datasource
+     * @return The snapshot, which must be closed when the dump is done
+     * @throws SQLException If the snapshot can't be exported
+     */
+    public static DumpSnapshot export(DataSource dataSource) throws SQLException {
+        final Connection coordinator = dataSource.getConnection();
+
+        try {
+            coordinator.setAutoCommit(false);
+            try (Statement stmt = coordinator.createStatement()) {
+                stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+                try (ResultSet resultSet = stmt.executeQuery("SELECT pg_export_snapshot()")) {
+                    resultSet.next();
+
+                    final DumpSnapshot snapshot = new DumpSnapshot(dataSource, coordinator, resultSet.getString(1));
+                    LOGGER.info("Exported snapshot {}", snapshot.getSnapshotId());
+
+                    return snapshot;
+                }
+            }
+        } catch (SQLException e) {
+            end(coordinator);
+            throw e;
+        }
+    }
+
+    public String getSnapshotId() {
+        return snapshotId;
+    }
+
+    /**
+     * Opens a connection which sees the snapshot and binds it to the calling thread until the binding is closed. A
+     * connection which was bound already is bound again when the binding is closed.
+     *
+     * @return The binding
+     * @throws SQLException If the snapshot can't be imported
+     */
+    public Binding bind() throws SQLException {
+        final long started = System.nanoTime();
+        final Connection connection = dataSource.getConnection();
+        SliceTimings.addPoolWaitTime(System.nanoTime() - started);
+
+        try {
+            connection.setAutoCommit(false);
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+                stmt.execute("SET TRANSACTION SNAPSHOT '" + snapshotId.replace("'", "''") + "'");
+            }
+        } catch (SQLException e) {
+            end(connection);
+            throw e;
+        }
+
+        final Connection previous = BOUND_CONNECTIONS.get();
+        BOUND_CONNECTIONS.set(connection);
+
+        return new Binding(connection, previous);
+    }
+
+    /**
+     * @param callable The work to do
+     * @param <T>      The result type of the work
+     * @return The same work, but done with a connection bound to the snapshot
+     */
+    public <T> Callable<T> bound(Callable<T> callable) {
+        return () -> {
+            try (Binding binding = bind()) {
+                return callable.call();
+            }
+        };
+    }
+
+    /**
+     * Returns the connection bound to the calling thread. The connection is only lent out, so closing it and ending
+     * its transaction is left to the binding, and the corresponding calls on the returned connection do nothing.
+     *
+     * @return The bound connection or null if no connection is bound to the calling thread
+     */
+    public static Connection getBoundConnection() {
+        final Connection connection = BOUND_CONNECTIONS.get();
+
+        if (connection == null) {
+            return null;
+        }
+
+        return (Connection) Proxy.newProxyInstance(DumpSnapshot.class.getClassLoader(), new Class[]{Connection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                        case "commit":
+                        case "rollback":
+                        case "setAutoCommit":
+                            return null;
+                        default:
+                            try {
+                                return method.invoke(connection, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                    }
+                });
+    }
+
+    @Override
+    public void close() {
+        LOGGER.info("Releasing snapshot {}", snapshotId);
+        end(coordinator);
+    }
+
+    // Nothing is written within a snapshot, so the transaction is rolled back before the connection goes back to the pool
+    private static void end(Connection connection) {
+        try {
+            connection.rollback();
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            LOGGER.warn("Failed to end snapshot transaction", e);
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.warn("Failed to close snapshot connection", e);
+            }
+        }
+    }
+
+    /**
+     * A connection bound to the thread which opened it
+     */
+    public static class Binding implements AutoCloseable {
+        private final Connection connection;
+        private final Connection previous;
+
+        private Binding(Connection connection, Connection previous) {
+            this.connection = connection;
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (previous == null) {
+                BOUND_CONNECTIONS.remove();
+            } else {
+                BOUND_CONNECTIONS.set(previous);
+            }
+            end(connection);
+        }
+    }
+
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+/**
+ * The stages a record goes through in a dump, which DumpProgress reports the time of
+ */
+public enum DumpStage {
+    // Reading the ids of the records to dump. For records which are copied as they are stored this includes their content.
+    ID_LISTING,
+    // Fetching the content of the records, including waiting for a connection
+    CONTENT_FETCH,
+    // Merging enrichments and common records, and whatever else the merger threads do which isn't another stage
+    MERGE,
+    // Expanding records with their authority records
+    EXPAND,
+    // Encoding the records in the output format
+    ENCODE,
+    // Writing the encoded records to the output
+    WRITE
+}
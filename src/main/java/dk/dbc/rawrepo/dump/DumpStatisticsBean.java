@@ -0,0 +1,113 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the throughput of the dumps which have been run since the service started, so the dump planner can
+ * estimate how long a dump will take and how large the output will be.
+ * <p>
+ * The throughput is kept per output format and mode, as e.g. an expanded ISO dump is a lot slower than a raw
+ * LINE_XML dump. The sizes are before compression.
+ * <p>
+ * The number of records of each agency is also kept, so the progress of a dump can be estimated without counting
+ * the records first. Only dumps of a whole agency without date filters are kept, as the count of an incremental
+ * dump says nothing about the next one.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class DumpStatisticsBean {
+    private final Map<String, Throughput> throughputs = new ConcurrentHashMap<>();
+    private final Map<String, Long> agencyRecords = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a finished agency to the statistics
+     *
+     * @param params  The params of the dump
+     * @param records The number of records dumped
+     * @param bytes   The size of the encoded records
+     * @param millis  How long it took to dump the agency
+     */
+    public void record(Params params, long records, long bytes, long millis) {
+        if (records > 0) {
+            final Throughput throughput = throughputs.computeIfAbsent(key(params), k -> new Throughput());
+
+            throughput.records.add(records);
+            throughput.bytes.add(bytes);
+            throughput.millis.add(millis);
+        }
+    }
+
+    /**
+     * Keeps the number of records of an agency which has been dumped from the start to the end
+     *
+     * @param agencyId The agency
+     * @param params   The params of the dump
+     * @param records  The number of records dumped
+     */
+    public void recordAgency(int agencyId, AgencyParams params, long records) {
+        if (!hasDateFilter(params)) {
+            agencyRecords.put(agencyKey(agencyId, params), records);
+        }
+    }
+
+    /**
+     * @param agencyId The agency
+     * @param params   The params of the dump
+     * @return The number of records the last dump of the agency with the same filters had, or null if there is none
+     */
+    public Long getAgencyRecords(int agencyId, AgencyParams params) {
+        return hasDateFilter(params) ? null : agencyRecords.get(agencyKey(agencyId, params));
+    }
+
+    /**
+     * @param params The params of the dump
+     * @return The average size of a record or null if no dump with the same format and mode has been run
+     */
+    public Double getBytesPerRecord(Params params) {
+        final Throughput throughput = throughputs.get(key(params));
+
+        return throughput == null ? null : throughput.bytes.doubleValue() / throughput.records.doubleValue();
+    }
+
+    /**
+     * @param params The params of the dump
+     * @return The average number of records dumped per second or null if no dump with the same format and mode has
+     * been run
+     */
+    public Double getRecordsPerSecond(Params params) {
+        final Throughput throughput = throughputs.get(key(params));
+
+        return throughput == null ? null : throughput.records.doubleValue() * 1000 / Math.max(1, throughput.millis.longValue());
+    }
+
+    private static String key(Params params) {
+        return OutputFormat.fromString(params.getOutputFormat()) + ":" + Mode.fromString(params.getMode());
+    }
+
+    private static boolean hasDateFilter(AgencyParams params) {
+        return params.getCreatedFrom() != null || params.getCreatedTo() != null ||
+                params.getModifiedFrom() != null || params.getModifiedTo() != null;
+    }
+
+    private static String agencyKey(int agencyId, AgencyParams params) {
+        return agencyId + ":" + params.getRecordStatus() + ":" + params.getRecordType() + ":" +
+                params.getShard() + "/" + params.getShardCount();
+    }
+
+    private static class Throughput {
+        private final LongAdder records = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder millis = new LongAdder();
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+/**
+ * The slice size and number of workers for dumps of one kind of agency in one mode, adjusted from how the slices and
+ * agencies dumped so far went.
+ * <p>
+ * The slice size aims at slices which take about TARGET_SLICE_MILLIS to fetch, merge and encode. Records which are
+ * cheap, like FBS holdings records, get large slices so the cost of each query is shared by many records, while
+ * records which are expensive to merge get small slices so the work is spread evenly over the workers and the
+ * checkpoints come often. The size is adjusted after every slice, and changes at most by a factor of two at a time,
+ * so a long running dump of a single agency adapts while it runs.
+ * <p>
+ * The number of workers is found by trying: after each agency it is moved one step, and the step is reversed when the
+ * throughput drops. It is lowered regardless when the workers spend much of their time waiting for a permit from the
+ * worker budget or for a connection from the pool, as more workers won't help then.
+ * <p>
+ * The workers of an agency are started when it is dumped, so their number is only adjusted between agencies. An
+ * operator can pin either value, in which case it is no longer adjusted.
+ */
+public class DumpTuning {
+    static final long TARGET_SLICE_MILLIS = 1000;
+
+    // Weight of the newest measurement in the averages
+    private static final double SMOOTHING = 0.2;
+    // Throughput must change more than this before the number of workers is considered better or worse
+    private static final double THROUGHPUT_TOLERANCE = 0.05;
+    private static final double MAX_BUDGET_WAIT_SHARE = 0.5;
+    private static final double MAX_POOL_WAIT_SHARE = 0.2;
+
+    private final int minSliceSize;
+    private final int maxSliceSize;
+    private final int maxWorkerCount;
+    private final boolean adaptive;
+
+    private int sliceSize;
+    private int workerCount;
+    private Integer pinnedSliceSize;
+    private Integer pinnedWorkerCount;
+
+    private long slices;
+    private long pipelines;
+    private double millisPerRecord;
+    private double databaseShare;
+    private double poolWaitShare;
+    private double budgetWaitShare;
+    private double bytesPerRecord;
+    private double recordsPerSecond;
+    private int workerStep = 1;
+
+    /**
+     * @param sliceSize      The slice size to start with
+     * @param minSliceSize   The smallest slice size to adjust to
+     * @param maxSliceSize   The largest slice size to adjust to
+     * @param workerCount    The number of workers to start with
+     * @param maxWorkerCount The largest number of workers to adjust to
+     * @param adaptive       If false the values are only changed by pinning them
+     */
+    public DumpTuning(int sliceSize, int minSliceSize, int maxSliceSize, int workerCount, int maxWorkerCount, boolean adaptive) {
+        this.minSliceSize = minSliceSize;
+        this.maxSliceSize = maxSliceSize;
+        this.maxWorkerCount = maxWorkerCount;
+        this.adaptive = adaptive;
+        this.sliceSize = clamp(sliceSize, minSliceSize, maxSliceSize);
+        this.workerCount = clamp(workerCount, 1, maxWorkerCount);
+    }
+
+    public synchronized int getSliceSize() {
+        return pinnedSliceSize != null ? pinnedSliceSize : sliceSize;
+    }
+
+    public synchronized int getWorkerCount() {
+        return pinnedWorkerCount != null ? pinnedWorkerCount : workerCount;
+    }
+
+    /**
+     * Pins the values so they are no longer adjusted. A value which is null is adjusted again, starting from where it
+     * was before it was pinned.
+     *
+     * @param sliceSize   The slice size or null
+     * @param workerCount The number of workers or null
+     * @throws IllegalArgumentException If a value is outside the bounds of the tuning
+     */
+    public synchronized void pin(Integer sliceSize, Integer workerCount) {
+        if (sliceSize != null && (sliceSize < minSliceSize || sliceSize > maxSliceSize)) {
+            throw new IllegalArgumentException("The slice size must be between " + minSliceSize + " and " + maxSliceSize);
+        }
+        if (workerCount != null && (workerCount < 1 || workerCount > maxWorkerCount)) {
+            throw new IllegalArgumentException("The number of workers must be between 1 and " + maxWorkerCount);
+        }
+
+        this.pinnedSliceSize = sliceSize;
+        this.pinnedWorkerCount = workerCount;
+    }
+
+    /**
+     * Adds a slice which a worker is done with and adjusts the slice size for the next slices
+     *
+     * @param records          The number of records in the slice
+     * @param budgetWaitNanos  How long the worker waited for a permit from the worker budget
+     * @param workNanos        How long the worker took to fetch, merge and encode the slice
+     * @param databaseNanos    How much of the work was spent waiting for queries
+     * @param poolWaitNanos    How much of the work was spent waiting for a connection from the pool
+     */
+    public synchronized void recordSlice(int records, long budgetWaitNanos, long workNanos, long databaseNanos, long poolWaitNanos) {
+        if (records == 0 || workNanos <= 0) {
+            return;
+        }
+
+        slices++;
+        millisPerRecord = average(millisPerRecord, workNanos / 1e6 / records, slices);
+        databaseShare = average(databaseShare, Math.min(1, (double) databaseNanos / workNanos), slices);
+        poolWaitShare = average(poolWaitShare, Math.min(1, (double) poolWaitNanos / workNanos), slices);
+        budgetWaitShare = average(budgetWaitShare, (double) budgetWaitNanos / (budgetWaitNanos + workNanos), slices);
+
+        if (adaptive && pinnedSliceSize == null) {
+            final long idealSliceSize = Math.round(TARGET_SLICE_MILLIS / millisPerRecord);
+
+            sliceSize = clamp(clamp(idealSliceSize, sliceSize / 2, sliceSize * 2L), minSliceSize, maxSliceSize);
+        }
+    }
+
+    /**
+     * Adds an agency which has been dumped and adjusts the number of workers for the next one
+     *
+     * @param records The number of records dumped
+     * @param bytes   The size of the encoded records
+     * @param millis  How long the agency took
+     */
+    public synchronized void recordPipeline(long records, long bytes, long millis) {
+        if (records == 0) {
+            return;
+        }
+
+        pipelines++;
+        bytesPerRecord = average(bytesPerRecord, (double) bytes / records, pipelines);
+
+        if (!adaptive) {
+            return;
+        }
+
+        // An agency which doesn't give every worker a slice or two says nothing about the number of workers
+        if (pinnedWorkerCount == null && records >= (long) getSliceSize() * workerCount) {
+            final double currentRecordsPerSecond = records * 1000.0 / Math.max(1, millis);
+
+            if (budgetWaitShare > MAX_BUDGET_WAIT_SHARE || poolWaitShare > MAX_POOL_WAIT_SHARE) {
+                workerStep = -1;
+            } else if (recordsPerSecond > 0 && currentRecordsPerSecond < recordsPerSecond * (1 - THROUGHPUT_TOLERANCE)) {
+                workerStep = workerStep == 0 ? -1 : -workerStep;
+            } else if (recordsPerSecond > 0 && currentRecordsPerSecond < recordsPerSecond * (1 + THROUGHPUT_TOLERANCE)) {
+                // No real difference, so the workers are left where they are
+                workerStep = 0;
+            } else if (workerStep == 0) {
+                workerStep = 1;
+            }
+
+            workerCount = clamp(workerCount + workerStep, 1, maxWorkerCount);
+            recordsPerSecond = currentRecordsPerSecond;
+        }
+    }
+
+    /**
+     * @param agencyType The kind of agency the tuning is for
+     * @param mode       The mode the tuning is for
+     * @return The current values and the measurements they are based on
+     */
+    public synchronized DumpTuningStatus getStatus(AgencyType agencyType, Mode mode) {
+        final DumpTuningStatus status = new DumpTuningStatus(agencyType, mode);
+
+        status.setSliceSize(getSliceSize());
+        status.setSliceSizePinned(pinnedSliceSize != null);
+        status.setWorkerCount(getWorkerCount());
+        status.setWorkerCountPinned(pinnedWorkerCount != null);
+        status.setSlices(slices);
+        status.setMillisPerRecord(millisPerRecord);
+        status.setDatabaseShare(databaseShare);
+        status.setPoolWaitShare(poolWaitShare);
+        status.setBudgetWaitShare(budgetWaitShare);
+        status.setBytesPerRecord(bytesPerRecord);
+        status.setRecordsPerSecond(recordsPerSecond);
+
+        return status;
+    }
+
+    // The first measurement is taken as it is, instead of being weighed against a made up starting point
+    private static double average(double average, double value, long count) {
+        return count == 1 ? value : average + SMOOTHING * (value - average);
+    }
+
+    private static int clamp(long value, long min, long max) {
+        return (int) Math.max(min, Math.min(max, value));
+    }
+
+}
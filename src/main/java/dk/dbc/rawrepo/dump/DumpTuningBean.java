@@ -0,0 +1,93 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a DumpTuning for each kind of agency and mode since the service started, as e.g. FBS holdings dumps, which
+ * are bound by the database, need other values than expanded DBC dumps, which are bound by merging.
+ * <p>
+ * DUMP_SLICE_SIZE and DUMP_THREAD_COUNT are the values every tuning starts with. DUMP_THREAD_COUNT is also the worker
+ * budget of a dump, so the tuning may give an agency fewer workers than that, which leaves the rest of the budget to
+ * the agencies being spooled, but never more.
+ */
+@Singleton
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class DumpTuningBean {
+
+    @Inject
+    @ConfigProperty(name = "DUMP_SLICE_SIZE", defaultValue = "1000")
+    private int SLICE_SIZE;
+
+    @Inject
+    @ConfigProperty(name = "DUMP_SLICE_SIZE_MIN", defaultValue = "100")
+    private int MIN_SLICE_SIZE;
+
+    @Inject
+    @ConfigProperty(name = "DUMP_SLICE_SIZE_MAX", defaultValue = "10000")
+    private int MAX_SLICE_SIZE;
+
+    @Inject
+    @ConfigProperty(name = "DUMP_THREAD_COUNT", defaultValue = "8")
+    private int THREAD_COUNT;
+
+    @Inject
+    @ConfigProperty(name = "DUMP_ADAPTIVE_TUNING", defaultValue = "true")
+    private boolean ADAPTIVE_TUNING;
+
+    private final Map<String, DumpTuning> tunings = new ConcurrentHashMap<>();
+
+    /**
+     * @param agencyType The kind of agency being dumped
+     * @param mode       The mode of the dump
+     * @return The tuning for dumps of that kind, which is created with the configured values if there is none yet
+     */
+    public DumpTuning get(AgencyType agencyType, Mode mode) {
+        return tunings.computeIfAbsent(key(agencyType, mode),
+                k -> new DumpTuning(SLICE_SIZE, MIN_SLICE_SIZE, MAX_SLICE_SIZE, THREAD_COUNT, THREAD_COUNT, ADAPTIVE_TUNING));
+    }
+
+    /**
+     * @return The number of workers a dump may have working at the same time across all the agencies it dumps
+     */
+    public int getWorkerBudget() {
+        return THREAD_COUNT;
+    }
+
+    /**
+     * @return The status of the tunings which have been used or pinned
+     */
+    public List<DumpTuningStatus> list() {
+        final List<DumpTuningStatus> result = new ArrayList<>();
+
+        for (AgencyType agencyType : AgencyType.values()) {
+            for (Mode mode : Mode.values()) {
+                final DumpTuning tuning = tunings.get(key(agencyType, mode));
+
+                if (tuning != null) {
+                    result.add(tuning.getStatus(agencyType, mode));
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static String key(AgencyType agencyType, Mode mode) {
+        return agencyType + ":" + mode;
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+/**
+ * The current slice size and number of workers for one kind of agency in one mode, and the averages of the
+ * measurements they are based on. The shares are how much of the time of a slice was spent waiting for queries, for
+ * connections and for a permit from the worker budget.
+ */
+public class DumpTuningStatus {
+    private final AgencyType agencyType;
+    private final Mode mode;
+    private int sliceSize;
+    private boolean sliceSizePinned;
+    private int workerCount;
+    private boolean workerCountPinned;
+    private long slices;
+    private double millisPerRecord;
+    private double databaseShare;
+    private double poolWaitShare;
+    private double budgetWaitShare;
+    private double bytesPerRecord;
+    private double recordsPerSecond;
+
+    public DumpTuningStatus(AgencyType agencyType, Mode mode) {
+        this.agencyType = agencyType;
+        this.mode = mode;
+    }
+
+    public AgencyType getAgencyType() {
+        return agencyType;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getSliceSize() {
+        return sliceSize;
+    }
+
+    public void setSliceSize(int sliceSize) {
+        this.sliceSize = sliceSize;
+    }
+
+    public boolean isSliceSizePinned() {
+        return sliceSizePinned;
+    }
+
+    public void setSliceSizePinned(boolean sliceSizePinned) {
+        this.sliceSizePinned = sliceSizePinned;
+    }
+
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    public void setWorkerCount(int workerCount) {
+        this.workerCount = workerCount;
+    }
+
+    public boolean isWorkerCountPinned() {
+        return workerCountPinned;
+    }
+
+    public void setWorkerCountPinned(boolean workerCountPinned) {
+        this.workerCountPinned = workerCountPinned;
+    }
+
+    public long getSlices() {
+        return slices;
+    }
+
+    public void setSlices(long slices) {
+        this.slices = slices;
+    }
+
+    public double getMillisPerRecord() {
+        return millisPerRecord;
+    }
+
+    public void setMillisPerRecord(double millisPerRecord) {
+        this.millisPerRecord = millisPerRecord;
+    }
+
+    public double getDatabaseShare() {
+        return databaseShare;
+    }
+
+    public void setDatabaseShare(double databaseShare) {
+        this.databaseShare = databaseShare;
+    }
+
+    public double getPoolWaitShare() {
+        return poolWaitShare;
+    }
+
+    public void setPoolWaitShare(double poolWaitShare) {
+        this.poolWaitShare = poolWaitShare;
+    }
+
+    public double getBudgetWaitShare() {
+        return budgetWaitShare;
+    }
+
+    public void setBudgetWaitShare(double budgetWaitShare) {
+        this.budgetWaitShare = budgetWaitShare;
+    }
+
+    public double getBytesPerRecord() {
+        return bytesPerRecord;
+    }
+
+    public void setBytesPerRecord(double bytesPerRecord) {
+        this.bytesPerRecord = bytesPerRecord;
+    }
+
+    public double getRecordsPerSecond() {
+        return recordsPerSecond;
+    }
+
+    public void setRecordsPerSecond(double recordsPerSecond) {
+        this.recordsPerSecond = recordsPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return "DumpTuningStatus{" +
+                "agencyType=" + agencyType +
+                ", mode=" + mode +
+                ", sliceSize=" + sliceSize +
+                ", sliceSizePinned=" + sliceSizePinned +
+                ", workerCount=" + workerCount +
+                ", workerCountPinned=" + workerCountPinned +
+                ", slices=" + slices +
+                ", millisPerRecord=" + millisPerRecord +
+                ", recordsPerSecond=" + recordsPerSecond +
+                '}';
+    }
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What to do when a single record can't be merged or encoded
+ */
+public enum ErrorPolicy {
+    ABORT("ABORT"), SKIP("SKIP"), SKIP_AND_REPORT("SKIP_AND_REPORT");
+
+    private final String value;
+
+    ErrorPolicy(String value) {
+        this.value = value;
+    }
+
+    public static ErrorPolicy fromString(String s) {
+        return ErrorPolicy.valueOf(s.trim().toUpperCase());
+    }
+
+    public static String validValues() {
+        List<String> values = new ArrayList<>();
+
+        for (ErrorPolicy s : ErrorPolicy.values()) {
+            values.add(s.value);
+        }
+
+        return String.join("|", values);
+    }
+}
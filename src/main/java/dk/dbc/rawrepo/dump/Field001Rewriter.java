@@ -0,0 +1,111 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sets 001 *b of a MarcXchange record in a single pass over the XML events, without building a MarcRecord.
+ * <p>
+ * Everything but the content of 001 *b is copied as it is. Like JaxpUtil the factories are kept per thread, as the
+ * StAX specification doesn't promise they are thread safe.
+ */
+public class Field001Rewriter {
+    private static final QName TAG = new QName("tag");
+    private static final QName CODE = new QName("code");
+
+    private static final ThreadLocal<XMLInputFactory> xmlInputFactory = ThreadLocal.withInitial(() -> {
+        final XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        return factory;
+    });
+    private static final ThreadLocal<XMLOutputFactory> xmlOutputFactory = ThreadLocal.withInitial(XMLOutputFactory::newInstance);
+    private static final ThreadLocal<XMLEventFactory> xmlEventFactory = ThreadLocal.withInitial(XMLEventFactory::newInstance);
+
+    // SonarLint S1118 - Utility classes should not have public constructors
+    private Field001Rewriter() {
+
+    }
+
+    /**
+     * Replaces the value of all 001 *b subfields with the agency id
+     *
+     * @param content  MarcXchange record in UTF-8
+     * @param agencyId The new value of 001 *b
+     * @return The record with the new 001 *b in UTF-8
+     * @throws XMLStreamException If the record is not well-formed XML
+     */
+    public static byte[] setAgencyId(byte[] content, int agencyId) throws XMLStreamException {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream(content.length + 16);
+        final XMLEventReader reader = xmlInputFactory.get().createXMLEventReader(new ByteArrayInputStream(content));
+        final XMLEventWriter writer = xmlOutputFactory.get().createXMLEventWriter(result, StandardCharsets.UTF_8.name());
+        final XMLEvent agencyIdEvent = xmlEventFactory.get().createCharacters(Integer.toString(agencyId));
+
+        try {
+            boolean inField001 = false;
+            boolean inSubfieldB = false;
+
+            while (reader.hasNext()) {
+                final XMLEvent event = reader.nextEvent();
+
+                if (event.isStartElement()) {
+                    final StartElement startElement = event.asStartElement();
+                    final String name = startElement.getName().getLocalPart();
+
+                    if ("datafield".equals(name)) {
+                        inField001 = "001".equals(getAttribute(startElement, TAG));
+                    } else if (inField001 && "subfield".equals(name) && "b".equals(getAttribute(startElement, CODE))) {
+                        // The new value is written right away, so an empty *b gets a value as well
+                        writer.add(event);
+                        writer.add(agencyIdEvent);
+                        inSubfieldB = true;
+                        continue;
+                    }
+                } else if (event.isEndElement()) {
+                    final String name = event.asEndElement().getName().getLocalPart();
+
+                    if ("datafield".equals(name)) {
+                        inField001 = false;
+                    } else if ("subfield".equals(name)) {
+                        inSubfieldB = false;
+                    }
+                } else if (inSubfieldB) {
+                    // The old value
+                    continue;
+                }
+
+                writer.add(event);
+            }
+
+            writer.flush();
+        } finally {
+            writer.close();
+            reader.close();
+        }
+
+        return result.toByteArray();
+    }
+
+    private static String getAttribute(StartElement startElement, QName name) {
+        final Attribute attribute = startElement.getAttributeByName(name);
+
+        return attribute == null ? null : attribute.getValue();
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes a MarcXchange record as ISO2709 in a single pass over the XML.
+ * <p>
+ * The output is the same as Iso2709Packer.create2709FromMarcXChangeRecord, but without going through a MarcRecord,
+ * a second MarcXchange document and a DOM on the way. The field data is encoded into a buffer while the directory
+ * is built next to it, and the two are put together behind the leader once the record has been read.
+ * <p>
+ * Not thread safe, so each merger thread must have its own encoder.
+ */
+class Iso2709Encoder {
+    private static final byte SUBFIELD_DELIMITER = 0x1f;
+    private static final byte FIELD_TERMINATOR = 0x1e;
+    private static final byte RECORD_TERMINATOR = 0x1d;
+
+    private static final String DEFAULT_LEADER = "00000n    2200000   4500";
+    private static final int LEADER_LENGTH = 24;
+
+    private final XMLInputFactory xmlInputFactory;
+    private final ByteArrayOutputStream directory = new ByteArrayOutputStream(1024);
+    private final ByteArrayOutputStream data = new ByteArrayOutputStream(16 * 1024);
+
+    Iso2709Encoder() {
+        this.xmlInputFactory = XMLInputFactory.newInstance();
+        this.xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        this.xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Encodes the first record in the content
+     *
+     * @param content MarcXchange record
+     * @param charset The charset of the field data in the output
+     * @return The record in ISO2709
+     * @throws XMLStreamException If the content is not well-formed XML
+     * @throws IOException        If the record can't be put together
+     */
+    byte[] encode(byte[] content, Charset charset) throws XMLStreamException, IOException {
+        directory.reset();
+        data.reset();
+
+        String leader = DEFAULT_LEADER;
+        int fieldCount = 0;
+
+        final XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(new ByteArrayInputStream(content));
+        try {
+            String tag = null;
+            int fieldStart = 0;
+
+            while (reader.hasNext()) {
+                final int event = reader.next();
+
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    switch (reader.getLocalName()) {
+                        case "leader":
+                            leader = reader.getElementText();
+                            break;
+                        case "controlfield":
+                            fieldStart = data.size();
+                            tag = reader.getAttributeValue(null, "tag");
+                            write(reader.getElementText(), charset);
+                            endField(tag, fieldStart);
+                            fieldCount++;
+                            break;
+                        case "datafield":
+                            fieldStart = data.size();
+                            tag = reader.getAttributeValue(null, "tag");
+                            write(indicator(reader.getAttributeValue(null, "ind1")), charset);
+                            write(indicator(reader.getAttributeValue(null, "ind2")), charset);
+                            break;
+                        case "subfield":
+                            data.write(SUBFIELD_DELIMITER);
+                            write(reader.getAttributeValue(null, "code"), charset);
+                            write(reader.getElementText(), charset);
+                            break;
+                        default:
+                            break;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    final String name = reader.getLocalName();
+
+                    if ("datafield".equals(name)) {
+                        endField(tag, fieldStart);
+                        fieldCount++;
+                    } else if ("record".equals(name)) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        // The directory is terminated by a field terminator and the base address is where the data starts
+        final int baseAddress = LEADER_LENGTH + fieldCount * 12 + 1;
+        final int recordLength = baseAddress + data.size() + 1;
+
+        final ByteArrayOutputStream result = new ByteArrayOutputStream(recordLength);
+        final byte[] leaderBytes = leader(leader, recordLength, baseAddress).getBytes(charset);
+        result.write(leaderBytes, 0, leaderBytes.length);
+        directory.writeTo(result);
+        result.write(FIELD_TERMINATOR);
+        data.writeTo(result);
+        result.write(RECORD_TERMINATOR);
+
+        return result.toByteArray();
+    }
+
+    private void endField(String tag, int fieldStart) {
+        data.write(FIELD_TERMINATOR);
+
+        // Directory entry: 3 chars tag, 4 digits field length and 5 digits start position relative to the base address
+        final StringBuilder entry = new StringBuilder(12);
+        entry.append(tag);
+        pad(entry, data.size() - fieldStart, 4);
+        pad(entry, fieldStart, 5);
+
+        for (int i = 0; i < entry.length(); i++) {
+            directory.write(entry.charAt(i));
+        }
+    }
+
+    private void write(String value, Charset charset) {
+        if (value != null && !value.isEmpty()) {
+            final byte[] bytes = value.getBytes(charset);
+            data.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static String indicator(String value) {
+        return value == null || value.isEmpty() ? " " : value.substring(0, 1);
+    }
+
+    private static String leader(String leader, int recordLength, int baseAddress) {
+        final StringBuilder result = new StringBuilder(LEADER_LENGTH);
+        final String source = leader.length() >= LEADER_LENGTH ? leader : leader + DEFAULT_LEADER.substring(leader.length());
+
+        pad(result, recordLength, 5);
+        result.append(source, 5, 12);
+        pad(result, baseAddress, 5);
+        result.append(source, 17, LEADER_LENGTH);
+
+        return result.toString();
+    }
+
+    private static void pad(StringBuilder builder, int value, int width) {
+        final String digits = Integer.toString(value);
+
+        for (int i = digits.length(); i < width; i++) {
+            builder.append('0');
+        }
+        builder.append(digits);
+    }
+
+}
@@ -4,13 +4,16 @@ import dk.dbc.jsonb.JSONBException;
 import dk.dbc.marc.reader.MarcReaderException;
 import dk.dbc.marc.writer.MarcWriterException;
 import dk.dbc.marcrecord.ExpandCommonMarcRecord;
+import dk.dbc.rawrepo.AuthorityCacheBean;
 import dk.dbc.rawrepo.RawRepoException;
 import dk.dbc.rawrepo.RecordId;
 import dk.dbc.rawrepo.dao.RawRepoBean;
 import org.slf4j.Logger;
-import org.xml.sax.SAXException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -22,23 +25,87 @@ public class MergerThreadCommons {
 
     }
 
-    static void getRecordItemsList(List<String> bibliographicRecordIdList, RawRepoBean bean, int agencyId, Logger logger, RecordByteWriter writer) throws RawRepoException, IOException, MarcReaderException, JSONBException, MarcWriterException, SAXException {
+    static void getRecordItemsList(List<String> bibliographicRecordIdList, RawRepoBean bean, int agencyId, Logger logger, RecordByteWriter writer, DumpFailures failures) throws RawRepoException, IOException, MarcReaderException, JSONBException, MarcWriterException {
         byte[] result;
         final List<RecordItem> recordItemList = bean.getDecodedContent(bibliographicRecordIdList, null, agencyId);
         logger.info("Got {} RecordItems", recordItemList.size());
         for (RecordItem item : recordItemList) {
             if (item != null) {
                 result = item.getLocal();
-                writer.write(result);
+                write(writer, new DumpRecord(result), agencyId, item.getBibliographicRecordId(), failures);
             }
         }
     }
 
-    static byte[] getBytes(Map<String, byte[]> autRecords, byte[] result, RecordItem item, Mode mode, RawRepoBean bean, int agencyId) throws RawRepoException {
-        if (Mode.EXPANDED == mode) {
-            final Set<RecordId> parents = bean.getRelationsParents(new RecordId(item.getBibliographicRecordId(), agencyId));
-            result = getBytes(autRecords, result, bean, parents);
+    /**
+     * Writes a record and leaves it to the onError policy what happens if the record can't be encoded
+     *
+     * @param writer                The writer
+     * @param record                The record to write
+     * @param agencyId              The agency of the record
+     * @param bibliographicRecordId The id of the record
+     * @param failures              The failures of the dump
+     * @throws IOException          If handing over the output fails
+     * @throws MarcReaderException  If the record can't be parsed and the policy is ABORT
+     * @throws JSONBException       If the record can't be written as JSON and the policy is ABORT
+     * @throws MarcWriterException  If the record can't be written and the policy is ABORT
+     */
+    static void write(RecordByteWriter writer, DumpRecord record, int agencyId, String bibliographicRecordId, DumpFailures failures) throws IOException, MarcReaderException, JSONBException, MarcWriterException {
+        // A slice can take a while, so a cancelled dump is stopped between records instead of after the slice
+        DumpCancellation.checkBound();
+
+        final long started = System.nanoTime();
+        try {
+            writer.write(record);
+        } catch (MarcReaderException | JSONBException | MarcWriterException e) {
+            if (!failures.skip(agencyId, bibliographicRecordId, e)) {
+                throw e;
+            }
+        } finally {
+            SliceTimings.addEncodeTime(System.nanoTime() - started);
+        }
+    }
+
+    /**
+     * Finds the parents of the records and gets the authority records among them which are not in autRecords yet
+     * from the authority cache. The parents are found with one query for all the records and the cache fetches what
+     * it doesn't have with one query, so expanding a slice costs the same few queries no matter how many records are
+     * in it.
+     *
+     * @param autRecords         Authority records used so far by the merger thread. New records are added to it.
+     * @param bean               RawRepoBean
+     * @param authorityCacheBean The shared authority cache
+     * @param recordIds          The records which are going to be expanded
+     * @return The parents of each record. Records without parents are not in the map.
+     * @throws RawRepoException On database errors
+     */
+    static Map<RecordId, Set<RecordId>> prefetchAuthorityRecords(Map<String, byte[]> autRecords, RawRepoBean bean, AuthorityCacheBean authorityCacheBean, Collection<RecordId> recordIds) throws RawRepoException {
+        final Map<RecordId, Set<RecordId>> parents = bean.getRelationsParents(recordIds);
+        final Set<String> missingAutRecords = new HashSet<>();
+
+        for (Set<RecordId> recordParents : parents.values()) {
+            for (RecordId recordId : recordParents) {
+                if (870979 == recordId.getAgencyId() && !autRecords.containsKey(recordId.getBibliographicRecordId())) {
+                    missingAutRecords.add(recordId.getBibliographicRecordId());
+                }
+            }
+        }
+
+        // Records which don't exist are added as null, same as when they were fetched one at a time
+        autRecords.putAll(authorityCacheBean.getAuthorityRecords(missingAutRecords));
+
+        return parents;
+    }
+
+    static List<RecordId> getRecordIds(List<RecordItem> recordItemList, int agencyId) {
+        final List<RecordId> result = new ArrayList<>();
+
+        for (RecordItem item : recordItemList) {
+            if (item != null) {
+                result.add(new RecordId(item.getBibliographicRecordId(), agencyId));
+            }
         }
+
         return result;
     }
 
@@ -54,7 +121,9 @@ public class MergerThreadCommons {
         }
 
         if (hasAutParents) {
+            final long started = System.nanoTime();
             result = ExpandCommonMarcRecord.expandRecord(result, autRecords, false);
+            SliceTimings.addExpandTime(System.nanoTime() - started);
         }
         return result;
     }
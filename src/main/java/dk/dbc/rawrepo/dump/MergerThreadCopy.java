@@ -0,0 +1,46 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import dk.dbc.rawrepo.dao.ContentDecoder;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+
+/**
+ * Writes a slice from RecordCopyStream. The records are written as they are stored, so all there is left to do is to
+ * decode the content.
+ */
+public class MergerThreadCopy implements Callable<Boolean> {
+
+    private final RecordCopySlice slice;
+    private final RecordByteWriter writer;
+    private final int agencyId;
+    private final DumpFailures failures;
+
+    MergerThreadCopy(RecordCopySlice slice, RecordByteWriter writer, int agencyId, DumpFailures failures) {
+        this.slice = slice;
+        this.writer = writer;
+        this.agencyId = agencyId;
+        this.failures = failures;
+    }
+
+    @Override
+    public Boolean call() throws Exception {
+        // The contents are in the same order as the ids
+        final Iterator<String> bibliographicRecordIds = slice.keySet().iterator();
+
+        for (byte[] content : slice.getContents()) {
+            final String bibliographicRecordId = bibliographicRecordIds.next();
+
+            if (content != null) {
+                MergerThreadCommons.write(writer, new DumpRecord(ContentDecoder.decode(content)), agencyId, bibliographicRecordId, failures);
+            }
+        }
+
+        return true;
+    }
+}
@@ -6,15 +6,11 @@
 package dk.dbc.rawrepo.dump;
 
 import dk.dbc.jsonb.JSONBException;
-import dk.dbc.marc.binding.DataField;
-import dk.dbc.marc.binding.MarcRecord;
-import dk.dbc.marc.binding.SubField;
 import dk.dbc.marc.reader.MarcReaderException;
-import dk.dbc.marc.reader.MarcXchangeV1Reader;
 import dk.dbc.marc.writer.MarcWriterException;
-import dk.dbc.marc.writer.MarcXchangeV1Writer;
 import dk.dbc.marcxmerge.MarcXMerger;
 import dk.dbc.marcxmerge.MarcXMergerException;
+import dk.dbc.rawrepo.AuthorityCacheBean;
 import dk.dbc.rawrepo.RawRepoException;
 import dk.dbc.rawrepo.RecordId;
 import dk.dbc.rawrepo.RecordRelationsBean;
@@ -24,47 +20,48 @@ import dk.dbc.rawrepo.exception.RecordNotFoundException;
 import dk.dbc.rawrepo.pool.DefaultMarcXMergerPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xml.sax.SAXException;
 
-import java.io.ByteArrayInputStream;
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.stream.Collectors;
 
-import static dk.dbc.marc.binding.MarcRecord.hasTag;
-
 public class MergerThreadFBS implements Callable<Boolean> {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MergerThreadFBS.class);
     private static final List<Integer> EXPANDABLE_AGENCIES = Arrays.asList(190002, 190004, 870970, 870971, 870974);
 
     private final RawRepoBean rawRepoBean;
+    private final AuthorityCacheBean authorityCacheBean;
     private final Map<String, String> recordSet;
     private final RecordByteWriter writer;
     private final int agencyId;
     private final Mode mode;
     private final MarcXMerger merger;
     private final RecordRelationsBean recordBean;
+    private final DumpFailures failures;
 
-    MergerThreadFBS(RawRepoBean rawRepoBean, RecordRelationsBean recordRelationsBean, Map<String, String> recordSet, RecordByteWriter writer, int agencyId, String modeAsString) {
+    MergerThreadFBS(RawRepoBean rawRepoBean, RecordRelationsBean recordRelationsBean, AuthorityCacheBean authorityCacheBean, Map<String, String> recordSet, RecordByteWriter writer, int agencyId, String modeAsString, DumpFailures failures) {
         this.rawRepoBean = rawRepoBean;
+        this.authorityCacheBean = authorityCacheBean;
         this.recordBean = recordRelationsBean;
         this.recordSet = recordSet;
         this.writer = writer;
         this.agencyId = agencyId;
         this.mode = Mode.fromString(modeAsString);
         this.merger = new DefaultMarcXMergerPool().checkOut();
+        this.failures = failures;
     }
 
     @Override
-    public Boolean call() throws RawRepoException, MarcWriterException, JSONBException, IOException, MarcReaderException, MarcXMergerException, RecordNotFoundException, InternalServerException, SAXException {
+    public Boolean call() throws RawRepoException, MarcWriterException, JSONBException, IOException, MarcReaderException, MarcXMergerException, RecordNotFoundException, InternalServerException {
         final Map<String, byte[]> autRecords = new HashMap<>();
 
         if (recordSet.size() > 0) {
@@ -99,13 +96,7 @@ public class MergerThreadFBS implements Callable<Boolean> {
                     if (item != null) {
                         local = item.getLocal();
                         result = local;
-                        try {
-                            writer.write(result);
-                        } catch (MarcReaderException ex) {
-                            final String msg = String.format("Failed to parse '%s:%s' because of %s", item.getBibliographicRecordId(), agencyId, ex.getMessage());
-                            LOGGER.error(msg);
-                            throw new MarcReaderException(msg);
-                        }
+                        MergerThreadCommons.write(writer, new DumpRecord(result), agencyId, item.getBibliographicRecordId(), failures);
                     }
                 }
             }
@@ -115,44 +106,29 @@ public class MergerThreadFBS implements Callable<Boolean> {
             // Enrichments can be returned as raw records
             if (!enrichmentBibliographicRecordIds.isEmpty()) {
                 if (Mode.RAW == mode) {
-                    MergerThreadCommons.getRecordItemsList(enrichmentBibliographicRecordIds, rawRepoBean, agencyId, LOGGER, writer);
+                    MergerThreadCommons.getRecordItemsList(enrichmentBibliographicRecordIds, rawRepoBean, agencyId, LOGGER, writer, failures);
                 } else {
                     List<RecordItem> recordItemList = rawRepoBean.getDecodedContent(enrichmentBibliographicRecordIds, 870970, agencyId);
-                    RecordId expandableRecordId = null;
+                    final Map<String, RecordId> expandableRecordIds = Mode.EXPANDED == mode ? getExpandableRecordIds(recordItemList) : Collections.emptyMap();
+                    final Map<RecordId, Set<RecordId>> parents = MergerThreadCommons.prefetchAuthorityRecords(autRecords, rawRepoBean, authorityCacheBean, expandableRecordIds.values());
                     for (RecordItem item : recordItemList) {
                         if (item != null) {
                             final byte[] common = item.getCommon();
                             local = item.getLocal();
 
-                            result = merger.merge(common, local, true);
-
-                            if (Mode.EXPANDED == mode) {
-                                if (EXPANDABLE_AGENCIES.contains(agencyId)) {
-                                    expandableRecordId = new RecordId(item.getBibliographicRecordId(), agencyId);
-                                } else {
-                                    Set<RecordId> relationsSiblings = recordBean.getRelationsSiblingsFromMe(item.getBibliographicRecordId(), agencyId);
-                                    for (int expandableAgencyId : EXPANDABLE_AGENCIES) {
-                                        RecordId potentialExpandableRecordId = new RecordId(item.getBibliographicRecordId(), expandableAgencyId);
-                                        if (relationsSiblings.contains(potentialExpandableRecordId)) {
-                                            expandableRecordId = potentialExpandableRecordId;
-                                            break;
-                                        }
-                                    }
-                                }
-
-                                if (expandableRecordId != null) {
-                                    final Set<RecordId> parents = rawRepoBean.getRelationsParents(expandableRecordId);
-                                    result = MergerThreadCommons.getBytes(autRecords, result, rawRepoBean, parents);
-                                }
+                            try {
+                                result = merger.merge(common, local, true);
+                            } catch (MarcXMergerException ex) {
+                                failures.failed(agencyId, item.getBibliographicRecordId(), ex);
+                                continue;
                             }
 
-                            try {
-                                writer.write(result);
-                            } catch (MarcReaderException ex) {
-                                final String msg = String.format("Failed to parse '%s:%s' because of %s", item.getBibliographicRecordId(), agencyId, ex.getMessage());
-                                LOGGER.error(msg);
-                                throw new MarcReaderException(msg);
+                            final RecordId expandableRecordId = expandableRecordIds.get(item.getBibliographicRecordId());
+                            if (expandableRecordId != null) {
+                                result = MergerThreadCommons.getBytes(autRecords, result, rawRepoBean, parents.getOrDefault(expandableRecordId, Collections.emptySet()));
                             }
+
+                            MergerThreadCommons.write(writer, new DumpRecord(result), agencyId, item.getBibliographicRecordId(), failures);
                         }
                     }
                 }
@@ -161,33 +137,24 @@ public class MergerThreadFBS implements Callable<Boolean> {
             // Handle holdings
             if (!bibliograhicRecordIdsWithHolding.isEmpty()) {
                 List<RecordItem> recordItemList = rawRepoBean.getDecodedContent(bibliograhicRecordIdsWithHolding, null, 870970);
+                final Map<RecordId, Set<RecordId>> parents = Mode.EXPANDED == mode
+                        ? MergerThreadCommons.prefetchAuthorityRecords(autRecords, rawRepoBean, authorityCacheBean, MergerThreadCommons.getRecordIds(recordItemList, agencyId))
+                        : Collections.emptyMap();
                 for (RecordItem item : recordItemList) {
                     if (item != null) {
                         local = item.getLocal();
 
-                        local = MergerThreadCommons.getBytes(autRecords, local, item, mode, rawRepoBean, agencyId);
-
-                        MarcXchangeV1Reader reader = new MarcXchangeV1Reader(new ByteArrayInputStream(local), StandardCharsets.UTF_8);
-                        MarcRecord record = reader.read();
-                        Optional<DataField> field001 = record.getField(DataField.class, hasTag("001"));
-                        if (field001.isPresent()) {
-                            DataField dataField = field001.get();
-                            for (SubField subField : dataField.getSubfields()) {
-                                if ('b' == subField.getCode()) {
-                                    subField.setData(Integer.toString(agencyId));
-                                }
-                            }
-                        }
+                        local = MergerThreadCommons.getBytes(autRecords, local, rawRepoBean, parents.getOrDefault(new RecordId(item.getBibliographicRecordId(), agencyId), Collections.emptySet()));
 
-                        MarcXchangeV1Writer marcXchangeV1Writer = new MarcXchangeV1Writer();
-                        result = marcXchangeV1Writer.write(record, StandardCharsets.UTF_8);
                         try {
-                            writer.write(result);
-                        } catch (MarcReaderException ex) {
-                            final String msg = String.format("Failed to parse '%s:%s' because of %s", item.getBibliographicRecordId(), agencyId, ex.getMessage());
-                            LOGGER.info(msg);
-                            throw new MarcReaderException(msg);
+                            // 001 *b is set directly in the XML, so the record is only parsed by the writer if the
+                            // output format needs it
+                            result = Field001Rewriter.setAgencyId(local, agencyId);
+                        } catch (XMLStreamException ex) {
+                            failures.failed(agencyId, item.getBibliographicRecordId(), new MarcReaderException(ex.getMessage()));
+                            continue;
                         }
+                        MergerThreadCommons.write(writer, new DumpRecord(result), agencyId, item.getBibliographicRecordId(), failures);
                     }
                 }
             }
@@ -195,4 +162,48 @@ public class MergerThreadFBS implements Callable<Boolean> {
 
         return true;
     }
+
+    /**
+     * Finds the record each enrichment should be expanded from. That is the enrichment itself for the expandable
+     * agencies, otherwise the first expandable agency the enrichment has a sibling relation to.
+     * <p>
+     * The siblings of all the enrichments are found with a single query. Records without siblings in the relations
+     * table, i.e. deleted records, are looked up one at a time as RecordRelationsBean then derives the siblings.
+     */
+    private Map<String, RecordId> getExpandableRecordIds(List<RecordItem> recordItemList) throws RawRepoException, RecordNotFoundException, InternalServerException {
+        final Map<String, RecordId> result = new HashMap<>();
+
+        if (EXPANDABLE_AGENCIES.contains(agencyId)) {
+            for (RecordId recordId : MergerThreadCommons.getRecordIds(recordItemList, agencyId)) {
+                result.put(recordId.getBibliographicRecordId(), recordId);
+            }
+
+            return result;
+        }
+
+        final List<String> bibliographicRecordIds = recordItemList.stream()
+                .filter(Objects::nonNull)
+                .map(RecordItem::getBibliographicRecordId)
+                .collect(Collectors.toList());
+        final Map<String, Set<Integer>> siblingAgencies = rawRepoBean.getRelationsSiblingsFromMe(agencyId, bibliographicRecordIds);
+
+        for (String bibliographicRecordId : bibliographicRecordIds) {
+            Set<Integer> agencies = siblingAgencies.get(bibliographicRecordId);
+
+            if (agencies == null) {
+                agencies = recordBean.getRelationsSiblingsFromMe(bibliographicRecordId, agencyId).stream()
+                        .map(RecordId::getAgencyId)
+                        .collect(Collectors.toSet());
+            }
+
+            for (int expandableAgencyId : EXPANDABLE_AGENCIES) {
+                if (agencies.contains(expandableAgencyId)) {
+                    result.put(bibliographicRecordId, new RecordId(bibliographicRecordId, expandableAgencyId));
+                    break;
+                }
+            }
+        }
+
+        return result;
+    }
 }
@@ -5,14 +5,10 @@
 
 package dk.dbc.rawrepo.dump;
 
-import dk.dbc.jsonb.JSONBException;
-import dk.dbc.marc.reader.MarcReaderException;
-import dk.dbc.marc.writer.MarcWriterException;
 import dk.dbc.rawrepo.dao.RawRepoBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -26,34 +22,32 @@ public class MergerThreadLocal implements Callable<Boolean> {
     private final Map<String, String> recordSet;
     private final RecordByteWriter writer;
     private final int agencyId;
+    private final DumpFailures failures;
 
-    MergerThreadLocal(RawRepoBean bean, Map<String, String> recordSet, RecordByteWriter writer, int agencyId) {
+    MergerThreadLocal(RawRepoBean bean, Map<String, String> recordSet, RecordByteWriter writer, int agencyId, DumpFailures failures) {
         this.bean = bean;
         this.recordSet = recordSet;
         this.writer = writer;
         this.agencyId = agencyId;
+        this.failures = failures;
     }
 
     @Override
     public Boolean call() throws Exception {
-        try {
-            List<String> bibliographicRecordIdList;
-            byte[] result;
-
-            bibliographicRecordIdList = new ArrayList<>(recordSet.keySet());
-
-            if (!bibliographicRecordIdList.isEmpty()) {
-                List<RecordItem> recordItemList = bean.getDecodedContent(bibliographicRecordIdList, null, agencyId);
-                LOGGER.info("Got {} RecordItems", recordItemList.size());
-                for (RecordItem item : recordItemList) {
-                    if (item != null) {
-                        result = item.getLocal();
-                        writer.write(result);
-                    }
+        List<String> bibliographicRecordIdList;
+        byte[] result;
+
+        bibliographicRecordIdList = new ArrayList<>(recordSet.keySet());
+
+        if (!bibliographicRecordIdList.isEmpty()) {
+            List<RecordItem> recordItemList = bean.getDecodedContent(bibliographicRecordIdList, null, agencyId);
+            LOGGER.info("Got {} RecordItems", recordItemList.size());
+            for (RecordItem item : recordItemList) {
+                if (item != null) {
+                    result = item.getLocal();
+                    MergerThreadCommons.write(writer, new DumpRecord(result), agencyId, item.getBibliographicRecordId(), failures);
                 }
             }
-        } catch (IOException | MarcReaderException | MarcWriterException | JSONBException ex) {
-            LOGGER.info("Caught exception while merging record: ", ex);
         }
 
         return true;
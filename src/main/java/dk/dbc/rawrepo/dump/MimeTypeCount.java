@@ -0,0 +1,35 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+/**
+ * The number of records of an agency with a given mimetype along with the space their content takes up in the
+ * database. The stored size is as reported by pg_column_size, i.e. after compression by PostgreSQL.
+ */
+public class MimeTypeCount {
+    private final String mimeType;
+    private final long count;
+    private final long storedBytes;
+
+    public MimeTypeCount(String mimeType, long count, long storedBytes) {
+        this.mimeType = mimeType;
+        this.count = count;
+        this.storedBytes = storedBytes;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getStoredBytes() {
+        return storedBytes;
+    }
+
+}
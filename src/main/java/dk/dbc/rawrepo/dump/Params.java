@@ -11,6 +11,8 @@ public abstract class Params {
     String outputEncoding;
     String outputFormat;
     String mode;
+    String compression;
+    String onError;
 
     public String getOutputEncoding() {
         return outputEncoding;
@@ -36,6 +38,36 @@ public abstract class Params {
         this.mode = mode;
     }
 
+    public String getCompression() {
+        return compression;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    public String getOnError() {
+        return onError;
+    }
+
+    public void setOnError(String onError) {
+        this.onError = onError;
+    }
+
+    /**
+     * @return True if the output should start with the header, which only the first of several shards does
+     */
+    boolean isFirstShard() {
+        return true;
+    }
+
+    /**
+     * @return True if the output should end with the footer, which only the last of several shards does
+     */
+    boolean isLastShard() {
+        return true;
+    }
+
     List<ParamsValidationItemDTO> validateParams() {
         final List<ParamsValidationItemDTO> result = new ArrayList<>();
 
@@ -67,6 +99,26 @@ public abstract class Params {
             }
         }
 
+        if (this.compression == null) {
+            this.compression = Compression.NONE.toString();
+        } else {
+            try {
+                Compression.fromString(this.compression);
+            } catch (IllegalArgumentException e) {
+                result.add(new ParamsValidationItemDTO("compression", "The value '" + this.compression + "' is not a valid value. Allowed values are: " + Compression.validValues()));
+            }
+        }
+
+        if (this.onError == null) {
+            this.onError = ErrorPolicy.ABORT.toString();
+        } else {
+            try {
+                ErrorPolicy.fromString(this.onError);
+            } catch (IllegalArgumentException e) {
+                result.add(new ParamsValidationItemDTO("onError", "The value '" + this.onError + "' is not a valid value. Allowed values are: " + ErrorPolicy.validValues()));
+            }
+        }
+
         return result;
     }
 
@@ -8,32 +8,91 @@ package dk.dbc.rawrepo.dump;
 import dk.dbc.jsonb.JSONBContext;
 import dk.dbc.jsonb.JSONBException;
 import dk.dbc.marc.DanMarc2Charset;
-import dk.dbc.marc.Iso2709Packer;
-import dk.dbc.marc.binding.MarcRecord;
 import dk.dbc.marc.reader.MarcReaderException;
 import dk.dbc.marc.writer.DanMarc2LineFormatWriter;
 import dk.dbc.marc.writer.MarcWriterException;
 import dk.dbc.marc.writer.MarcXchangeV1Writer;
 import dk.dbc.rawrepo.dto.ContentDTO;
 import dk.dbc.rawrepo.dto.RecordDTOMapper;
-import dk.dbc.rawrepo.service.RecordObjectMapper;
-import org.xml.sax.SAXException;
 
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
 
 import static dk.dbc.marc.writer.MarcXchangeV1Writer.Property.ADD_XML_DECLARATION;
 
+/**
+ * Encodes records in the requested output format and writes them to the output stream.
+ * <p>
+ * Encoding happens in the merger threads, each into its own buffer, so the threads never wait for each other. Full
+ * buffers (and the rest of the buffer when a thread is done with a slice) are handed over as chunks to the single
+ * thread which owns the output stream. That thread calls drain to write the chunks, so the output stream sees a
+ * few large writes instead of one or two small writes per record.
+ * <p>
+ * A merger thread which has started a slice tags its chunks with the sequence of the slice, and the slices are written
+ * in sequence order: the chunks of the oldest unfinished slice are written as they come, while the chunks of later
+ * slices are held back until it is their turn. So once a slice has been written, exactly the slices before it have
+ * been written as well, which is what makes a checkpoint after it safe to resume from. Chunks of a thread which
+ * hasn't started a slice are written as they come. The size of the held back chunks is tracked, so a merger thread
+ * can wait with a later slice until the writer has caught up, see awaitRoomForSlice.
+ * <p>
+ * With GZIP compression each chunk is compressed by the thread which encoded it as a separate gzip member, so the
+ * compression is spread over the merger threads. A gzip stream may consist of any number of concatenated members
+ * (RFC 1952), so the output is still a single valid gzip stream which gunzip and GZIPInputStream read as a whole.
+ */
 public class RecordByteWriter {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_PENDING_CHUNKS = 32;
+    private static final int GZIP_BUFFER_SIZE = 8 * 1024;
+
     private final OutputStream outputStream;
     private final OutputFormat outputFormat;
     private final Charset charset;
+    private final Compression compression;
+    private final byte[] newLine;
+    private final boolean passThroughXml;
+    private final boolean firstShard;
+    private final boolean lastShard;
+
+    private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(MAX_PENDING_CHUNKS);
+    private final ThreadLocal<EncodeBuffer> encodeBuffers = ThreadLocal.withInitial(EncodeBuffer::new);
+    private final LongAdder recordCount = new LongAdder();
+    private final LongAdder encodedBytes = new LongAdder();
+    // Only changed by the thread which owns the output stream
+    private volatile long writeNanos;
+    private volatile long writtenSlices = 0;
+    private volatile long heldBackBytes = 0;
+    // Notified when slices have been written, as that is when held back chunks are let go
+    private final Object writtenSlicesMonitor = new Object();
+    private final Map<Long, List<byte[]>> heldBackChunks = new HashMap<>();
+    private final Set<Long> heldBackSliceEnds = new HashSet<>();
+    private SliceListener sliceListener = writtenSlices -> {
+    };
+
+    /**
+     * Called by the thread which owns the output stream when more slices have been written, before anything of the
+     * following slices is written
+     */
+    @FunctionalInterface
+    public interface SliceListener {
+        void slicesWritten(long writtenSlices) throws IOException;
+    }
 
-    private final JSONBContext jsonbContext = new JSONBContext();
-    private final DanMarc2LineFormatWriter danMarc2LineFormatWriter = new DanMarc2LineFormatWriter();
-    private final MarcXchangeV1Writer marcXchangeV1Writer = new MarcXchangeV1Writer();
     private static final String COLLECTION_FOOTER_XML = "</collection>";
     private static final String COLLECTION_HEADER_XML = "<collection xmlns='info:lc/xmlns/marcxchange-v1' xmlns:xsi='http://www.w3.org/2001/XMLSchema-instance' xsi:schemaLocation='info:lc/xmlns/marcxchange-v1 http://www.loc.gov/standards/iso25577/marcxchange-1-1.xsd'>";
 
@@ -41,69 +100,375 @@ public class RecordByteWriter {
         this.outputStream = outputStream;
         this.outputFormat = OutputFormat.fromString(params.getOutputFormat());
         this.charset = "DANMARC2".equalsIgnoreCase(params.getOutputEncoding()) ? new DanMarc2Charset() : Charset.forName(params.getOutputEncoding());
-
-        // marcXchangeV1Writer is used for writing collections. This means the output already has XML declaration so
-        // we don't want to write that in every record
-        this.marcXchangeV1Writer.setProperty(ADD_XML_DECLARATION, false);
+        this.compression = Compression.fromString(params.getCompression());
+        this.newLine = "\n".getBytes(charset);
+        this.passThroughXml = StandardCharsets.UTF_8.equals(charset);
+        this.firstShard = params.isFirstShard();
+        this.lastShard = params.isLastShard();
     }
 
     public void writeHeader() throws IOException {
-        if (outputFormat == OutputFormat.XML) {
+        // The shards of a dump are concatenated, so only the first one has the header
+        if (outputFormat == OutputFormat.XML && firstShard) {
             final String xmlHeader = "<?xml version='1.0' encoding='" + charset.name() + "'?>\n";
 
-            outputStream.write(xmlHeader.getBytes(charset));
-            outputStream.write(COLLECTION_HEADER_XML.getBytes(charset));
+            outputStream.write(toChunk((xmlHeader + COLLECTION_HEADER_XML).getBytes(charset)));
         }
     }
 
     public void writeFooter() throws IOException {
-        if (outputFormat == OutputFormat.XML) {
-            outputStream.write(COLLECTION_FOOTER_XML.getBytes(charset));
+        drain();
+
+        if (outputFormat == OutputFormat.XML && lastShard) {
+            outputStream.write(toChunk(COLLECTION_FOOTER_XML.getBytes(charset)));
+        } else if (compression == Compression.GZIP) {
+            // Always end with a member, as an empty response is not a valid gzip stream
+            outputStream.write(toChunk(new byte[0]));
+        }
+    }
+
+    /**
+     * Writes a checkpoint which the dump can be resumed after. Only XML has a way of including it without breaking
+     * the format, so for the other formats nothing is written. Must only be called by the thread which owns the
+     * output stream and only between slices, i.e. from the SliceListener, so the comment ends up between records.
+     *
+     * @param checkpoint The value for resumeAfter
+     * @throws IOException If writing to the output stream fails
+     */
+    public void writeCheckpoint(String checkpoint) throws IOException {
+        if (outputFormat == OutputFormat.XML && !checkpoint.contains("--")) {
+            outputStream.write(toChunk(("<!-- resumeAfter " + checkpoint + " -->\n").getBytes(charset)));
+        }
+    }
+
+    /**
+     * Writes the records of the agency which were skipped as a trailer after the records. Like checkpoints only XML
+     * has a way of including them, so for the other formats the failures are only logged and, for dump jobs, written
+     * next to the spool file. Must only be called by the thread which owns the output stream.
+     *
+     * @param failures The failures of the dump
+     * @param agencyId The agency whose failures are written
+     * @throws IOException If writing to the output stream fails
+     */
+    public void writeFailures(DumpFailures failures, int agencyId) throws IOException {
+        drain();
+
+        final List<DumpFailures.Failure> reported = failures.getFailures(agencyId);
+        final long unreported = failures.getUnreportedCount(agencyId);
+
+        if (outputFormat == OutputFormat.XML && (!reported.isEmpty() || unreported > 0)) {
+            final StringBuilder trailer = new StringBuilder();
+
+            for (DumpFailures.Failure failure : reported) {
+                trailer.append("<!-- failed ").append(escapeComment(failure.toString())).append(" -->\n");
+            }
+            if (unreported > 0) {
+                trailer.append("<!-- ").append(unreported).append(" more failures not reported -->\n");
+            }
+
+            outputStream.write(toChunk(trailer.toString().getBytes(charset)));
         }
     }
 
-    public void write(byte[] data) throws IOException, MarcReaderException, JSONBException, MarcWriterException, SAXException {
-        final MarcRecord marcRecord;
-        final byte[] recordBytes;
+    // A comment can't contain "--" or end with "-", so a space is put after every '-' which is followed by another
+    // and after a trailing one
+    static String escapeComment(String text) {
+        final String escaped = text.replaceAll("-(?=-)", "- ");
+
+        return escaped.endsWith("-") ? escaped + " " : escaped;
+    }
+
+    public void write(DumpRecord record) throws IOException, MarcReaderException, JSONBException, MarcWriterException {
+        final EncodeBuffer encodeBuffer = encodeBuffers.get();
+        final ByteArrayOutputStream buffer = encodeBuffer.buffer;
+        final int sizeBefore = buffer.size();
 
         switch (outputFormat) {
             case JSON:
-                final MarcRecord recordJSON = RecordObjectMapper.contentToMarcRecord(data);
-                final ContentDTO contentDTO = RecordDTOMapper.contentToDTO(recordJSON);
-                recordBytes = jsonbContext.marshall(contentDTO).getBytes(charset);
-                synchronized (this) {
-                    outputStream.write(recordBytes);
-                    outputStream.write("\n".getBytes(charset));
-                }
+                final ContentDTO contentDTO = RecordDTOMapper.contentToDTO(record.getMarcRecord());
+                buffer.write(encodeBuffer.jsonbContext.marshall(contentDTO).getBytes(charset));
+                buffer.write(newLine);
                 break;
             case LINE:
-                marcRecord = RecordObjectMapper.contentToMarcRecord(data);
-                synchronized (this) {
-                    outputStream.write(danMarc2LineFormatWriter.write(marcRecord, charset));
-                }
+                buffer.write(encodeBuffer.danMarc2LineFormatWriter.write(record.getMarcRecord(), charset));
                 break;
             case LINE_XML:
-                synchronized (this) {
-                    outputStream.write(data);
-                    outputStream.write("\n".getBytes(charset));
-                }
+                buffer.write(record.getContent());
+                buffer.write(newLine);
                 break;
             case XML:
-                marcRecord = RecordObjectMapper.contentToMarcRecord(data);
-                recordBytes = marcXchangeV1Writer.write(marcRecord, charset);
-                synchronized (this) {
-                    outputStream.write(recordBytes);
-                    outputStream.write("\n".getBytes(charset));
+                // The content is already MarcXchange in UTF-8, so unless it has a root of its own only the
+                // declaration has to go
+                final byte[] recordElement = passThroughXml ? record.getRecordElement() : null;
+                if (recordElement != null) {
+                    buffer.write(recordElement);
+                } else {
+                    buffer.write(encodeBuffer.marcXchangeV1Writer.write(record.getMarcRecord(), charset));
                 }
+                buffer.write(newLine);
                 break;
             case ISO:
-                marcRecord = RecordObjectMapper.contentToMarcRecord(data);
-                synchronized (this) {
-                    outputStream.write(Iso2709Packer.create2709FromMarcXChangeRecord(
-                            JaxpUtil.toDocument(marcXchangeV1Writer.write(marcRecord, StandardCharsets.UTF_8)), charset));
+                try {
+                    buffer.write(encodeBuffer.iso2709Encoder.encode(record.getContent(), charset));
+                } catch (XMLStreamException e) {
+                    throw new MarcReaderException(e.getMessage());
                 }
                 break;
         }
+
+        recordCount.increment();
+        encodedBytes.add(buffer.size() - sizeBefore);
+
+        if (buffer.size() >= CHUNK_SIZE) {
+            handOver(buffer);
+        }
+    }
+
+    /**
+     * @return The number of records written so far
+     */
+    public long getRecordCount() {
+        return recordCount.sum();
+    }
+
+    /**
+     * @return The size of the records written so far, before compression
+     */
+    public long getEncodedBytes() {
+        return encodedBytes.sum();
+    }
+
+    /**
+     * @return The time spent writing handed over chunks to the output stream so far
+     */
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    /**
+     * @param sliceListener Called when more slices have been written
+     */
+    public void setSliceListener(SliceListener sliceListener) {
+        this.sliceListener = sliceListener;
+    }
+
+    /**
+     * @return The number of slices which have been written in full. The slices are written in sequence order, so
+     * these are the slices with a sequence lower than this.
+     */
+    public long getWrittenSlices() {
+        return writtenSlices;
+    }
+
+    /**
+     * @return The size of the chunks of later slices which are held back until the slices before them are written
+     */
+    public long getHeldBackBytes() {
+        return heldBackBytes;
+    }
+
+    /**
+     * Waits until the held back chunks are below the given size, or until the slice is the next one to be written,
+     * as its chunks are written as they come. Called by a merger thread before it starts a slice, so the slices
+     * after a slow slice can't get further ahead in bytes. The merger thread must not hold anything the slices
+     * before it need while it waits.
+     *
+     * @param sequence         The sequence of the slice
+     * @param maxHeldBackBytes The size the held back chunks must be below
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void awaitRoomForSlice(long sequence, long maxHeldBackBytes) throws InterruptedException {
+        synchronized (writtenSlicesMonitor) {
+            while (sequence > writtenSlices && heldBackBytes >= maxHeldBackBytes) {
+                writtenSlicesMonitor.wait();
+            }
+        }
+    }
+
+    /**
+     * Starts a slice, so what the calling thread encodes from now on is written in the order of the slice. Must be
+     * called by a merger thread before it encodes the records of a slice. The sequences of the slices must start at
+     * 0 and there must be no gaps, as a slice is held back until all slices before it have been written.
+     *
+     * @param sequence The sequence of the slice
+     */
+    public void startSlice(long sequence) {
+        encodeBuffers.get().sequence = sequence;
+    }
+
+    /**
+     * Hands over what the calling thread has encoded so far and ends its slice, if it has started one. Must be called
+     * by a merger thread when it is done with a slice.
+     *
+     * @throws IOException If the thread is interrupted while waiting for room in the chunk queue
+     */
+    public void flush() throws IOException {
+        final EncodeBuffer encodeBuffer = encodeBuffers.get();
+
+        if (encodeBuffer.buffer.size() > 0) {
+            handOver(encodeBuffer.buffer);
+        }
+
+        if (encodeBuffer.sequence >= 0) {
+            put(new Chunk(encodeBuffer.sequence, null));
+            encodeBuffer.sequence = -1;
+        }
+    }
+
+    /**
+     * Drops the encode buffer of the calling thread. Must be called by a merger thread when it is done with the dump
+     * as the threads are pooled and would otherwise hold on to the buffer.
+     */
+    public void release() {
+        encodeBuffers.remove();
+    }
+
+    /**
+     * Writes all chunks handed over so far to the output stream. Must only be called by the thread which owns the
+     * output stream.
+     *
+     * @throws IOException If writing to the output stream fails
+     */
+    public void drain() throws IOException {
+        Chunk chunk;
+
+        while ((chunk = chunks.poll()) != null) {
+            writeInOrder(chunk);
+        }
+    }
+
+    /**
+     * Same as drain, but waits up to the given time for a chunk if none are ready
+     *
+     * @param timeout How long to wait
+     * @param unit    Unit of timeout
+     * @throws IOException          If writing to the output stream fails
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public void drain(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        final Chunk chunk = chunks.poll(timeout, unit);
+
+        if (chunk != null) {
+            writeInOrder(chunk);
+            drain();
+        }
+    }
+
+    private void writeInOrder(Chunk chunk) throws IOException {
+        if (chunk.sequence < 0) {
+            writeChunk(chunk.data);
+        } else if (chunk.sequence != writtenSlices) {
+            // A later slice, which has to wait for the slices before it
+            if (chunk.isEndOfSlice()) {
+                heldBackSliceEnds.add(chunk.sequence);
+            } else {
+                heldBackChunks.computeIfAbsent(chunk.sequence, k -> new ArrayList<>()).add(chunk.data);
+                heldBackBytes += chunk.data.length;
+            }
+        } else if (!chunk.isEndOfSlice()) {
+            writeChunk(chunk.data);
+        } else {
+            writtenSlices++;
+
+            // The next slices might be done already, in which case they are written now as well
+            while (heldBackSliceEnds.remove(writtenSlices)) {
+                writeHeldBack(writtenSlices);
+                writtenSlices++;
+            }
+
+            // Nothing of the slices after the written ones has been written yet, so this is where a checkpoint goes
+            sliceListener.slicesWritten(writtenSlices);
+
+            writeHeldBack(writtenSlices);
+
+            synchronized (writtenSlicesMonitor) {
+                writtenSlicesMonitor.notifyAll();
+            }
+        }
+    }
+
+    private void writeHeldBack(long sequence) throws IOException {
+        final List<byte[]> heldBack = heldBackChunks.remove(sequence);
+
+        if (heldBack != null) {
+            for (byte[] data : heldBack) {
+                writeChunk(data);
+                heldBackBytes -= data.length;
+            }
+        }
+    }
+
+    private void writeChunk(byte[] chunk) throws IOException {
+        final long started = System.nanoTime();
+        outputStream.write(chunk);
+        writeNanos += System.nanoTime() - started;
+    }
+
+    private void handOver(ByteArrayOutputStream buffer) throws IOException {
+        final byte[] data = toChunk(buffer.toByteArray());
+        buffer.reset();
+
+        put(new Chunk(encodeBuffers.get().sequence, data));
+    }
+
+    private void put(Chunk chunk) throws IOException {
+        try {
+            chunks.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while handing over output");
+        }
+    }
+
+    private byte[] toChunk(byte[] data) throws IOException {
+        if (compression == Compression.GZIP) {
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+
+            try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed, GZIP_BUFFER_SIZE)) {
+                gzipOutputStream.write(data);
+            }
+
+            return compressed.toByteArray();
+        }
+
+        return data;
+    }
+
+    /**
+     * Encoded records of a slice, or the end of the slice if there is no data. A sequence of -1 means the chunk isn't
+     * part of a slice.
+     */
+    private static class Chunk {
+        private final long sequence;
+        private final byte[] data;
+
+        private Chunk(long sequence, byte[] data) {
+            this.sequence = sequence;
+            this.data = data;
+        }
+
+        private boolean isEndOfSlice() {
+            return data == null;
+        }
+    }
+
+    /**
+     * The encode state of a single merger thread. The writers are kept per thread as they are not guaranteed to be
+     * thread safe.
+     */
+    private static class EncodeBuffer {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(CHUNK_SIZE * 2);
+        private final JSONBContext jsonbContext = new JSONBContext();
+        private final DanMarc2LineFormatWriter danMarc2LineFormatWriter = new DanMarc2LineFormatWriter();
+        private final MarcXchangeV1Writer marcXchangeV1Writer = new MarcXchangeV1Writer();
+        private final Iso2709Encoder iso2709Encoder = new Iso2709Encoder();
+        private long sequence = -1;
+
+        private EncodeBuffer() {
+            // marcXchangeV1Writer is used for writing collections. This means the output already has XML declaration so
+            // we don't want to write that in every record
+            this.marcXchangeV1Writer.setProperty(ADD_XML_DECLARATION, false);
+        }
     }
 
 }
@@ -0,0 +1,28 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A slice from RecordCopyStream. Besides the bibliographicrecordid and mimetype of each record the slice has the
+ * content of the records as it came from the database, i.e. still base64 encoded, in the same order as the ids.
+ */
+public class RecordCopySlice extends LinkedHashMap<String, String> {
+    private final List<byte[]> contents = new ArrayList<>();
+
+    void add(String bibliographicRecordId, String mimeType, byte[] content) {
+        put(bibliographicRecordId, mimeType);
+        contents.add(content);
+    }
+
+    public List<byte[]> getContents() {
+        return contents;
+    }
+
+}
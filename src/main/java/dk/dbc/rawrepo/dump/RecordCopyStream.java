@@ -0,0 +1,234 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import dk.dbc.rawrepo.exception.RecordServiceRuntimeException;
+import org.postgresql.copy.CopyOut;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Reads the records of an agency from a COPY (SELECT bibliographicrecordid, mimetype, content ...) TO STDOUT and hands
+ * them out in slices which include the content, so the workers don't have to fetch anything.
+ * <p>
+ * COPY sends the rows as they are produced without the per row overhead of a ResultSet. Each row arrives as a single
+ * byte array in COPY's text format, which is split on tabs and unescaped here. The content is kept as the base64 bytes
+ * and is decoded by the worker which writes the record.
+ * <p>
+ * The total isn't known until the copy is done, so size is the number of records handed out so far.
+ */
+public class RecordCopyStream implements BibliographicIdIterator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RecordCopyStream.class);
+
+    private final Connection connection;
+    private final CopyOut copyOut;
+    private int sliceSize;
+    private final DumpCancellation.Registration registration;
+
+    private RecordCopySlice nextSlice;
+    private int size = 0;
+
+    /**
+     * @param connection   The connection of the copy, which the stream owns
+     * @param copyOut      The running copy
+     * @param sliceSize    The number of records in each slice
+     * @param registration The registration which lets a cancelled dump stop the copy. Ended when the stream is closed.
+     */
+    public RecordCopyStream(Connection connection, CopyOut copyOut, int sliceSize, DumpCancellation.Registration registration) {
+        this.connection = connection;
+        this.copyOut = copyOut;
+        this.sliceSize = sliceSize;
+        this.registration = registration;
+    }
+
+    @Override
+    public int size() {
+        synchronized (this) {
+            return size;
+        }
+    }
+
+    @Override
+    public void setSliceSize(int sliceSize) {
+        synchronized (this) {
+            this.sliceSize = sliceSize;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        synchronized (this) {
+            return !peek().isEmpty();
+        }
+    }
+
+    @Override
+    public Map<String, String> next() {
+        synchronized (this) {
+            final RecordCopySlice slice = peek();
+            nextSlice = null;
+            size += slice.size();
+
+            return slice;
+        }
+    }
+
+    @Override
+    public void close() {
+        registration.close();
+
+        try {
+            // If the dump stops early the rest of the copy has to be cancelled before the connection can be used again
+            if (copyOut.isActive()) {
+                copyOut.cancelCopy();
+            }
+        } catch (SQLException e) {
+            LOGGER.warn("Failed to cancel copy", e);
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.warn("Failed to close connection of copy", e);
+            }
+        }
+    }
+
+    private RecordCopySlice peek() {
+        if (nextSlice == null) {
+            try {
+                nextSlice = readSlice();
+            } catch (SQLException e) {
+                throw new RecordServiceRuntimeException(e);
+            }
+        }
+
+        return nextSlice;
+    }
+
+    private RecordCopySlice readSlice() throws SQLException {
+        final RecordCopySlice slice = new RecordCopySlice();
+        byte[] row;
+
+        while (slice.size() < sliceSize && (row = copyOut.readFromCopy()) != null) {
+            addRow(slice, row);
+        }
+
+        return slice;
+    }
+
+    static void addRow(RecordCopySlice slice, byte[] row) throws SQLException {
+        final int end = row.length > 0 && row[row.length - 1] == '\n' ? row.length - 1 : row.length;
+        final int firstTab = indexOf(row, (byte) '\t', 0, end);
+        final int secondTab = indexOf(row, (byte) '\t', firstTab + 1, end);
+
+        if (firstTab < 0 || secondTab < 0) {
+            throw new SQLException("Unexpected row from copy: " + new String(row, StandardCharsets.UTF_8));
+        }
+
+        final byte[] bibliographicRecordId = unescape(row, 0, firstTab);
+        final byte[] mimeType = unescape(row, firstTab + 1, secondTab);
+        final byte[] content = unescape(row, secondTab + 1, end);
+
+        slice.add(new String(bibliographicRecordId, StandardCharsets.UTF_8),
+                mimeType == null ? null : new String(mimeType, StandardCharsets.UTF_8),
+                content);
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Reverses the escaping of a column in COPY's text format, where \N is null and backslash escapes are used for
+     * the separators and control characters. The line breaks PostgreSQL puts into base64 arrive as \n.
+     *
+     * @return The column value or null for \N
+     */
+    static byte[] unescape(byte[] row, int from, int to) {
+        if (to - from == 2 && row[from] == '\\' && row[from + 1] == 'N') {
+            return null;
+        }
+
+        if (indexOf(row, (byte) '\\', from, to) < 0) {
+            final byte[] value = new byte[to - from];
+            System.arraycopy(row, from, value, 0, value.length);
+
+            return value;
+        }
+
+        final ByteArrayOutputStream value = new ByteArrayOutputStream(to - from);
+        int i = from;
+
+        while (i < to) {
+            final byte b = row[i++];
+
+            if (b != '\\' || i == to) {
+                value.write(b);
+                continue;
+            }
+
+            final byte escaped = row[i++];
+            switch (escaped) {
+                case 'b':
+                    value.write('\b');
+                    break;
+                case 'f':
+                    value.write('\f');
+                    break;
+                case 'n':
+                    value.write('\n');
+                    break;
+                case 'r':
+                    value.write('\r');
+                    break;
+                case 't':
+                    value.write('\t');
+                    break;
+                case 'v':
+                    value.write(0x0b);
+                    break;
+                case 'x': {
+                    int code = 0;
+                    int digits = 0;
+                    while (digits < 2 && i < to && Character.digit(row[i], 16) >= 0) {
+                        code = code * 16 + Character.digit(row[i++], 16);
+                        digits++;
+                    }
+                    value.write(digits == 0 ? 'x' : code);
+                    break;
+                }
+                default:
+                    if (escaped >= '0' && escaped <= '7') {
+                        int code = escaped - '0';
+                        int digits = 1;
+                        while (digits < 3 && i < to && row[i] >= '0' && row[i] <= '7') {
+                            code = code * 8 + (row[i++] - '0');
+                            digits++;
+                        }
+                        value.write(code);
+                    } else {
+                        // Any other character after a backslash is itself, which includes the backslash
+                        value.write(escaped);
+                    }
+            }
+        }
+
+        return value.toByteArray();
+    }
+
+}
@@ -58,6 +58,8 @@ public class RecordParams extends Params {
                 "recordIds=" + recordIds +
                 ", outputEncoding='" + outputEncoding + '\'' +
                 ", outputFormat='" + outputFormat + '\'' +
+                ", compression='" + compression + '\'' +
+                ", onError='" + onError + '\'' +
                 '}';
     }
 }
@@ -0,0 +1,180 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.WebApplicationException;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Dumps agencies to spool files while an earlier agency is being written to the output.
+ * <p>
+ * Each spooled agency is a section of the dump. The sections are started in the order they are added and run on a
+ * fixed number of threads, and once the output is ready for them they are copied to the output in the same order.
+ * That way the agencies are dumped at the same time but still come out one after the other.
+ * <p>
+ * A section which is done keeps its place until it has been copied, so no more sections are spooled at a time than
+ * there are threads. If the output is slow the spooling waits for it instead of filling the disk with the rest of
+ * the dump.
+ * <p>
+ * Checkpoints of a section are only passed on once the section has been copied, as the records aren't in the output
+ * before then.
+ */
+class SectionSpooler implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SectionSpooler.class);
+
+    private final ExecutorService sectionExecutor;
+    private final int threadCount;
+    private final DumpJobBean dumpJobBean;
+    // In the order they are copied. The sections which have been started are always the first ones.
+    private final Deque<Section> sections = new ArrayDeque<>();
+
+    @FunctionalInterface
+    interface SectionDump {
+        void dump(int agencyId, OutputStream out, DumpPipeline.CheckpointListener checkpointListener) throws Exception;
+    }
+
+    /**
+     * @param threadFactory Factory for the threads the sections run on
+     * @param threadCount   The number of sections which are spooled at the same time, whether they are running or
+     *                      waiting to be copied. Must be at least 1.
+     * @param dumpJobBean   Where the spool files are created
+     */
+    SectionSpooler(ThreadFactory threadFactory, int threadCount, DumpJobBean dumpJobBean) {
+        this.sectionExecutor = Executors.newFixedThreadPool(threadCount, threadFactory);
+        this.threadCount = threadCount;
+        this.dumpJobBean = dumpJobBean;
+    }
+
+    /**
+     * Starts dumping an agency to a spool file once the sections before it leave room for it
+     *
+     * @param agencyId    The agency to dump
+     * @param sectionDump Dumps the agency to the given output stream
+     * @throws IOException If the spool file can't be created
+     */
+    void spool(int agencyId, SectionDump sectionDump) throws IOException {
+        sections.add(new Section(agencyId, sectionDump));
+        startSections();
+    }
+
+    /**
+     * Waits for each section in turn and copies it to the output
+     *
+     * @param out                The output of the dump
+     * @param checkpointListener Gets the last checkpoint of each section after it has been copied
+     * @throws IOException          If a section can't be copied
+     * @throws InterruptedException If interrupted while waiting for a section
+     */
+    void appendTo(OutputStream out, DumpPipeline.CheckpointListener checkpointListener) throws IOException, InterruptedException {
+        Section section;
+
+        // A section stays in the queue until it has been copied, so close cleans it up if anything goes wrong
+        while ((section = sections.peek()) != null) {
+            final String lastCheckpoint = section.appendTo(out);
+            sections.remove();
+            startSections();
+
+            if (lastCheckpoint != null) {
+                checkpointListener.checkpoint(lastCheckpoint);
+            }
+        }
+    }
+
+    /**
+     * Stops the sections which haven't been copied and deletes their spool files
+     */
+    @Override
+    public void close() {
+        for (Section section : sections) {
+            section.cancel();
+        }
+        sections.clear();
+        sectionExecutor.shutdownNow();
+    }
+
+    private void startSections() throws IOException {
+        int spooled = 0;
+
+        for (Section section : sections) {
+            if (spooled++ == threadCount) {
+                return;
+            }
+            if (section.future == null) {
+                section.start();
+            }
+        }
+    }
+
+    private class Section {
+        private final int agencyId;
+        private final SectionDump sectionDump;
+        private Path file;
+        private Future<Boolean> future;
+        private volatile String lastCheckpoint;
+
+        private Section(int agencyId, SectionDump sectionDump) {
+            this.agencyId = agencyId;
+            this.sectionDump = sectionDump;
+        }
+
+        private void start() throws IOException {
+            file = dumpJobBean.createSectionFile();
+            future = sectionExecutor.submit(() -> {
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                    sectionDump.dump(agencyId, out, checkpoint -> lastCheckpoint = checkpoint);
+                }
+
+                return true;
+            });
+        }
+
+        private String appendTo(OutputStream out) throws IOException, InterruptedException {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                LOGGER.error("Caught exception while dumping agency {}", agencyId, e.getCause());
+                throw new WebApplicationException(e.getMessage(), e);
+            }
+
+            Files.copy(file, out);
+            delete();
+
+            return lastCheckpoint;
+        }
+
+        private void cancel() {
+            // A section which is running is interrupted. The file is only unlinked, so it can be deleted even if the
+            // section still has it open. A section which hasn't been started has nothing to clean up.
+            if (future != null) {
+                future.cancel(true);
+                delete();
+            }
+        }
+
+        private void delete() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOGGER.error("Could not delete spool file {}", file, e);
+            }
+        }
+    }
+
+}
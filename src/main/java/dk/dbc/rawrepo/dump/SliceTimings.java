@@ -0,0 +1,109 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+/**
+ * Where the time of a slice went, for DumpTuning and DumpProgress. A worker binds the timings to its thread while it
+ * works on the slice, the same way as the DumpCancellation, so the beans which run the queries and the merger threads
+ * can add to them.
+ */
+public class SliceTimings {
+    private static final ThreadLocal<SliceTimings> BOUND_TIMINGS = new ThreadLocal<>();
+
+    private long databaseNanos;
+    private long poolWaitNanos;
+    private long expandNanos;
+    private long encodeNanos;
+
+    /**
+     * The timings bound to the thread which bound them
+     */
+    @FunctionalInterface
+    public interface Binding extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    public long getDatabaseNanos() {
+        return databaseNanos;
+    }
+
+    public long getPoolWaitNanos() {
+        return poolWaitNanos;
+    }
+
+    public long getExpandNanos() {
+        return expandNanos;
+    }
+
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    /**
+     * Binds the timings to the calling thread until the binding is closed
+     *
+     * @return The binding
+     */
+    public Binding bind() {
+        BOUND_TIMINGS.set(this);
+
+        return BOUND_TIMINGS::remove;
+    }
+
+    /**
+     * Adds time spent waiting for a query to the timings bound to the calling thread, if any
+     *
+     * @param nanos The time spent
+     */
+    public static void addDatabaseTime(long nanos) {
+        final SliceTimings timings = BOUND_TIMINGS.get();
+
+        if (timings != null) {
+            timings.databaseNanos += nanos;
+        }
+    }
+
+    /**
+     * Adds time spent waiting for a connection from the pool to the timings bound to the calling thread, if any
+     *
+     * @param nanos The time spent
+     */
+    public static void addPoolWaitTime(long nanos) {
+        final SliceTimings timings = BOUND_TIMINGS.get();
+
+        if (timings != null) {
+            timings.poolWaitNanos += nanos;
+        }
+    }
+
+    /**
+     * Adds time spent expanding records to the timings bound to the calling thread, if any
+     *
+     * @param nanos The time spent
+     */
+    static void addExpandTime(long nanos) {
+        final SliceTimings timings = BOUND_TIMINGS.get();
+
+        if (timings != null) {
+            timings.expandNanos += nanos;
+        }
+    }
+
+    /**
+     * Adds time spent encoding records to the timings bound to the calling thread, if any
+     *
+     * @param nanos The time spent
+     */
+    static void addEncodeTime(long nanos) {
+        final SliceTimings timings = BOUND_TIMINGS.get();
+
+        if (timings != null) {
+            timings.encodeNanos += nanos;
+        }
+    }
+
+}
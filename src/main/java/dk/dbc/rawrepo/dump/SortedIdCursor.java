@@ -0,0 +1,107 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * An open query which returns bibliographicrecordids ordered by COLLATE "C", i.e. by code point, and optionally the
+ * type of each id in the second column.
+ * <p>
+ * The statement is executed with autocommit off and a fetch size, so PostgreSQL keeps the result as a server-side
+ * cursor and only a batch of rows is in memory at a time. The cursor owns the connection and returns it when closed.
+ * <p>
+ * If a DumpCancellation is bound to the thread which opens the cursor, cancelling the dump cancels the statement.
+ */
+public class SortedIdCursor implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SortedIdCursor.class);
+
+    private final Connection connection;
+    private final PreparedStatement statement;
+    private final ResultSet resultSet;
+    private final String type;
+    private final DumpCancellation.Registration registration;
+
+    private String id;
+    private String idType;
+
+    /**
+     * @param connection The connection, which must have autocommit off
+     * @param statement  The statement with all parameters set
+     * @param type       The type of all ids or null if the type is in the second column
+     * @throws SQLException If the statement fails
+     */
+    public SortedIdCursor(Connection connection, PreparedStatement statement, String type) throws SQLException {
+        this.connection = connection;
+        this.statement = statement;
+        this.type = type;
+        // The rows are fetched for as long as the cursor is open, so the statement can be cancelled until then
+        this.registration = DumpCancellation.registerStatement(statement);
+        try {
+            this.resultSet = statement.executeQuery();
+        } catch (SQLException e) {
+            registration.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Moves to the next id
+     *
+     * @return False if there are no more ids
+     * @throws SQLException If fetching the next batch fails
+     */
+    public boolean next() throws SQLException {
+        if (resultSet.next()) {
+            id = resultSet.getString(1);
+            idType = type == null ? resultSet.getString(2) : type;
+
+            return true;
+        }
+
+        id = null;
+        idType = null;
+
+        return false;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getType() {
+        return idType;
+    }
+
+    @Override
+    public void close() {
+        registration.close();
+
+        try {
+            resultSet.close();
+            statement.close();
+            // Nothing has been written, so the transaction holding the cursor is just ended before the connection
+            // goes back to the pool
+            connection.rollback();
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            LOGGER.warn("Failed to close id cursor", e);
+        } finally {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.warn("Failed to close connection of id cursor", e);
+            }
+        }
+    }
+
+}
@@ -7,6 +7,7 @@ package dk.dbc.rawrepo.service;
 
 import dk.dbc.jsonb.JSONBContext;
 import dk.dbc.jsonb.JSONBException;
+import dk.dbc.rawrepo.InteractiveLaneInterceptor;
 import dk.dbc.rawrepo.RawRepoException;
 import dk.dbc.rawrepo.RecordBeanUtils;
 import dk.dbc.rawrepo.dao.RawRepoBean;
@@ -34,7 +35,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
-@Interceptors({StopwatchInterceptor.class})
+@Interceptors({StopwatchInterceptor.class, InteractiveLaneInterceptor.class})
 @Stateless
 @Path("api")
 public class AgencyService {
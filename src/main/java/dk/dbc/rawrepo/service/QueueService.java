@@ -7,6 +7,7 @@ package dk.dbc.rawrepo.service;
 
 import dk.dbc.jsonb.JSONBContext;
 import dk.dbc.jsonb.JSONBException;
+import dk.dbc.rawrepo.InteractiveLaneInterceptor;
 import dk.dbc.rawrepo.dao.RawRepoQueueBean;
 import dk.dbc.rawrepo.dto.EnqueueAgencyResponseDTO;
 import dk.dbc.rawrepo.dto.EnqueueResultCollectionDTO;
@@ -38,7 +39,7 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.util.List;
 
-@Interceptors(StopwatchInterceptor.class)
+@Interceptors({StopwatchInterceptor.class, InteractiveLaneInterceptor.class})
 @Stateless
 @Path("api")
 public class QueueService {
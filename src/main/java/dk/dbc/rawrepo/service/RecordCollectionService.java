@@ -10,6 +10,9 @@ import dk.dbc.jsonb.JSONBException;
 import dk.dbc.marc.binding.MarcRecord;
 import dk.dbc.marc.reader.MarcReaderException;
 import dk.dbc.marcxmerge.MarcXMergerException;
+import dk.dbc.rawrepo.InteractiveLaneInterceptor;
+import dk.dbc.rawrepo.Lane;
+import dk.dbc.rawrepo.LaneBean;
 import dk.dbc.rawrepo.MarcRecordBean;
 import dk.dbc.rawrepo.Record;
 import dk.dbc.rawrepo.RecordBean;
@@ -32,10 +35,8 @@ import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
-import javax.annotation.Resource;
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
-import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.inject.Inject;
 import javax.interceptor.Interceptors;
 import javax.ws.rs.Consumes;
@@ -82,13 +83,14 @@ public class RecordCollectionService {
     @ConfigProperty(name = "DUMP_THREAD_COUNT", defaultValue = "8")
     private int THREAD_COUNT;
 
-    @Resource(lookup = "java:comp/DefaultManagedExecutorService")
-    private ManagedExecutorService executor;
+    @EJB
+    private LaneBean laneBean;
 
     @GET
     @Path("v1/records/{agencyid}/{bibliographicrecordid}")
     @Produces({MediaType.APPLICATION_JSON})
     @Timed
+    @Interceptors(InteractiveLaneInterceptor.class)
     public Response getRecordCollection(@PathParam("agencyid") int agencyId,
                                         @PathParam("bibliographicrecordid") String bibliographicRecordId,
                                         @DefaultValue("false") @QueryParam("allow-deleted") boolean allowDeleted,
@@ -117,6 +119,7 @@ public class RecordCollectionService {
     @Path("v1/records/{agencyid}/{bibliographicrecordid}/content/")
     @Produces({MediaType.APPLICATION_XML})
     @Timed
+    @Interceptors(InteractiveLaneInterceptor.class)
     public Response getRecordContentCollection(@PathParam("agencyid") int agencyId,
                                                @PathParam("bibliographicrecordid") String bibliographicRecordId,
                                                @DefaultValue("false") @QueryParam("allow-deleted") boolean allowDeleted,
@@ -155,6 +158,7 @@ public class RecordCollectionService {
     @Path("v1/records/{agencyid}/{bibliographicrecordid}/dataio/")
     @Produces({MediaType.APPLICATION_XML})
     @Timed
+    @Interceptors(InteractiveLaneInterceptor.class)
     public Response getRecordContentCollectionDataIO(@PathParam("agencyid") int agencyId,
                                                      @PathParam("bibliographicrecordid") String bibliographicRecordId,
                                                      @DefaultValue("false") @QueryParam("expand") boolean expand,
@@ -196,6 +200,11 @@ public class RecordCollectionService {
                                    @QueryParam("exclude-attribute") List<String> excludeAttributes) {
         String res;
 
+        final LaneBean.Admission admission = laneBean.tryEnter(Lane.BULK);
+        if (admission == null) {
+            return laneBean.saturated(Lane.BULK);
+        }
+
         try {
             RecordCollectionDTO dto = new RecordCollectionDTO();
             List<RecordDTO> recordDTOs = new ArrayList<>();
@@ -231,6 +240,7 @@ public class RecordCollectionService {
         } catch (RecordNotFoundException ex) {
             return Response.status(Response.Status.NO_CONTENT).build();
         } finally {
+            admission.close();
             LOGGER.info("v1/records/bulk");
         }
     }
@@ -246,11 +256,20 @@ public class RecordCollectionService {
                                      @DefaultValue("false") @QueryParam("use-parent-agency") boolean useParentAgency,
                                      @DefaultValue("LINE") @QueryParam("output-format") String outputFormat,
                                      @DefaultValue("UTF-8") @QueryParam("output-encoding") String outputEncoding) {
+        final LaneBean.Admission admission = laneBean.tryEnter(Lane.BULK);
+        if (admission == null) {
+            return laneBean.saturated(Lane.BULK);
+        }
+
+        boolean handedOver = false;
+
         try {
             final RecordIdCollectionDTO recordIdCollectionDTO = jsonbContext.unmarshall(request, RecordIdCollectionDTO.class);
 
+            // The admission is held until the records have been streamed
             final StreamingOutput output = out -> {
-                try {
+                admission.claim();
+                try (LaneBean.Admission streaming = admission) {
                     final OutputStreamRecordWriter writer = OutputStreamWriterUtil.getWriter(outputFormat, out, outputEncoding);
                     final List<Callable<Boolean>> threadList = new ArrayList<>();
                     final Iterator<RecordIdDTO> iterator = recordIdCollectionDTO.getRecordIds().iterator();
@@ -260,14 +279,18 @@ public class RecordCollectionService {
                     }
 
                     LOGGER.info("{} MergerThreads has been started", THREAD_COUNT);
-                    executor.invokeAll(threadList);
+                    laneBean.getExecutor(Lane.BULK).invokeAll(threadList);
                 } catch (InterruptedException e) {
                     LOGGER.error("Caught exception during write", e);
                     throw new WebApplicationException("Caught exception during write", e);
                 }
             };
 
-            return Response.ok(output).build();
+            final Response response = Response.ok(output).build();
+            laneBean.handOver(admission);
+            handedOver = true;
+
+            return response;
         } catch (WebApplicationInvalidInputException ex) {
             LOGGER.error("Invalid input", ex);
             return Response.status(400).entity("Invalid input").build();
@@ -275,6 +298,9 @@ public class RecordCollectionService {
             LOGGER.error("Exception during getRecordsBulkv2", ex);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
         } finally {
+            if (!handedOver) {
+                admission.close();
+            }
             LOGGER.info("v2/records/bulk");
         }
     }
@@ -293,6 +319,12 @@ public class RecordCollectionService {
         final List<RecordDTO> found = new ArrayList<>();
         final List<RecordIdDTO> missing = new ArrayList<>();
         final String res;
+
+        final LaneBean.Admission admission = laneBean.tryEnter(Lane.BULK);
+        if (admission == null) {
+            return laneBean.saturated(Lane.BULK);
+        }
+
         try {
             final RecordIdCollectionDTO recordIdCollectionDTO = jsonbContext.unmarshall(request, RecordIdCollectionDTO.class);
 
@@ -310,6 +342,7 @@ public class RecordCollectionService {
             LOGGER.error("Exception during fetchRecordList", ex);
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR).build();
         } finally {
+            admission.close();
             LOGGER.info("v1/records/fetch");
         }
     }
@@ -8,6 +8,7 @@ package dk.dbc.rawrepo.service;
 import dk.dbc.jsonb.JSONBContext;
 import dk.dbc.jsonb.JSONBException;
 import dk.dbc.marc.reader.MarcReaderException;
+import dk.dbc.rawrepo.InteractiveLaneInterceptor;
 import dk.dbc.rawrepo.RawRepoException;
 import dk.dbc.rawrepo.Record;
 import dk.dbc.rawrepo.RecordBean;
@@ -42,7 +43,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
-@Interceptors(StopwatchInterceptor.class)
+@Interceptors({StopwatchInterceptor.class, InteractiveLaneInterceptor.class})
 @Stateless
 @Path("api")
 public class RecordService {
@@ -0,0 +1,126 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+import dk.dbc.rawrepo.dao.RawRepoBean;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AuthorityCacheBeanTest {
+
+    @Mock
+    RawRepoBean rawRepoBean;
+
+    private final Map<String, Instant> modified = new HashMap<>();
+    private final Map<String, byte[]> contents = new HashMap<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        when(rawRepoBean.getModified(eq(870979), anyCollection())).thenAnswer(invocation -> filter(modified, invocation.getArgument(1)));
+        when(rawRepoBean.fetchRecordContents(eq(870979), anyCollection())).thenAnswer(invocation -> filter(contents, invocation.getArgument(1)));
+    }
+
+    private static <T> Map<String, T> filter(Map<String, T> map, Collection<String> keys) {
+        final Map<String, T> result = new HashMap<>();
+
+        for (String key : keys) {
+            if (map.containsKey(key)) {
+                result.put(key, map.get(key));
+            }
+        }
+
+        return result;
+    }
+
+    private void addRecord(String bibliographicRecordId, String content, Instant modified) {
+        this.modified.put(bibliographicRecordId, modified);
+        this.contents.put(bibliographicRecordId, content.getBytes());
+    }
+
+    @Test
+    void testCachedRecordsAreNotFetchedAgain() throws Exception {
+        final AuthorityCacheBean authorityCacheBean = new AuthorityCacheBean(rawRepoBean, 1024);
+        addRecord("68058953", "aut1", Instant.ofEpochSecond(1000));
+        addRecord("69094139", "aut2", Instant.ofEpochSecond(1000));
+
+        Map<String, byte[]> result = authorityCacheBean.getAuthorityRecords(Arrays.asList("68058953", "69094139"));
+        assertThat(new String(result.get("68058953")), is("aut1"));
+        assertThat(new String(result.get("69094139")), is("aut2"));
+
+        result = authorityCacheBean.getAuthorityRecords(Collections.singletonList("68058953"));
+        assertThat(new String(result.get("68058953")), is("aut1"));
+
+        verify(rawRepoBean, times(1)).fetchRecordContents(eq(870979), anyCollection());
+        assertThat(authorityCacheBean.getHitRatio(), is(1.0 / 3));
+    }
+
+    @Test
+    void testModifiedRecordsAreFetchedAgain() throws Exception {
+        final AuthorityCacheBean authorityCacheBean = new AuthorityCacheBean(rawRepoBean, 1024);
+        addRecord("68058953", "aut1", Instant.ofEpochSecond(1000));
+
+        authorityCacheBean.getAuthorityRecords(Collections.singletonList("68058953"));
+        addRecord("68058953", "aut1 v2", Instant.ofEpochSecond(2000));
+
+        final Map<String, byte[]> result = authorityCacheBean.getAuthorityRecords(Collections.singletonList("68058953"));
+        assertThat(new String(result.get("68058953")), is("aut1 v2"));
+        verify(rawRepoBean, times(2)).fetchRecordContents(eq(870979), anyCollection());
+    }
+
+    @Test
+    void testMissingRecords() throws Exception {
+        final AuthorityCacheBean authorityCacheBean = new AuthorityCacheBean(rawRepoBean, 1024);
+
+        final Map<String, byte[]> result = authorityCacheBean.getAuthorityRecords(Collections.singletonList("68058953"));
+        assertThat(result.containsKey("68058953"), is(true));
+        assertThat(result.get("68058953"), nullValue());
+        verify(rawRepoBean, never()).fetchRecordContents(eq(870979), anyCollection());
+    }
+
+    @Test
+    void testLeastRecentlyUsedIsEvicted() throws Exception {
+        final AuthorityCacheBean authorityCacheBean = new AuthorityCacheBean(rawRepoBean, 10);
+        addRecord("1", "aaaa", Instant.ofEpochSecond(1000));
+        addRecord("2", "bbbb", Instant.ofEpochSecond(1000));
+        addRecord("3", "cccc", Instant.ofEpochSecond(1000));
+
+        authorityCacheBean.getAuthorityRecords(Collections.singletonList("1"));
+        authorityCacheBean.getAuthorityRecords(Collections.singletonList("2"));
+        authorityCacheBean.getAuthorityRecords(Collections.singletonList("1"));
+        authorityCacheBean.getAuthorityRecords(Collections.singletonList("3"));
+
+        assertThat(authorityCacheBean.size(), is(2));
+        assertThat(authorityCacheBean.getCachedBytes(), is(8L));
+
+        // 2 was the least recently used, so it has to be fetched again while 1 is still cached
+        authorityCacheBean.getAuthorityRecords(Collections.singletonList("1"));
+        verify(rawRepoBean, times(3)).fetchRecordContents(eq(870979), anyCollection());
+        authorityCacheBean.getAuthorityRecords(Collections.singletonList("2"));
+        verify(rawRepoBean, times(4)).fetchRecordContents(eq(870979), anyCollection());
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LaneBeanTest {
+
+    private final LaneBean laneBean = new LaneBean(Executors.defaultThreadFactory(), 2, 1, 1);
+
+    @AfterEach
+    void tearDown() {
+        laneBean.destroy();
+    }
+
+    @Test
+    void testAdmissionIsLimited() {
+        final LaneBean.Admission first = laneBean.tryEnter(Lane.DUMP);
+        final LaneBean.Admission second = laneBean.tryEnter(Lane.DUMP);
+
+        assertThat(first, notNullValue());
+        assertThat(second, notNullValue());
+        assertThat(laneBean.tryEnter(Lane.DUMP), nullValue());
+
+        // The lanes don't share their limits
+        assertThat(laneBean.tryEnter(Lane.INTERACTIVE), notNullValue());
+
+        // Closing twice only gives one permit back
+        first.close();
+        first.close();
+        assertThat(laneBean.tryEnter(Lane.DUMP), notNullValue());
+        assertThat(laneBean.tryEnter(Lane.DUMP), nullValue());
+    }
+
+    @Test
+    void testSaturated() {
+        final Response response = laneBean.saturated(Lane.BULK);
+
+        assertThat(response.getStatus(), is(503));
+        assertThat(response.getHeaderString("Retry-After"), is("1"));
+    }
+
+    @Test
+    void testExecutorIsBounded() throws Exception {
+        final ExecutorService executor = laneBean.getExecutor(Lane.BULK);
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        executor.submit(() -> {
+            running.countDown();
+            release.await();
+            return null;
+        });
+        running.await();
+
+        // One task runs and one waits in the queue, so the third is rejected
+        executor.submit(() -> null);
+        assertThrows(RejectedExecutionException.class, () -> executor.submit(() -> null));
+
+        release.countDown();
+    }
+
+    @Test
+    void testDumpLaneHasAThreadForEveryWorker() {
+        // Two dumps, each writing one agency and spooling three, with eight workers each
+        assertThat(LaneBean.getDumpLaneThreads(2, 3, 8), is(64));
+        assertThat(LaneBean.getDumpLaneThreads(2, 3, 16), is(128));
+        assertThat(LaneBean.getDumpLaneThreads(1, 6, 8), is(56));
+
+        // Without spooling only the agency being written has workers
+        assertThat(LaneBean.getDumpLaneThreads(2, 0, 8), is(16));
+        assertThat(LaneBean.getDumpLaneThreads(2, -1, 8), is(16));
+    }
+
+    @Test
+    void testInteractiveHasNoExecutor() {
+        assertThrows(IllegalArgumentException.class, () -> laneBean.getExecutor(Lane.INTERACTIVE));
+    }
+
+    @Test
+    void testHandedOverAdmissionIsClosedIfNotClaimed() throws Exception {
+        final LaneBean.Admission first = laneBean.tryEnter(Lane.DUMP);
+        final LaneBean.Admission second = laneBean.tryEnter(Lane.DUMP);
+
+        laneBean.handOver(first);
+        laneBean.handOver(second);
+        second.claim();
+
+        // The timeout is one second in tests
+        Thread.sleep(1500);
+
+        assertThat(laneBean.tryEnter(Lane.DUMP), notNullValue());
+        assertThat(laneBean.tryEnter(Lane.DUMP), nullValue());
+        assertThrows(WebApplicationException.class, first::claim);
+
+        second.close();
+        assertThat(laneBean.tryEnter(Lane.DUMP), notNullValue());
+    }
+
+}
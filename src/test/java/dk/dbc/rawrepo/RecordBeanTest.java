@@ -49,6 +49,9 @@ public class RecordBeanTest {
     @Mock
     private RecordRelationsBean recordRelationsBean;
 
+    @Mock
+    private AuthorityCacheBean authorityCacheBean;
+
     @Mock
     private static RelationHintsVipCore relationHints;
 
@@ -60,12 +63,13 @@ public class RecordBeanTest {
     }
 
     private class RecordBeanMock extends RecordBean {
-        RecordBeanMock(DataSource globalDataSource, RecordSimpleBean recordSimpleBean, RecordRelationsBean recordRelationsBean) {
+        RecordBeanMock(DataSource globalDataSource, RecordSimpleBean recordSimpleBean, RecordRelationsBean recordRelationsBean, AuthorityCacheBean authorityCacheBean) {
             super(globalDataSource);
 
             this.relationHints = RecordBeanTest.relationHints;
             this.recordSimpleBean = recordSimpleBean;
             this.recordRelationsBean = recordRelationsBean;
+            this.authorityCacheBean = authorityCacheBean;
         }
 
         @Override
@@ -77,7 +81,7 @@ public class RecordBeanTest {
     }
 
     private RecordBeanMock initRecordBeanMock() {
-        return new RecordBeanMock(globalDataSource, recordSimpleBean, recordRelationsBean);
+        return new RecordBeanMock(globalDataSource, recordSimpleBean, recordRelationsBean, authorityCacheBean);
     }
 
     @Test
@@ -297,7 +301,7 @@ public class RecordBeanTest {
         when(rawRepoDAO.agencyFor(bibliographicRecordId, 191919, true)).thenReturn(191919);
         when(recordSimpleBean.fetchRecord(bibliographicRecordId, 191919)).thenReturn(deletedEnrichmentRecord);
         when(recordSimpleBean.fetchRecord(bibliographicRecordId, 870970)).thenReturn(deletedCommonRecord);
-        when(recordSimpleBean.fetchRecord("69208045", 870979)).thenReturn(authorityRecord);
+        when(authorityCacheBean.getAuthorityRecords(Collections.singleton("69208045"))).thenReturn(Collections.singletonMap("69208045", authorityRecord.getContent()));
 
         final Record actualRecord = bean.getRawRepoRecordExpanded(bibliographicRecordId, 191919, true, false, true, false);
 
@@ -0,0 +1,36 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dao;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class ContentDecoderTest {
+
+    @Test
+    void testDecodeNull() {
+        assertThat(ContentDecoder.decode(null), nullValue());
+    }
+
+    @Test
+    void testDecodeWithLineBreaks() {
+        // Same as encode(convert_to(..., 'UTF-8'), 'base64') in PostgreSQL, which breaks the lines at 76 chars
+        final String content = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><record xmlns=\"info:lc/xmlns/marcxchange-v1\"><leader>00000n    2200000   4500</leader><datafield tag=\"245\" ind1=\"0\" ind2=\"0\"><subfield code=\"a\">Æblerne på øen</subfield></datafield></record>";
+        final String encoded = "PD94bWwgdmVyc2lvbj0iMS4wIiBlbmNvZGluZz0iVVRGLTgiPz48cmVjb3JkIHhtbG5zPSJpbmZv\n" +
+                "OmxjL3htbG5zL21hcmN4Y2hhbmdlLXYxIj48bGVhZGVyPjAwMDAwbiAgICAyMjAwMDAwICAgNDUw\n" +
+                "MDwvbGVhZGVyPjxkYXRhZmllbGQgdGFnPSIyNDUiIGluZDE9IjAiIGluZDI9IjAiPjxzdWJmaWVs\n" +
+                "ZCBjb2RlPSJhIj7DhmJsZXJuZSBww6Ugw7hlbjwvc3ViZmllbGQ+PC9kYXRhZmllbGQ+PC9yZWNv\n" +
+                "cmQ+";
+
+        assertThat(new String(ContentDecoder.decode(encoded.getBytes(StandardCharsets.US_ASCII)), StandardCharsets.UTF_8), is(content));
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class BibliographicIdMergeJoinTest {
+
+    private static SortedIdCursor cursor(Connection connection, String type, String... rows) throws SQLException {
+        final PreparedStatement statement = mock(PreparedStatement.class);
+        final ResultSet resultSet = mock(ResultSet.class);
+        final AtomicInteger row = new AtomicInteger(-1);
+
+        // Each row is "id" or "id mimetype"
+        when(statement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenAnswer(invocation -> row.incrementAndGet() < rows.length);
+        when(resultSet.getString(1)).thenAnswer(invocation -> rows[row.get()].split(" ")[0]);
+        when(resultSet.getString(2)).thenAnswer(invocation -> rows[row.get()].split(" ")[1]);
+
+        return new SortedIdCursor(connection, statement, type);
+    }
+
+    // The same records and holdings of 710100 as the id lists used to be tested with
+    private static BibliographicIdMergeJoin mergeJoin(int sliceSize, RecordType... recordTypes) throws SQLException {
+        final Connection connection = mock(Connection.class);
+        final AgencyParams params = new AgencyParams();
+        params.setRecordType(new ArrayList<>());
+        for (RecordType recordType : recordTypes) {
+            params.getRecordType().add(recordType.toString());
+        }
+
+        return new BibliographicIdMergeJoin(
+                cursor(connection, null, "A text/marcxchange", "B text/marcxchange", "C text/enrichment+marcxchange", "D text/enrichment+marcxchange"),
+                cursor(connection, "holdings", "B", "D", "E"),
+                BibliographicIdCursor.getExcludedMimeTypes(params, AgencyType.FBS), sliceSize);
+    }
+
+    @Test
+    void testMergeJoin() throws SQLException {
+        final Connection connection = mock(Connection.class);
+        final SortedIdCursor records = cursor(connection, null,
+                "A text/marcxchange", "B text/marcxchange", "C text/enrichment+marcxchange", "D text/enrichment+marcxchange");
+        final SortedIdCursor holdings = cursor(connection, "holdings", "B", "D", "E");
+
+        try (BibliographicIdMergeJoin mergeJoin = new BibliographicIdMergeJoin(records, holdings,
+                Arrays.asList("text/marcxchange", "text/enrichment+marcxchange"), 2)) {
+            assertThat(mergeJoin.hasNext(), is(true));
+            assertThat(mergeJoin.next(), is(new HashMap<String, String>() {{
+                put("B", "text/marcxchange");
+                put("D", "text/enrichment+marcxchange");
+            }}));
+            assertThat(mergeJoin.next(), is(new HashMap<String, String>() {{
+                put("E", "holdings");
+            }}));
+            assertThat(mergeJoin.hasNext(), is(false));
+            assertThat(mergeJoin.size(), is(3));
+        }
+
+        verify(connection, times(2)).close();
+    }
+
+    @Test
+    void testMergeJoinWithoutHoldings() throws SQLException {
+        final Connection connection = mock(Connection.class);
+        final SortedIdCursor records = cursor(connection, null, "A text/marcxchange", "B text/enrichment+marcxchange");
+        final SortedIdCursor holdings = cursor(connection, "holdings");
+
+        try (BibliographicIdMergeJoin mergeJoin = new BibliographicIdMergeJoin(records, holdings, Collections.emptyList(), 10)) {
+            assertThat(mergeJoin.next(), is(new HashMap<String, String>() {{
+                put("A", "text/marcxchange");
+                put("B", "text/enrichment+marcxchange");
+            }}));
+            assertThat(mergeJoin.hasNext(), is(false));
+        }
+    }
+
+    @Test
+    void testAllRecordTypes() throws SQLException {
+        try (BibliographicIdMergeJoin mergeJoin = mergeJoin(2, RecordType.LOCAL, RecordType.ENRICHMENT, RecordType.HOLDINGS)) {
+            assertThat(mergeJoin.next(), is(new HashMap<String, String>() {{
+                put("A", "text/marcxchange");
+                put("B", "text/marcxchange");
+            }}));
+            assertThat(mergeJoin.next(), is(new HashMap<String, String>() {{
+                put("C", "text/enrichment+marcxchange");
+                put("D", "text/enrichment+marcxchange");
+            }}));
+            assertThat(mergeJoin.next(), is(new HashMap<String, String>() {{
+                put("E", "holdings");
+            }}));
+            assertThat(mergeJoin.hasNext(), is(false));
+            assertThat(mergeJoin.size(), is(5));
+        }
+    }
+
+    @Test
+    void testLocalAndHoldings() throws SQLException {
+        try (BibliographicIdMergeJoin mergeJoin = mergeJoin(2, RecordType.LOCAL, RecordType.HOLDINGS)) {
+            assertThat(mergeJoin.next(), is(new HashMap<String, String>() {{
+                put("A", "text/marcxchange");
+                put("B", "text/marcxchange");
+            }}));
+            assertThat(mergeJoin.next(), is(new HashMap<String, String>() {{
+                put("D", "text/enrichment+marcxchange");
+                put("E", "holdings");
+            }}));
+            assertThat(mergeJoin.hasNext(), is(false));
+            assertThat(mergeJoin.size(), is(4));
+        }
+    }
+
+    @Test
+    void testEnrichmentAndHoldings() throws SQLException {
+        try (BibliographicIdMergeJoin mergeJoin = mergeJoin(2, RecordType.ENRICHMENT, RecordType.HOLDINGS)) {
+            assertThat(mergeJoin.next(), is(new HashMap<String, String>() {{
+                put("B", "text/marcxchange");
+                put("C", "text/enrichment+marcxchange");
+            }}));
+            assertThat(mergeJoin.next(), is(new HashMap<String, String>() {{
+                put("D", "text/enrichment+marcxchange");
+                put("E", "holdings");
+            }}));
+            assertThat(mergeJoin.hasNext(), is(false));
+            assertThat(mergeJoin.size(), is(4));
+        }
+    }
+
+    @Test
+    void testExcludedMimeTypes() {
+        final AgencyParams params = new AgencyParams();
+        params.setRecordType(new ArrayList<>(Arrays.asList(RecordType.LOCAL.toString(), RecordType.ENRICHMENT.toString())));
+
+        assertThat(BibliographicIdCursor.getExcludedMimeTypes(params, AgencyType.FBS).isEmpty(), is(true));
+
+        params.setRecordType(new ArrayList<>(Collections.singletonList(RecordType.HOLDINGS.toString())));
+
+        assertThat(BibliographicIdCursor.getExcludedMimeTypes(params, AgencyType.FBS), is(Arrays.asList("text/marcxchange", "text/enrichment+marcxchange")));
+        assertThat(BibliographicIdCursor.getExcludedMimeTypes(params, AgencyType.DBC).isEmpty(), is(true));
+    }
+
+    @Test
+    void testCompareByCodePoint() {
+        assertThat(BibliographicIdMergeJoin.compare("a", "b"), lessThan(0));
+        assertThat(BibliographicIdMergeJoin.compare("ab", "a"), greaterThan(0));
+        assertThat(BibliographicIdMergeJoin.compare("abc", "abc"), is(0));
+        // U+1F600 is after U+FFFD by code point but its first UTF-16 char is before it
+        assertThat(BibliographicIdMergeJoin.compare("\uD83D\uDE00", "\uFFFD"), greaterThan(0));
+        assertThat(BibliographicIdMergeJoin.compare("Z", "a"), lessThan(0));
+    }
+
+}
@@ -11,28 +11,15 @@ import org.junit.Test;
 import org.mockito.MockitoAnnotations;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 public class BibliographicIdResultSetTest {
 
-    private final HashMap<String, String> rawrepoRecordIdsFor710100 = new HashMap<String, String>() {{
-        put("A", "text/marcxchange");
-        put("B", "text/marcxchange");
-        put("C", "text/enrichment+marcxchange");
-        put("D", "text/enrichment+marcxchange");
-    }};
-
-    private final HashMap<String, String> holdingsRecordIdsFor710100 = new HashMap<String, String>() {{
-        put("B", "holdings");
-        put("D", "holdings");
-        put("E", "holdings");
-    }};
-
     private final HashMap<String, String> rawrepoRecordIdsFor870970 = new HashMap<String, String>() {{
         put("A", "text/marcxchange");
         put("B", "text/marcxchange");
@@ -48,11 +35,7 @@ public class BibliographicIdResultSetTest {
 
     @Test
     public void testNormalList() {
-        AgencyParams params = new AgencyParams();
-        params.setAgencies(Collections.singletonList(870970));
-        params.setRecordStatus(RecordStatus.ALL.toString());
-
-        BibliographicIdResultSet resultSet = new BibliographicIdResultSet(params, AgencyType.DBC, 2, rawrepoRecordIdsFor870970, null);
+        BibliographicIdResultSet resultSet = new BibliographicIdResultSet(2, rawrepoRecordIdsFor870970);
 
         assertThat(resultSet.size(), is(5));
         assertThat(resultSet.next(), is(new HashMap<String, String>() {{
@@ -70,11 +53,7 @@ public class BibliographicIdResultSetTest {
 
     @Test
     public void testListSmallerThanSliceSize() {
-        AgencyParams params = new AgencyParams();
-        params.setAgencies(Collections.singletonList(870970));
-        params.setRecordStatus(RecordStatus.ALL.toString());
-
-        BibliographicIdResultSet resultSet = new BibliographicIdResultSet(params, AgencyType.DBC, 10, rawrepoRecordIdsFor870970, null);
+        BibliographicIdResultSet resultSet = new BibliographicIdResultSet(10, rawrepoRecordIdsFor870970);
 
         assertThat(resultSet.size(), is(5));
         assertThat(resultSet.next(), is(new HashMap<String, String>() {{
@@ -88,11 +67,7 @@ public class BibliographicIdResultSetTest {
 
     @Test
     public void testListSizeEqualsSliceSize() {
-        AgencyParams params = new AgencyParams();
-        params.setAgencies(Collections.singletonList(870970));
-        params.setRecordStatus(RecordStatus.ALL.toString());
-
-        BibliographicIdResultSet resultSet = new BibliographicIdResultSet(params, AgencyType.DBC, 5, rawrepoRecordIdsFor870970, null);
+        BibliographicIdResultSet resultSet = new BibliographicIdResultSet(5, rawrepoRecordIdsFor870970);
 
         assertThat(resultSet.size(), is(5));
         assertThat(resultSet.next(), is(new HashMap<String, String>() {{
@@ -105,119 +80,52 @@ public class BibliographicIdResultSetTest {
     }
 
     @Test
-    public void testEmptyList() {
-        AgencyParams params = new AgencyParams();
-        params.setAgencies(Collections.singletonList(870970));
-        params.setRecordStatus(RecordStatus.ALL.toString());
-
-        BibliographicIdResultSet resultSet = new BibliographicIdResultSet(params, AgencyType.DBC, 2, new HashMap<>(), null);
-
-        assertThat(resultSet.size(), is(0));
-    }
-
-    @Test
-    public void testFBSAllRecordTypes() {
-        AgencyParams params = new AgencyParams();
-        params.setRecordType(new ArrayList<>());
-        params.getRecordType().add(RecordType.LOCAL.toString());
-        params.getRecordType().add(RecordType.ENRICHMENT.toString());
-        params.getRecordType().add(RecordType.HOLDINGS.toString());
-        params.setRecordStatus(RecordStatus.ALL.toString());
-
-        BibliographicIdResultSet resultSet = new BibliographicIdResultSet(params, AgencyType.FBS, 2, rawrepoRecordIdsFor710100, holdingsRecordIdsFor710100);
+    public void testSliceSizeChangedWhileIterating() {
+        BibliographicIdResultSet resultSet = new BibliographicIdResultSet(1, rawrepoRecordIdsFor870970);
 
-        assertThat(resultSet.size(), is(5));
         assertThat(resultSet.next(), is(new HashMap<String, String>() {{
             put("A", "text/marcxchange");
-            put("B", "text/marcxchange");
         }}));
-        assertThat(resultSet.next(), is(new HashMap<String, String>() {{
-            put("C", "text/enrichment+marcxchange");
-            put("D", "text/enrichment+marcxchange");
-        }}));
-        assertThat(resultSet.next(), is(new HashMap<String, String>() {{
-            put("E", "holdings");
-        }}));
-    }
-
-    @Test
-    public void testFBSLocalAndEnrichments() {
-        AgencyParams params = new AgencyParams();
-        params.setRecordType(new ArrayList<>());
-        params.getRecordType().add(RecordType.LOCAL.toString());
-        params.getRecordType().add(RecordType.ENRICHMENT.toString());
-        params.setRecordStatus(RecordStatus.ALL.toString());
 
-        BibliographicIdResultSet resultSet = new BibliographicIdResultSet(params, AgencyType.FBS, 2, rawrepoRecordIdsFor710100, null);
-
-        assertThat(resultSet.size(), is(4));
+        resultSet.setSliceSize(3);
         assertThat(resultSet.next(), is(new HashMap<String, String>() {{
-            put("A", "text/marcxchange");
             put("B", "text/marcxchange");
+            put("C", "text/marcxchange");
+            put("D", "text/marcxchange");
         }}));
         assertThat(resultSet.next(), is(new HashMap<String, String>() {{
-            put("C", "text/enrichment+marcxchange");
-            put("D", "text/enrichment+marcxchange");
+            put("E", "text/marcxchange");
         }}));
+        assertThat(resultSet.hasNext(), is(false));
     }
 
     @Test
-    public void testFSBLocalAndHoldings() {
-        AgencyParams params = new AgencyParams();
-        params.setRecordType(new ArrayList<>());
-        params.getRecordType().add(RecordType.LOCAL.toString());
-        params.getRecordType().add(RecordType.HOLDINGS.toString());
-        params.setRecordStatus(RecordStatus.ALL.toString());
-
-        BibliographicIdResultSet resultSet = new BibliographicIdResultSet(params, AgencyType.FBS, 2, rawrepoRecordIdsFor710100, holdingsRecordIdsFor710100);
+    public void testEmptyList() {
+        BibliographicIdResultSet resultSet = new BibliographicIdResultSet(2, new HashMap<>());
 
-        assertThat(resultSet.size(), is(4));
-        assertThat(resultSet.next(), is(new HashMap<String, String>() {{
-            put("A", "text/marcxchange");
-            put("B", "text/marcxchange");
-        }}));
-        assertThat(resultSet.next(), is(new HashMap<String, String>() {{
-            put("D", "text/enrichment+marcxchange");
-            put("E", "holdings");
-        }}));
+        assertThat(resultSet.size(), is(0));
     }
 
     @Test
-    public void testFSBEnrichmentAndHoldings() {
-        AgencyParams params = new AgencyParams();
-        params.setRecordType(new ArrayList<>());
-        params.getRecordType().add(RecordType.ENRICHMENT.toString());
-        params.getRecordType().add(RecordType.HOLDINGS.toString());
-        params.setRecordStatus(RecordStatus.ALL.toString());
-
-        BibliographicIdResultSet resultSet = new BibliographicIdResultSet(params, AgencyType.FBS, 2, rawrepoRecordIdsFor710100, holdingsRecordIdsFor710100);
+    public void testSlicesAreOrderedAndComplete() {
+        final Map<String, String> records = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            records.put(String.format("%08d", i), "text/marcxchange");
+        }
 
-        assertThat(resultSet.size(), is(4));
-        assertThat(resultSet.next(), is(new HashMap<String, String>() {{
-            put("B", "text/marcxchange");
-            put("C", "text/enrichment+marcxchange");
-        }}));
-        assertThat(resultSet.next(), is(new HashMap<String, String>() {{
-            put("D", "text/enrichment+marcxchange");
-            put("E", "holdings");
-        }}));
-    }
+        BibliographicIdResultSet resultSet = new BibliographicIdResultSet(7, records);
 
-    @Test
-    public void testFSBHoldingsOnly() {
-        AgencyParams params = new AgencyParams();
-        params.setRecordType(new ArrayList<>());
-        params.getRecordType().add(RecordType.HOLDINGS.toString());
-        params.setRecordStatus(RecordStatus.ALL.toString());
+        assertThat(resultSet.size(), is(10000));
 
-        BibliographicIdResultSet resultSet = new BibliographicIdResultSet(params, AgencyType.FBS, 3, rawrepoRecordIdsFor710100, holdingsRecordIdsFor710100);
+        final List<String> bibliographicRecordIds = new ArrayList<>();
+        while (resultSet.hasNext()) {
+            bibliographicRecordIds.addAll(resultSet.next().keySet());
+        }
 
-        assertThat(resultSet.size(), is(3));
-        assertThat(resultSet.next(), is(new HashMap<String, String>() {{
-            put("B", "text/marcxchange");
-            put("D", "text/enrichment+marcxchange");
-            put("E", "holdings");
-        }}));
+        assertThat(bibliographicRecordIds.size(), is(10000));
+        for (int i = 0; i < 10000; i++) {
+            assertThat(bibliographicRecordIds.get(i), is(String.format("%08d", i)));
+        }
     }
 
     @Test
@@ -0,0 +1,68 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ByteRangeTest {
+
+    @Test
+    void testClosedRange() {
+        final ByteRange range = ByteRange.parse("bytes=10-19", 100);
+
+        assertThat(range.getStart(), is(10L));
+        assertThat(range.getEnd(), is(19L));
+        assertThat(range.getLength(), is(10L));
+    }
+
+    @Test
+    void testClosedRangeBeyondEnd() {
+        final ByteRange range = ByteRange.parse("bytes=90-200", 100);
+
+        assertThat(range.getStart(), is(90L));
+        assertThat(range.getEnd(), is(99L));
+    }
+
+    @Test
+    void testOpenRange() {
+        final ByteRange range = ByteRange.parse("bytes=42-", 100);
+
+        assertThat(range.getStart(), is(42L));
+        assertThat(range.getEnd(), is(99L));
+    }
+
+    @Test
+    void testSuffixRange() {
+        final ByteRange range = ByteRange.parse("bytes=-10", 100);
+
+        assertThat(range.getStart(), is(90L));
+        assertThat(range.getEnd(), is(99L));
+        assertThat(ByteRange.parse("bytes=-500", 100).getStart(), is(0L));
+    }
+
+    @Test
+    void testIgnored() {
+        assertThat(ByteRange.parse(null, 100), nullValue());
+        assertThat(ByteRange.parse("items=0-10", 100), nullValue());
+        assertThat(ByteRange.parse("bytes=0-10,20-30", 100), nullValue());
+        assertThat(ByteRange.parse("bytes=20-10", 100), nullValue());
+        assertThat(ByteRange.parse("bytes=a-b", 100), nullValue());
+        assertThat(ByteRange.parse("bytes=-", 100), nullValue());
+    }
+
+    @Test
+    void testNotSatisfiable() {
+        assertThrows(IllegalArgumentException.class, () -> ByteRange.parse("bytes=100-", 100));
+        assertThrows(IllegalArgumentException.class, () -> ByteRange.parse("bytes=-0", 100));
+        assertThrows(IllegalArgumentException.class, () -> ByteRange.parse("bytes=-10", 0));
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DumpCancellationTest {
+
+    @Test
+    void testCancelRunning() {
+        final DumpCancellation cancellation = new DumpCancellation();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+
+        cancellation.register(running::incrementAndGet);
+        cancellation.register(done::incrementAndGet).close();
+        cancellation.cancel();
+        cancellation.cancel();
+
+        assertThat(running.get(), is(1));
+        assertThat(done.get(), is(0));
+        assertThat(cancellation.isCancelled(), is(true));
+        assertThrows(CancellationException.class, cancellation::check);
+    }
+
+    @Test
+    void testRegisterAfterCancel() {
+        final DumpCancellation cancellation = new DumpCancellation();
+        final AtomicInteger late = new AtomicInteger();
+
+        cancellation.cancel();
+        cancellation.register(late::incrementAndGet);
+
+        assertThat(late.get(), is(1));
+    }
+
+    @Test
+    void testBound() throws Exception {
+        final DumpCancellation cancellation = new DumpCancellation();
+        final AtomicInteger unbound = new AtomicInteger();
+        final AtomicInteger bound = new AtomicInteger();
+
+        DumpCancellation.registerBound(unbound::incrementAndGet);
+        cancellation.bound(() -> DumpCancellation.registerBound(bound::incrementAndGet)).call();
+        cancellation.cancel();
+
+        assertThat(unbound.get(), is(0));
+        assertThat(bound.get(), is(1));
+        // The binding is gone after the work is done
+        DumpCancellation.checkBound();
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import dk.dbc.marc.reader.MarcReaderException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DumpFailuresTest {
+
+    @Test
+    void testAbort() {
+        final DumpFailures failures = new DumpFailures(ErrorPolicy.ABORT);
+        final MarcReaderException e = new MarcReaderException("broken");
+
+        assertThat(assertThrows(MarcReaderException.class, () -> failures.failed(870970, "12345678", e)), is(e));
+    }
+
+    @Test
+    void testSkip() throws Exception {
+        final DumpFailures failures = new DumpFailures(ErrorPolicy.SKIP);
+
+        failures.failed(870970, "12345678", new MarcReaderException("broken"));
+
+        assertThat(failures.getCount(), is(1L));
+        assertThat(failures.getFailures().isEmpty(), is(true));
+    }
+
+    @Test
+    void testSkipAndReport() throws Exception {
+        final DumpFailures failures = new DumpFailures(ErrorPolicy.SKIP_AND_REPORT);
+
+        failures.failed(870970, "12345678", new MarcReaderException("broken\nrecord"));
+        failures.failed(710100, "87654321", new MarcReaderException(null));
+
+        assertThat(failures.getCount(), is(2L));
+        assertThat(failures.getFailures().size(), is(2));
+        assertThat(failures.getFailures(870970).size(), is(1));
+        assertThat(failures.getFailures(870970).get(0).toString(), is("870970:12345678 broken record"));
+        assertThat(failures.getFailures(710100).get(0).toString(), is("710100:87654321 MarcReaderException"));
+    }
+
+    @Test
+    void testReportIsCappedPerAgency() throws Exception {
+        final DumpFailures failures = new DumpFailures(ErrorPolicy.SKIP_AND_REPORT);
+
+        for (int i = 0; i < DumpFailures.MAX_REPORTED_FAILURES_PER_AGENCY + 2; i++) {
+            failures.failed(870970, Integer.toString(i), new MarcReaderException("broken"));
+        }
+        failures.failed(710100, "87654321", new MarcReaderException("broken"));
+
+        assertThat(failures.getCount(), is(DumpFailures.MAX_REPORTED_FAILURES_PER_AGENCY + 3L));
+        assertThat(failures.getFailures(870970).size(), is(DumpFailures.MAX_REPORTED_FAILURES_PER_AGENCY));
+        assertThat(failures.getUnreportedCount(870970), is(2L));
+        assertThat(failures.getFailures(710100).size(), is(1));
+        assertThat(failures.getUnreportedCount(710100), is(0L));
+    }
+
+    @Test
+    void testXmlTrailerOfCappedReport() throws Exception {
+        final AgencyParams params = new AgencyParams();
+        params.setOutputFormat("XML");
+        params.setOutputEncoding("UTF-8");
+        params.setCompression("NONE");
+
+        final DumpFailures failures = new DumpFailures(ErrorPolicy.SKIP_AND_REPORT);
+        for (int i = 0; i < DumpFailures.MAX_REPORTED_FAILURES_PER_AGENCY + 3; i++) {
+            failures.failed(870970, Integer.toString(i), new MarcReaderException("broken"));
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final RecordByteWriter writer = new RecordByteWriter(out, params);
+        writer.writeFailures(failures, 870970);
+
+        assertThat(out.toString(StandardCharsets.UTF_8.name()).endsWith("<!-- 3 more failures not reported -->\n"), is(true));
+    }
+
+    @Test
+    void testXmlTrailer() throws Exception {
+        final AgencyParams params = new AgencyParams();
+        params.setOutputFormat("XML");
+        params.setOutputEncoding("UTF-8");
+        params.setCompression("NONE");
+
+        final DumpFailures failures = new DumpFailures(ErrorPolicy.SKIP_AND_REPORT);
+        failures.failed(870970, "12345678", new MarcReaderException("unexpected -- here"));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final RecordByteWriter writer = new RecordByteWriter(out, params);
+        writer.writeFailures(failures, 870970);
+        writer.writeFooter();
+
+        assertThat(out.toString(StandardCharsets.UTF_8.name()), is("<!-- failed 870970:12345678 unexpected - - here -->\n</collection>"));
+    }
+
+    @Test
+    void testXmlTrailerWithDashes() throws Exception {
+        final AgencyParams params = new AgencyParams();
+        params.setOutputFormat("XML");
+        params.setOutputEncoding("UTF-8");
+        params.setCompression("NONE");
+
+        final DumpFailures failures = new DumpFailures(ErrorPolicy.SKIP_AND_REPORT);
+        failures.failed(870970, "12345678", new MarcReaderException("unexpected --- here -"));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final RecordByteWriter writer = new RecordByteWriter(out, params);
+        writer.writeFailures(failures, 870970);
+
+        final String trailer = out.toString(StandardCharsets.UTF_8.name());
+        final String comment = trailer.substring("<!--".length(), trailer.length() - "-->\n".length());
+
+        assertThat(trailer, is("<!-- failed 870970:12345678 unexpected - - - here -  -->\n"));
+        assertThat(comment.contains("--"), is(false));
+        assertThat(comment.endsWith("-"), is(false));
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class DumpProgressTest {
+    private static final long MILLIS = 1000000;
+
+    private static DumpProgress newProgress() {
+        final AgencyParams params = new AgencyParams();
+        params.setMode("raw");
+        params.setOutputFormat("line");
+
+        return new DumpProgress("id", "dump", Arrays.asList(870970, 710100), params);
+    }
+
+    @Test
+    void testRecordsAreCountedPerType() {
+        final DumpProgress progress = newProgress();
+        final Map<String, String> slice = new HashMap<>();
+        slice.put("1", "text/marcxchange");
+        slice.put("2", "text/marcxchange");
+        slice.put("3", "holdings");
+
+        progress.sliceDone(slice, new SliceTimings(), 0);
+
+        assertThat(progress.getRecords(), is(3L));
+        assertThat(progress.getCategories().get("text/marcxchange"), is(2L));
+        assertThat(progress.getCategories().get("holdings"), is(1L));
+    }
+
+    @Test
+    void testMergeIsWhatIsLeftOfTheSlice() {
+        final DumpProgress progress = newProgress();
+        final SliceTimings timings = new SliceTimings();
+
+        try (SliceTimings.Binding ignored = timings.bind()) {
+            SliceTimings.addDatabaseTime(30 * MILLIS);
+            SliceTimings.addPoolWaitTime(10 * MILLIS);
+            SliceTimings.addExpandTime(20 * MILLIS);
+            SliceTimings.addEncodeTime(15 * MILLIS);
+        }
+
+        progress.sliceDone(new HashMap<>(), timings, 100 * MILLIS);
+
+        assertThat(progress.getStageMillis().get(DumpStage.CONTENT_FETCH), is(40L));
+        assertThat(progress.getStageMillis().get(DumpStage.EXPAND), is(20L));
+        assertThat(progress.getStageMillis().get(DumpStage.ENCODE), is(15L));
+        assertThat(progress.getStageMillis().get(DumpStage.MERGE), is(25L));
+    }
+
+    @Test
+    void testExpectedRecordsAreExtrapolatedFromTheStartedAgencies() {
+        final DumpProgress progress = newProgress();
+
+        assertThat(progress.getExpectedRecords(), nullValue());
+
+        progress.agencyStarted(870970, 1000L);
+
+        assertThat(progress.getExpectedRecords(), is(2000L));
+        assertThat(progress.getRunningAgencies(), is(Arrays.asList(870970)));
+
+        progress.agencyDone(870970);
+        progress.agencyStarted(710100, 500L);
+
+        assertThat(progress.getExpectedRecords(), is(1500L));
+    }
+
+    @Test
+    void testOnlyTheFirstFinishCounts() {
+        final DumpProgress progress = newProgress();
+        progress.agencyStarted(870970, 1000L);
+
+        progress.finish(DumpProgress.Status.DONE);
+        progress.finish(DumpProgress.Status.FAILED);
+
+        assertThat(progress.getStatus(), is(DumpProgress.Status.DONE));
+        assertThat(progress.getRunningAgencies().isEmpty(), is(true));
+        assertThat(progress.getEstimatedSecondsLeft(), nullValue());
+    }
+
+}
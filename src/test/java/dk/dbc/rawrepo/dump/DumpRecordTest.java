@@ -0,0 +1,59 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class DumpRecordTest {
+    private static final String RECORD = "<record xmlns=\"info:lc/xmlns/marcxchange-v1\"><datafield tag=\"245\" ind1=\"0\" ind2=\"0\"><subfield code=\"a\">Æble</subfield></datafield></record>";
+
+    private static String withoutXmlDeclaration(String content) {
+        return new String(new DumpRecord(content.getBytes(StandardCharsets.UTF_8)).getRecordElement(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testWithXmlDeclaration() {
+        assertThat(withoutXmlDeclaration("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + RECORD), is(RECORD));
+        assertThat(withoutXmlDeclaration("<?xml version='1.0' encoding='UTF-8' standalone='no'?>" + RECORD), is(RECORD));
+    }
+
+    @Test
+    void testWithByteOrderMark() {
+        assertThat(withoutXmlDeclaration("\uFEFF<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n" + RECORD), is(RECORD));
+    }
+
+    @Test
+    void testWithoutXmlDeclaration() {
+        final byte[] content = RECORD.getBytes(StandardCharsets.UTF_8);
+
+        assertThat(new DumpRecord(content).getRecordElement(), sameInstance(content));
+        assertThat(withoutXmlDeclaration("\n  " + RECORD), is(RECORD));
+        assertThat(withoutXmlDeclaration("<record>1</record>"), is("<record>1</record>"));
+    }
+
+    @Test
+    void testOtherRootsAreNotPassedThrough() {
+        final String[] contents = {
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<collection xmlns=\"info:lc/xmlns/marcxchange-v1\">" + RECORD + "</collection>",
+                "<marcx:record xmlns:marcx=\"info:lc/xmlns/marcxchange-v1\"><marcx:leader>00000n    2200000   4500</marcx:leader></marcx:record>",
+                "<record xmlns=\"info:lc/xmlns/marcxchange-v2\"></record>",
+                "<records xmlns=\"info:lc/xmlns/marcxchange-v1\"></records>",
+                "<!-- comment -->" + RECORD,
+                "<?xml version=\"1.0\""};
+
+        for (String content : contents) {
+            assertThat(content, new DumpRecord(content.getBytes(StandardCharsets.UTF_8)).getRecordElement(), nullValue());
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DumpSnapshotTest {
+
+    @Test
+    void testBindImportsSnapshot() throws SQLException {
+        final DataSource dataSource = mock(DataSource.class);
+        final Connection coordinator = mock(Connection.class);
+        final Connection worker = mock(Connection.class);
+        final Statement coordinatorStatement = mock(Statement.class);
+        final Statement workerStatement = mock(Statement.class);
+        final ResultSet resultSet = mock(ResultSet.class);
+
+        when(dataSource.getConnection()).thenReturn(coordinator, worker);
+        when(coordinator.createStatement()).thenReturn(coordinatorStatement);
+        when(coordinatorStatement.executeQuery("SELECT pg_export_snapshot()")).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true);
+        when(resultSet.getString(1)).thenReturn("00000003-0000001B-1");
+        when(worker.createStatement()).thenReturn(workerStatement);
+
+        try (DumpSnapshot snapshot = DumpSnapshot.export(dataSource)) {
+            assertThat(snapshot.getSnapshotId(), is("00000003-0000001B-1"));
+            verify(coordinator).setAutoCommit(false);
+
+            try (DumpSnapshot.Binding binding = snapshot.bind()) {
+                verify(workerStatement).execute("SET TRANSACTION SNAPSHOT '00000003-0000001B-1'");
+
+                // The bound connection is only lent out, so closing it leaves it open for the next query
+                final Connection connection = DumpSnapshot.getBoundConnection();
+                assertThat(connection, notNullValue());
+                connection.close();
+                connection.rollback();
+                connection.createStatement();
+                verify(worker, never()).close();
+                verify(worker, never()).rollback();
+            }
+
+            assertThat(DumpSnapshot.getBoundConnection(), nullValue());
+            verify(worker).rollback();
+            verify(worker).close();
+            verify(coordinator, never()).close();
+        }
+
+        verify(coordinator).rollback();
+        verify(coordinator).close();
+    }
+
+    @Test
+    void testNestedBindingRestoresOuter() throws SQLException {
+        final DataSource dataSource = mock(DataSource.class);
+        final Connection coordinator = mock(Connection.class);
+        final Connection outer = mock(Connection.class);
+        final Connection inner = mock(Connection.class);
+        final Statement statement = mock(Statement.class);
+        final ResultSet resultSet = mock(ResultSet.class);
+
+        when(dataSource.getConnection()).thenReturn(coordinator, outer, inner);
+        when(coordinator.createStatement()).thenReturn(statement);
+        when(outer.createStatement()).thenReturn(statement);
+        when(inner.createStatement()).thenReturn(statement);
+        when(statement.executeQuery("SELECT pg_export_snapshot()")).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true);
+        when(resultSet.getString(1)).thenReturn("00000003-0000001B-1");
+
+        try (DumpSnapshot snapshot = DumpSnapshot.export(dataSource);
+             DumpSnapshot.Binding outerBinding = snapshot.bind()) {
+            try (DumpSnapshot.Binding innerBinding = snapshot.bind()) {
+                DumpSnapshot.getBoundConnection().getSchema();
+                verify(inner).getSchema();
+            }
+
+            // The outer connection is bound again, and it is still open
+            DumpSnapshot.getBoundConnection().getSchema();
+            verify(outer).getSchema();
+            verify(inner).close();
+            verify(outer, never()).close();
+        }
+
+        assertThat(DumpSnapshot.getBoundConnection(), nullValue());
+    }
+
+}
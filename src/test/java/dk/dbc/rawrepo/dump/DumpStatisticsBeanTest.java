@@ -0,0 +1,76 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class DumpStatisticsBeanTest {
+
+    private static AgencyParams params(String outputFormat, String mode) {
+        final AgencyParams params = new AgencyParams();
+        params.setOutputFormat(outputFormat);
+        params.setMode(mode);
+
+        return params;
+    }
+
+    @Test
+    void testNoDumps() {
+        final DumpStatisticsBean bean = new DumpStatisticsBean();
+
+        assertThat(bean.getBytesPerRecord(params("XML", "RAW")), nullValue());
+        assertThat(bean.getRecordsPerSecond(params("XML", "RAW")), nullValue());
+    }
+
+    @Test
+    void testThroughputPerFormatAndMode() {
+        final DumpStatisticsBean bean = new DumpStatisticsBean();
+
+        bean.record(params("XML", "RAW"), 1000, 2000000, 2000);
+        bean.record(params("xml", "raw"), 3000, 6000000, 2000);
+        bean.record(params("ISO", "EXPANDED"), 100, 50000, 1000);
+        // Empty agencies don't say anything about the throughput
+        bean.record(params("LINE", "RAW"), 0, 0, 5000);
+
+        assertThat(bean.getBytesPerRecord(params("XML", "RAW")), is(2000.0));
+        assertThat(bean.getRecordsPerSecond(params("XML", "RAW")), is(1000.0));
+        assertThat(bean.getBytesPerRecord(params("ISO", "EXPANDED")), is(500.0));
+        assertThat(bean.getRecordsPerSecond(params("ISO", "EXPANDED")), is(100.0));
+        assertThat(bean.getRecordsPerSecond(params("ISO", "RAW")), nullValue());
+        assertThat(bean.getRecordsPerSecond(params("LINE", "RAW")), nullValue());
+    }
+
+    @Test
+    void testRecordsOfAgencyWithSameFilters() {
+        final DumpStatisticsBean bean = new DumpStatisticsBean();
+        final AgencyParams params = params("XML", "RAW");
+        params.setRecordStatus("ACTIVE");
+
+        bean.recordAgency(870970, params, 1000);
+
+        assertThat(bean.getAgencyRecords(870970, params), is(1000L));
+        assertThat(bean.getAgencyRecords(710100, params), nullValue());
+
+        params.setRecordStatus("ALL");
+        assertThat(bean.getAgencyRecords(870970, params), nullValue());
+    }
+
+    @Test
+    void testRecordsOfIncrementalDumpsAreNotKept() {
+        final DumpStatisticsBean bean = new DumpStatisticsBean();
+        final AgencyParams params = params("XML", "RAW");
+        params.setModifiedFrom("2026-10-01");
+
+        bean.recordAgency(870970, params, 1000);
+
+        assertThat(bean.getAgencyRecords(870970, params), nullValue());
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DumpTuningTest {
+    private static final long MILLIS = 1000000;
+
+    @Test
+    void testCheapRecordsGetLargerSlices() {
+        final DumpTuning tuning = new DumpTuning(1000, 100, 10000, 4, 8, true);
+
+        // 0.1 ms per record would fit 10000 records in a slice, but the size only doubles at a time
+        tuning.recordSlice(1000, 0, 100 * MILLIS, 0, 0);
+        tuning.recordPipeline(1000, 100000, 100);
+
+        assertThat(tuning.getSliceSize(), is(2000));
+
+        tuning.recordSlice(1000, 0, 100 * MILLIS, 0, 0);
+        tuning.recordPipeline(1000, 100000, 100);
+
+        assertThat(tuning.getSliceSize(), is(4000));
+    }
+
+    @Test
+    void testExpensiveRecordsGetSmallerSlices() {
+        final DumpTuning tuning = new DumpTuning(1000, 100, 10000, 4, 8, true);
+
+        for (int i = 0; i < 5; i++) {
+            tuning.recordSlice(1000, 0, 20000 * MILLIS, 0, 0);
+            tuning.recordPipeline(1000, 100000, 20000);
+        }
+
+        assertThat(tuning.getSliceSize(), is(100));
+    }
+
+    @Test
+    void testSliceSizeIsAdjustedWhileDumping() {
+        final DumpTuning tuning = new DumpTuning(1000, 100, 10000, 4, 8, true);
+
+        // No agency has been completed, but the slices alone move the size towards the target
+        for (int i = 0; i < 4; i++) {
+            tuning.recordSlice(1000, 0, 100 * MILLIS, 0, 0);
+        }
+
+        assertThat(tuning.getSliceSize(), is(10000));
+        assertThat(tuning.getWorkerCount(), is(4));
+    }
+
+    @Test
+    void testWorkersFollowThroughput() {
+        final DumpTuning tuning = new DumpTuning(1000, 100, 10000, 4, 8, true);
+
+        tuning.recordPipeline(100000, 0, 100000);
+        assertThat(tuning.getWorkerCount(), is(5));
+
+        tuning.recordPipeline(100000, 0, 50000);
+        assertThat(tuning.getWorkerCount(), is(6));
+
+        // Slower, so back again
+        tuning.recordPipeline(100000, 0, 100000);
+        assertThat(tuning.getWorkerCount(), is(5));
+
+        // No real difference
+        tuning.recordPipeline(100000, 0, 99000);
+        assertThat(tuning.getWorkerCount(), is(5));
+
+        // Too few records to tell anything
+        tuning.recordPipeline(1000, 0, 1);
+        assertThat(tuning.getWorkerCount(), is(5));
+    }
+
+    @Test
+    void testWaitingWorkersAreRemoved() {
+        final DumpTuning tuning = new DumpTuning(1000, 100, 10000, 4, 8, false);
+        final DumpTuning adaptiveTuning = new DumpTuning(1000, 100, 10000, 4, 8, true);
+
+        for (DumpTuning t : new DumpTuning[]{tuning, adaptiveTuning}) {
+            t.recordSlice(1000, 2000 * MILLIS, 1000 * MILLIS, 0, 0);
+            t.recordPipeline(100000, 0, 100000);
+        }
+
+        assertThat(adaptiveTuning.getWorkerCount(), is(3));
+        assertThat(adaptiveTuning.getStatus(AgencyType.FBS, Mode.RAW).getSlices(), is(1L));
+        assertThat(tuning.getWorkerCount(), is(4));
+        assertThat(tuning.getSliceSize(), is(1000));
+    }
+
+    @Test
+    void testPin() {
+        final DumpTuning tuning = new DumpTuning(1000, 100, 10000, 4, 8, true);
+
+        tuning.pin(500, 2);
+        tuning.recordSlice(1000, 0, 100 * MILLIS, 0, 0);
+        tuning.recordPipeline(100000, 0, 100000);
+
+        assertThat(tuning.getSliceSize(), is(500));
+        assertThat(tuning.getWorkerCount(), is(2));
+        assertThat(tuning.getStatus(AgencyType.DBC, Mode.EXPANDED).isWorkerCountPinned(), is(true));
+
+        assertThrows(IllegalArgumentException.class, () -> tuning.pin(50, null));
+        assertThrows(IllegalArgumentException.class, () -> tuning.pin(null, 9));
+
+        // Adjusted again from where it was left
+        tuning.pin(null, null);
+        assertThat(tuning.getSliceSize(), is(1000));
+        assertThat(tuning.getWorkerCount(), is(4));
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.junit.jupiter.api.Test;
+
+import javax.xml.stream.XMLStreamException;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class Field001RewriterTest {
+
+    private static String rewrite(String content) throws XMLStreamException {
+        return new String(Field001Rewriter.setAgencyId(content.getBytes(StandardCharsets.UTF_8), 710100), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testSetAgencyId() throws Exception {
+        final String content = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><record xmlns=\"info:lc/xmlns/marcxchange-v1\"><leader>00000n    2200000   4500</leader>" +
+                "<datafield tag=\"001\" ind1=\"0\" ind2=\"0\"><subfield code=\"a\">12345678</subfield><subfield code=\"b\">870970</subfield><subfield code=\"c\">20200101</subfield></datafield>" +
+                "<datafield tag=\"245\" ind1=\"0\" ind2=\"0\"><subfield code=\"a\">Æblerne på øen &amp; andet</subfield><subfield code=\"b\">870970</subfield></datafield></record>";
+
+        final String result = rewrite(content);
+
+        assertThat(result, containsString("<subfield code=\"a\">12345678</subfield><subfield code=\"b\">710100</subfield><subfield code=\"c\">20200101</subfield>"));
+        assertThat(result, containsString("<subfield code=\"a\">Æblerne på øen &amp; andet</subfield><subfield code=\"b\">870970</subfield>"));
+        assertThat(result, containsString("<leader>00000n    2200000   4500</leader>"));
+    }
+
+    @Test
+    void testSetAgencyIdEmptySubfield() throws Exception {
+        final String content = "<record xmlns=\"info:lc/xmlns/marcxchange-v1\"><datafield tag=\"001\" ind1=\"0\" ind2=\"0\"><subfield code=\"a\">12345678</subfield><subfield code=\"b\"/></datafield></record>";
+
+        final String result = rewrite(content);
+
+        assertThat(result, containsString("<subfield code=\"b\">710100</subfield>"));
+        assertThat(result, not(containsString("<subfield code=\"b\"/>")));
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import dk.dbc.marc.DanMarc2Charset;
+import dk.dbc.marc.Iso2709Packer;
+import dk.dbc.marc.writer.MarcXchangeV1Writer;
+import dk.dbc.rawrepo.service.RecordObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class Iso2709EncoderTest {
+
+    private static final String CONTENT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<record xmlns=\"info:lc/xmlns/marcxchange-v1\" format=\"danMARC2\" type=\"Bibliographic\">\n" +
+            "    <leader>00000n    2200000   4500</leader>\n" +
+            "    <datafield tag=\"001\" ind1=\"0\" ind2=\"0\">\n" +
+            "        <subfield code=\"a\">12345678</subfield>\n" +
+            "        <subfield code=\"b\">870970</subfield>\n" +
+            "        <subfield code=\"c\">20200101120000</subfield>\n" +
+            "    </datafield>\n" +
+            "    <datafield tag=\"004\" ind1=\"0\" ind2=\"0\">\n" +
+            "        <subfield code=\"r\">n</subfield>\n" +
+            "        <subfield code=\"a\">e</subfield>\n" +
+            "    </datafield>\n" +
+            "    <datafield tag=\"245\" ind1=\"0\" ind2=\"0\">\n" +
+            "        <subfield code=\"a\">Æblerne på øen &amp; andre fortællinger</subfield>\n" +
+            "        <subfield code=\"c\">Über \"alles\"</subfield>\n" +
+            "    </datafield>\n" +
+            "    <datafield tag=\"652\" ind1=\"0\" ind2=\"0\">\n" +
+            "        <subfield code=\"m\">99.4</subfield>\n" +
+            "    </datafield>\n" +
+            "</record>";
+
+    // The way ISO2709 was made before the encoder
+    private static byte[] viaIso2709Packer(String content, Charset charset) throws Exception {
+        final byte[] marcXchange = new MarcXchangeV1Writer().write(RecordObjectMapper.contentToMarcRecord(content.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+
+        return Iso2709Packer.create2709FromMarcXChangeRecord(JaxpUtil.toDocument(marcXchange), charset);
+    }
+
+    @Test
+    void testSameAsIso2709PackerUTF8() throws Exception {
+        final byte[] expected = viaIso2709Packer(CONTENT, StandardCharsets.UTF_8);
+
+        assertThat(new Iso2709Encoder().encode(CONTENT.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8), is(expected));
+    }
+
+    @Test
+    void testSameAsIso2709PackerDanMarc2() throws Exception {
+        final Charset charset = new DanMarc2Charset();
+        final byte[] expected = viaIso2709Packer(CONTENT, charset);
+
+        assertThat(new Iso2709Encoder().encode(CONTENT.getBytes(StandardCharsets.UTF_8), charset), is(expected));
+    }
+
+    @Test
+    void testEncoderIsReusable() throws Exception {
+        final Iso2709Encoder encoder = new Iso2709Encoder();
+        final byte[] first = encoder.encode(CONTENT.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+        final byte[] second = encoder.encode(CONTENT.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+
+        assertThat(second, is(first));
+    }
+
+    @Test
+    void testStructure() throws Exception {
+        final String content = "<record xmlns=\"info:lc/xmlns/marcxchange-v1\"><leader>00000n    2200000   4500</leader>" +
+                "<datafield tag=\"001\" ind1=\"0\" ind2=\"0\"><subfield code=\"a\">12345678</subfield><subfield code=\"b\">870970</subfield></datafield>" +
+                "<datafield tag=\"245\" ind1=\"0\" ind2=\"0\"><subfield code=\"a\">Æble</subfield></datafield></record>";
+        final String expected = "00081n    2200049   4500" +
+                "001002100000" + "245001000021" + "\u001e" +
+                "00\u001fa12345678\u001fb870970\u001e" +
+                "00\u001faÆble\u001e" +
+                "\u001d";
+
+        assertThat(new String(new Iso2709Encoder().encode(content.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8), StandardCharsets.UTF_8), is(expected));
+    }
+
+}
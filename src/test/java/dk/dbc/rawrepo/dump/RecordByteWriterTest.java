@@ -0,0 +1,161 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+class RecordByteWriterTest {
+
+    private static String dumpShard(Integer shard, Integer shardCount) throws Exception {
+        final AgencyParams params = new AgencyParams();
+        params.setOutputFormat("XML");
+        params.setOutputEncoding("UTF-8");
+        params.setCompression("NONE");
+        params.setShard(shard);
+        params.setShardCount(shardCount);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final RecordByteWriter writer = new RecordByteWriter(out, params);
+        writer.writeHeader();
+        writer.write(new DumpRecord(("<record>" + shard + "</record>").getBytes(StandardCharsets.UTF_8)));
+        writer.flush();
+        writer.writeFooter();
+
+        return out.toString(StandardCharsets.UTF_8.name());
+    }
+
+    @Test
+    void testShardsConcatenateToOneCollection() throws Exception {
+        final String first = dumpShard(0, 3);
+        final String middle = dumpShard(1, 3);
+        final String last = dumpShard(2, 3);
+
+        assertThat(first.startsWith("<?xml"), is(true));
+        assertThat(first.endsWith("</collection>"), is(false));
+        assertThat(middle, is("<record>1</record>\n"));
+        assertThat(last.startsWith("<record>2</record>"), is(true));
+        assertThat(last.endsWith("</collection>"), is(true));
+    }
+
+    @Test
+    void testWithoutShards() throws Exception {
+        final String all = dumpShard(null, null);
+
+        assertThat(all.startsWith("<?xml"), is(true));
+        assertThat(all.endsWith("</collection>"), is(true));
+    }
+
+    @Test
+    void testRecordWithACollectionOfItsOwnIsNotNested() throws Exception {
+        final AgencyParams params = new AgencyParams();
+        params.setOutputFormat("XML");
+        params.setOutputEncoding("UTF-8");
+        params.setCompression("NONE");
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final RecordByteWriter writer = new RecordByteWriter(out, params);
+        writer.writeHeader();
+        writer.write(new DumpRecord(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<collection xmlns=\"info:lc/xmlns/marcxchange-v1\">" +
+                "<record format=\"danMARC2\" type=\"Bibliographic\"><leader>00000n    2200000   4500</leader>" +
+                "<datafield tag=\"245\" ind1=\"0\" ind2=\"0\"><subfield code=\"a\">Æble</subfield></datafield>" +
+                "</record></collection>").getBytes(StandardCharsets.UTF_8)));
+        writer.flush();
+        writer.writeFooter();
+
+        final String all = out.toString(StandardCharsets.UTF_8.name());
+
+        assertThat(all.indexOf("<collection"), is(all.lastIndexOf("<collection")));
+        assertThat(all.indexOf("</collection>"), is(all.lastIndexOf("</collection>")));
+        assertThat(all.contains("Æble"), is(true));
+    }
+
+    @Test
+    void testSlicesAreWrittenInOrder() throws Exception {
+        final AgencyParams params = new AgencyParams();
+        params.setOutputFormat("LINE_XML");
+        params.setOutputEncoding("UTF-8");
+        params.setCompression("NONE");
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final RecordByteWriter writer = new RecordByteWriter(out, params);
+        final List<String> written = new ArrayList<>();
+        writer.setSliceListener(writtenSlices -> written.add(writtenSlices + " slices, " + out.size() + " bytes"));
+
+        writer.startSlice(2);
+        writer.write(new DumpRecord("<record>2</record>".getBytes(StandardCharsets.UTF_8)));
+        writer.flush();
+        writer.startSlice(1);
+        writer.write(new DumpRecord("<record>1</record>".getBytes(StandardCharsets.UTF_8)));
+        writer.flush();
+        writer.drain();
+
+        // Held back until slice 0 has been written
+        assertThat(out.size(), is(0));
+        assertThat(writer.getWrittenSlices(), is(0L));
+
+        writer.startSlice(0);
+        writer.write(new DumpRecord("<record>0</record>".getBytes(StandardCharsets.UTF_8)));
+        writer.flush();
+        writer.drain();
+
+        assertThat(out.toString(StandardCharsets.UTF_8.name()), is("<record>0</record>\n<record>1</record>\n<record>2</record>\n"));
+        assertThat(writer.getWrittenSlices(), is(3L));
+        assertThat(written, is(Collections.singletonList("3 slices, 57 bytes")));
+    }
+
+    @Test
+    void testLaterSlicesWaitForHeldBackBytes() throws Exception {
+        final AgencyParams params = new AgencyParams();
+        params.setOutputFormat("LINE_XML");
+        params.setOutputEncoding("UTF-8");
+        params.setCompression("NONE");
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final RecordByteWriter writer = new RecordByteWriter(out, params);
+
+        writer.startSlice(1);
+        writer.write(new DumpRecord("<record>1</record>".getBytes(StandardCharsets.UTF_8)));
+        writer.flush();
+        writer.drain();
+
+        assertThat(writer.getHeldBackBytes(), is(19L));
+
+        // Slice 2 has to wait, while slice 0 is the next to be written and never does
+        final Thread slice2 = new Thread(() -> {
+            try {
+                writer.awaitRoomForSlice(2, 10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        slice2.start();
+        writer.awaitRoomForSlice(0, 10);
+        slice2.join(100);
+        assertThat(slice2.isAlive(), is(true));
+
+        writer.startSlice(0);
+        writer.write(new DumpRecord("<record>0</record>".getBytes(StandardCharsets.UTF_8)));
+        writer.flush();
+        writer.drain();
+
+        slice2.join(1000);
+        assertThat(slice2.isAlive(), is(false));
+        assertThat(writer.getHeldBackBytes(), is(0L));
+        assertThat(out.toString(StandardCharsets.UTF_8.name()), is("<record>0</record>\n<record>1</record>\n"));
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import dk.dbc.rawrepo.dao.ContentDecoder;
+import org.junit.jupiter.api.Test;
+import org.postgresql.copy.CopyOut;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RecordCopyStreamTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String unescape(String s) {
+        final byte[] row = bytes(s);
+        final byte[] value = RecordCopyStream.unescape(row, 0, row.length);
+
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testUnescape() {
+        assertThat(unescape("plain"), is("plain"));
+        assertThat(unescape("\\N"), nullValue());
+        assertThat(unescape("a\\nb\\tc\\\\d"), is("a\nb\tc\\d"));
+        assertThat(unescape("\\101\\x42"), is("AB"));
+        assertThat(unescape("æble\\r"), is("æble\r"));
+    }
+
+    @Test
+    void testSlices() throws SQLException {
+        final Connection connection = mock(Connection.class);
+        final CopyOut copyOut = mock(CopyOut.class);
+
+        // The content is the base64 of "<record/>" split over two lines as encode(..., 'base64') would do it
+        when(copyOut.readFromCopy()).thenReturn(
+                bytes("A\ttext/marcxchange\tPHJlY2\\n9yZC8+\n"),
+                bytes("B\\tC\ttext/marcxchange\t\\N\n"),
+                bytes("D\ttext/marcxchange\tPHJlY29yZC8+\n"),
+                null);
+        when(copyOut.isActive()).thenReturn(false);
+
+        try (RecordCopyStream stream = new RecordCopyStream(connection, copyOut, 2, () -> {
+        })) {
+            final RecordCopySlice first = (RecordCopySlice) stream.next();
+            assertThat(Arrays.asList(first.keySet().toArray()), is(Arrays.asList("A", "B\tC")));
+            assertThat(new String(ContentDecoder.decode(first.getContents().get(0)), StandardCharsets.UTF_8), is("<record/>"));
+            assertThat(first.getContents().get(1), nullValue());
+
+            final RecordCopySlice second = (RecordCopySlice) stream.next();
+            assertThat(Arrays.asList(second.keySet().toArray()), is(Arrays.asList("D")));
+            assertThat(stream.hasNext(), is(false));
+            assertThat(stream.size(), is(3));
+        }
+
+        verify(connection).close();
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.dump;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.ws.rs.WebApplicationException;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SectionSpoolerTest {
+    private Path spoolDir;
+    private DumpJobBean dumpJobBean;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        spoolDir = Files.createTempDirectory("section-spooler");
+        dumpJobBean = new DumpJobBean(spoolDir.toString());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(spoolDir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(spoolDir);
+    }
+
+    private long spoolFiles() throws IOException {
+        try (Stream<Path> files = Files.list(spoolDir)) {
+            return files.count();
+        }
+    }
+
+    private static void write(OutputStream out, int agencyId) throws IOException {
+        out.write((agencyId + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testSectionsAreAppendedInOrder() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<String> checkpoints = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch secondDone = new CountDownLatch(1);
+
+        try (SectionSpooler sectionSpooler = new SectionSpooler(Executors.defaultThreadFactory(), 2, dumpJobBean)) {
+            // The first section only finishes after the second one
+            sectionSpooler.spool(1, (agencyId, sectionOut, checkpointListener) -> {
+                secondDone.await();
+                write(sectionOut, agencyId);
+                checkpointListener.checkpoint(agencyId + ":a");
+            });
+            sectionSpooler.spool(2, (agencyId, sectionOut, checkpointListener) -> {
+                write(sectionOut, agencyId);
+                checkpointListener.checkpoint(agencyId + ":b");
+                secondDone.countDown();
+            });
+            sectionSpooler.spool(3, (agencyId, sectionOut, checkpointListener) -> write(sectionOut, agencyId));
+
+            sectionSpooler.appendTo(out, checkpoints::add);
+        }
+
+        assertThat(out.toString(StandardCharsets.UTF_8.name()), is("1\n2\n3\n"));
+        assertThat(checkpoints, is(Arrays.asList("1:a", "2:b")));
+        assertThat(spoolFiles(), is(0L));
+    }
+
+    @Test
+    void testNoMoreSectionsThanThreadsAreSpooled() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<Integer> started = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch release = new CountDownLatch(1);
+
+        try (SectionSpooler sectionSpooler = new SectionSpooler(Executors.defaultThreadFactory(), 1, dumpJobBean)) {
+            for (int i = 1; i <= 3; i++) {
+                sectionSpooler.spool(i, (agencyId, sectionOut, checkpointListener) -> {
+                    started.add(agencyId);
+                    release.await();
+                    write(sectionOut, agencyId);
+                });
+            }
+
+            // Only the first section has a spool file until it has been copied
+            assertThat(spoolFiles(), is(1L));
+
+            release.countDown();
+            sectionSpooler.appendTo(out, checkpoint -> {
+            });
+        }
+
+        assertThat(started, is(Arrays.asList(1, 2, 3)));
+        assertThat(out.toString(StandardCharsets.UTF_8.name()), is("1\n2\n3\n"));
+        assertThat(spoolFiles(), is(0L));
+    }
+
+    @Test
+    void testFailedSectionIsThrownAndTheOthersAreCleanedUp() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final CountDownLatch secondStarted = new CountDownLatch(1);
+        final CountDownLatch secondInterrupted = new CountDownLatch(1);
+        final List<Integer> started = Collections.synchronizedList(new ArrayList<>());
+
+        try (SectionSpooler sectionSpooler = new SectionSpooler(Executors.defaultThreadFactory(), 2, dumpJobBean)) {
+            sectionSpooler.spool(1, (agencyId, sectionOut, checkpointListener) -> {
+                secondStarted.await();
+                throw new IOException("Connection reset");
+            });
+            sectionSpooler.spool(2, (agencyId, sectionOut, checkpointListener) -> {
+                secondStarted.countDown();
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    secondInterrupted.countDown();
+                    throw e;
+                }
+            });
+            sectionSpooler.spool(3, (agencyId, sectionOut, checkpointListener) -> started.add(agencyId));
+
+            final WebApplicationException exception = assertThrows(WebApplicationException.class, () -> sectionSpooler.appendTo(out, checkpoint -> {
+            }));
+            assertThat(exception.getCause().getCause().getMessage(), is("Connection reset"));
+        }
+
+        assertThat(secondInterrupted.await(10, TimeUnit.SECONDS), is(true));
+        assertThat(started.isEmpty(), is(true));
+        assertThat(out.size(), is(0));
+        assertThat(spoolFiles(), is(0L));
+    }
+
+}